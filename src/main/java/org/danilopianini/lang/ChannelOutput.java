@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Buffered writer of big endian primitives on a channel, which keeps track of
+ * the position reached. Closing it flushes the buffer and closes the channel.
+ */
+final class ChannelOutput implements Closeable {
+
+    /**
+     * Bytes taken by a double.
+     */
+    static final int DOUBLE_BYTES = Double.SIZE / Byte.SIZE;
+    /**
+     * Bytes taken by an int.
+     */
+    static final int INT_BYTES = Integer.SIZE / Byte.SIZE;
+    /**
+     * Bytes taken by a long.
+     */
+    static final int LONG_BYTES = Long.SIZE / Byte.SIZE;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long position;
+
+    /**
+     * @param channel
+     *            the channel to write to
+     * @param position
+     *            the current position of the channel
+     */
+    ChannelOutput(final WritableByteChannel channel, final long position) {
+        this.channel = channel;
+        this.position = position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void ensure(final int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the buffered bytes to the channel. The buffer gets emptied even
+     * if writing fails, as part of its content may have been written anyway.
+     *
+     * @throws IOException
+     *             if the channel can not be written
+     */
+    void flush() throws IOException {
+        buffer.flip();
+        try {
+            writeFully(buffer);
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * @return the position of the next byte to be written
+     */
+    long position() {
+        return position;
+    }
+
+    void put(final byte value) throws IOException {
+        ensure(1);
+        buffer.put(value);
+        position++;
+    }
+
+    void put(final byte[] data) throws IOException {
+        put(data, 0, data.length);
+    }
+
+    /**
+     * Writes a range of an array. The range either gets buffered as a whole,
+     * or written directly to the channel if larger than the buffer.
+     *
+     * @param data
+     *            the array
+     * @param offset
+     *            the index of the first byte to write
+     * @param length
+     *            the number of bytes to write
+     * @throws IOException
+     *             if the channel can not be written
+     */
+    void put(final byte[] data, final int offset, final int length) throws IOException {
+        if (length > buffer.remaining()) {
+            flush();
+            if (length > buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(data, offset, length));
+                position += length;
+                return;
+            }
+        }
+        buffer.put(data, offset, length);
+        position += length;
+    }
+
+    void putDouble(final double value) throws IOException {
+        ensure(DOUBLE_BYTES);
+        buffer.putDouble(value);
+        position += DOUBLE_BYTES;
+    }
+
+    void putInt(final int value) throws IOException {
+        ensure(INT_BYTES);
+        buffer.putInt(value);
+        position += INT_BYTES;
+    }
+
+    void putLong(final long value) throws IOException {
+        ensure(LONG_BYTES);
+        buffer.putLong(value);
+        position += LONG_BYTES;
+    }
+
+    private void writeFully(final ByteBuffer data) throws IOException {
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+}
@@ -0,0 +1,398 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import java8.util.function.Consumer;
+
+/**
+ * A thread safe {@link SpatialIndex}. The space is split in square cells of
+ * fixed size, lazily created as elements get inserted. Each cell hosts a
+ * {@link FlexibleQuadTree} guarded by its own {@link ReadWriteLock}: writes in
+ * different cells proceed in parallel, and queries only wait for writes in
+ * the cells they overlap. Queries read-lock all the overlapping cells, hence
+ * they see a consistent state. Locks are always acquired in the same order.
+ *
+ * Actions passed to {@link #query(Consumer, double[]...)} run while holding
+ * read locks, and must not modify this index.
+ *
+ * @param <E>
+ *            content of the index
+ */
+public final class ConcurrentFlexibleQuadTree<E> implements SpatialIndex<E> {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * Default side of the cells.
+     */
+    public static final double DEFAULT_CELL_SIZE = 16;
+
+    private final double cellSize;
+    private final int maxElements;
+    private final ConcurrentMap<Long, Shard<E>> shards = new ConcurrentHashMap<>();
+
+    private static final class Shard<E> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int x, y;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private final FlexibleQuadTree<E> tree;
+
+        Shard(final int x, final int y, final double size, final int maxElements) {
+            this.x = x;
+            this.y = y;
+            tree = new FlexibleQuadTree<>(x * size, y * size, (x + 1) * size, (y + 1) * size,
+                    maxElements, Integer.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Builds a {@link ConcurrentFlexibleQuadTree} with the default cell size
+     * and node capacity.
+     */
+    public ConcurrentFlexibleQuadTree() {
+        this(DEFAULT_CELL_SIZE);
+    }
+
+    /**
+     * @param cellSize
+     *            the side of the cells. Smaller cells allow for more
+     *            parallelism, larger cells make large queries cheaper.
+     */
+    public ConcurrentFlexibleQuadTree(final double cellSize) {
+        this(cellSize, FlexibleQuadTree.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param cellSize
+     *            the side of the cells
+     * @param elemPerQuad
+     *            maximum number of elements per node of each cell's tree
+     */
+    public ConcurrentFlexibleQuadTree(final double cellSize, final int elemPerQuad) {
+        if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+            throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+        }
+        this.cellSize = cellSize;
+        this.maxElements = elemPerQuad;
+    }
+
+    private int cell(final double coordinate) {
+        /*
+         * Cells beyond the int range get merged in the outermost ones
+         */
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.floor(coordinate / cellSize)));
+    }
+
+    private Shard<E> existing(final double x, final double y) {
+        return shards.get(key(cell(x), cell(y)));
+    }
+
+    /*
+     * Runs the action on every cell overlapping the area, while holding the
+     * read locks of all of them. Locks are taken in key order, as writers do.
+     */
+    private void forEachShard(
+            final double sx, final double sy, final double fx, final double fy,
+            final Consumer<Shard<E>> action) {
+        final int minx = cell(sx);
+        final int miny = cell(sy);
+        final int maxx = cell(fx);
+        final int maxy = cell(fy);
+        while (true) {
+            final int known = shards.size();
+            final List<Shard<E>> targets = new ArrayList<>();
+            final double cells = ((double) maxx - minx + 1) * ((double) maxy - miny + 1);
+            if (cells <= known) {
+                for (int x = minx; x <= maxx; x++) {
+                    for (int y = miny; y <= maxy; y++) {
+                        final Shard<E> shard = shards.get(key(x, y));
+                        if (shard != null) {
+                            targets.add(shard);
+                        }
+                    }
+                }
+            } else {
+                for (final Shard<E> shard : shards.values()) {
+                    if (shard.x >= minx && shard.x <= maxx && shard.y >= miny && shard.y <= maxy) {
+                        targets.add(shard);
+                    }
+                }
+            }
+            Collections.sort(targets, (a, b) -> Long.compare(key(a.x, a.y), key(b.x, b.y)));
+            for (final Shard<E> shard : targets) {
+                shard.lock.readLock().lock();
+            }
+            try {
+                /*
+                 * If a cell got created meanwhile, an element may have moved
+                 * there from a locked cell: retry.
+                 */
+                if (shards.size() == known) {
+                    for (final Shard<E> shard : targets) {
+                        action.accept(shard);
+                    }
+                    return;
+                }
+            } finally {
+                for (final Shard<E> shard : targets) {
+                    shard.lock.readLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the side of the cells
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    @Override
+    public int getDimensions() {
+        return 2;
+    }
+
+    @Override
+    public void insert(final E element, final double... position) {
+        assert position.length == 2;
+        insert(element, position[0], position[1]);
+    }
+
+    /**
+     * Same of {@link #insert(Object, double...)}, but with explicit parameters.
+     *
+     * @param e
+     *            element
+     * @param x
+     *            X
+     * @param y
+     *            Y
+     */
+    public void insert(final E e, final double x, final double y) {
+        final Shard<E> shard = shard(x, y);
+        final Lock lock = shard.lock.writeLock();
+        lock.lock();
+        try {
+            shard.tree.insert(e, x, y);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static long key(final int x, final int y) {
+        return (long) x << Integer.SIZE | y & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public boolean move(final E element, final double[] start, final double[] end) {
+        assert start.length == 2;
+        assert end.length == 2;
+        return move(element, start[0], start[1], end[0], end[1]);
+    }
+
+    /**
+     * Same of {@link #move(Object, double[], double[])}, but with explicit
+     * parameters.
+     *
+     * @param e
+     *            the element
+     * @param sx
+     *            the start x
+     * @param sy
+     *            the start y
+     * @param fx
+     *            the final x
+     * @param fy
+     *            the final y
+     * @return true if the element is found and moved
+     */
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        final Shard<E> from = existing(sx, sy);
+        if (from == null) {
+            return false;
+        }
+        final Shard<E> to = shard(fx, fy);
+        if (from == to) {
+            final Lock lock = from.lock.writeLock();
+            lock.lock();
+            try {
+                return from.tree.move(e, sx, sy, fx, fy);
+            } finally {
+                lock.unlock();
+            }
+        }
+        /*
+         * Lock ordering prevents deadlocks among crossing moves
+         */
+        final boolean fromFirst = key(from.x, from.y) < key(to.x, to.y);
+        final Lock first = (fromFirst ? from : to).lock.writeLock();
+        final Lock second = (fromFirst ? to : from).lock.writeLock();
+        first.lock();
+        try {
+            second.lock();
+            try {
+                if (from.tree.remove(e, sx, sy)) {
+                    to.tree.insert(e, fx, fy);
+                    return true;
+                }
+                return false;
+            } finally {
+                second.unlock();
+            }
+        } finally {
+            first.unlock();
+        }
+    }
+
+    @Override
+    public List<E> query(final double[]... parallelotope) {
+        final List<E> result = new ArrayList<>();
+        query(result::add, parallelotope);
+        return result;
+    }
+
+    @Override
+    public void query(final Consumer<? super E> action, final double[]... parallelotope) {
+        assert parallelotope.length == 2;
+        assert parallelotope[0].length == 2;
+        assert parallelotope[1].length == 2;
+        query(parallelotope[0][0], parallelotope[0][1], parallelotope[1][0], parallelotope[1][1], action);
+    }
+
+    /**
+     * Same of {@link #query(double[]...)}, but with explicit parameters.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> query(final double x1, final double y1, final double x2, final double y2) {
+        final List<E> result = new ArrayList<>();
+        query(x1, y1, x2, y2, result::add);
+        return result;
+    }
+
+    /**
+     * Same of {@link #query(Consumer, double[]...)}, but with explicit
+     * parameters.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param action
+     *            the {@link Consumer} to feed with each element in range.
+     *            It must not modify this index.
+     */
+    public void query(
+            final double x1, final double y1, final double x2, final double y2,
+            final Consumer<? super E> action) {
+        final double sx = Math.min(x1, x2);
+        final double sy = Math.min(y1, y2);
+        final double fx = Math.max(x1, x2);
+        final double fy = Math.max(y1, y2);
+        forEachShard(sx, sy, fx, fy, shard -> shard.tree.query(sx, sy, fx, fy, action));
+    }
+
+    @Override
+    public List<E> queryRadius(final double[] center, final double radius) {
+        assert center.length == 2;
+        return queryRadius(center[0], center[1], radius);
+    }
+
+    /**
+     * Same of {@link #queryRadius(double[], double)}, but with explicit
+     * parameters.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> queryRadius(final double x, final double y, final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        final List<E> result = new ArrayList<>();
+        forEachShard(x - radius, y - radius, x + radius, y + radius,
+                shard -> shard.tree.queryRadius(x, y, radius, result::add));
+        return result;
+    }
+
+    @Override
+    public boolean remove(final E element, final double... position) {
+        assert position.length == 2;
+        return remove(element, position[0], position[1]);
+    }
+
+    /**
+     * Same of {@link #remove(Object, double...)} with explicit parameters.
+     *
+     * @param e
+     *            Element to remove
+     * @param x
+     *            X position of the element
+     * @param y
+     *            Y position of the element
+     * @return true if the element has been found and removed
+     */
+    public boolean remove(final E e, final double x, final double y) {
+        final Shard<E> shard = existing(x, y);
+        if (shard == null) {
+            return false;
+        }
+        final Lock lock = shard.lock.writeLock();
+        lock.lock();
+        try {
+            return shard.tree.remove(e, x, y);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Shard<E> shard(final double x, final double y) {
+        final int cx = cell(x);
+        final int cy = cell(y);
+        final Long key = key(cx, cy);
+        final Shard<E> shard = shards.get(key);
+        if (shard == null) {
+            final Shard<E> created = new Shard<>(cx, cy, cellSize, maxElements);
+            final Shard<E> previous = shards.putIfAbsent(key, created);
+            return previous == null ? created : previous;
+        }
+        return shard;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + shards.size() + " cells of side " + cellSize;
+    }
+
+}
@@ -0,0 +1,36 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * Translates the elements of a {@link SpatialIndex} to and from the bytes
+ * stored in its binary representation.
+ *
+ * @param <E>
+ *            type of the elements
+ */
+public interface ElementCodec<E> extends Serializable {
+
+    /**
+     * @param element
+     *            the element to encode
+     * @return the bytes representing the element
+     */
+    byte[] encode(E element);
+
+    /**
+     * @param data
+     *            a read only buffer, whose remaining bytes are exactly the
+     *            ones produced by {@link #encode(Object)}
+     * @return the decoded element
+     */
+    E decode(ByteBuffer data);
+
+}
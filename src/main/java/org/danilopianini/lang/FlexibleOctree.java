@@ -0,0 +1,678 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java8.util.function.Consumer;
+
+/**
+ * Three dimensional counterpart of {@link FlexibleQuadTree}: each node hosts
+ * a bounded number of entries and splits its volume in eight octants when
+ * full. The tree grows upwards when elements are inserted outside its
+ * current bounds. Methods with explicit coordinates do not allocate arrays.
+ *
+ * @param <E>
+ *            content of the index
+ */
+public final class FlexibleOctree<E> implements SpatialIndex<E> {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * Default maximum number of entries per node.
+     */
+    public static final int DEFAULT_CAPACITY = 10;
+    /*
+     * Children are indexed by three bits, set if the octant lies in the upper
+     * half along X, Y and Z respectively.
+     */
+    private static final int X_BIT = 1;
+    private static final int Y_BIT = 2;
+    private static final int Z_BIT = 4;
+    private static final int CHILDREN = 8;
+
+    private final Box bounds;
+    private final int maxElements;
+    /*
+     * Entries are stored as parallel arrays, ordered from the oldest to the
+     * most recently inserted. Arrays are allocated upon the first insertion.
+     */
+    private double[] xs;
+    private double[] ys;
+    private double[] zs;
+    private E[] elements;
+    private int size;
+    /*
+     * Number of entries in this node and in all its descendants
+     */
+    private int subtreeSize;
+    /*
+     * Null until the node gets subdivided
+     */
+    private FlexibleOctree<E>[] children;
+    /*
+     * Only consistent in the entry point node and in the current root
+     */
+    private FlexibleOctree<E> root;
+    private FlexibleOctree<E> parent;
+
+    private static final class Box implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final double minx, miny, minz, maxx, maxy, maxz;
+
+        Box(final double minx, final double miny, final double minz,
+                final double maxx, final double maxy, final double maxz) {
+            this.minx = minx;
+            this.miny = miny;
+            this.minz = minz;
+            this.maxx = maxx;
+            this.maxy = maxy;
+            this.maxz = maxz;
+        }
+
+        public boolean contains(final double x, final double y, final double z) {
+            return x >= minx && y >= miny && z >= minz && x < maxx && y < maxy && z < maxz;
+        }
+
+        public double distanceSquared(final double x, final double y, final double z) {
+            final double dx = x < minx ? minx - x : x > maxx ? x - maxx : 0;
+            final double dy = y < miny ? miny - y : y > maxy ? y - maxy : 0;
+            final double dz = z < minz ? minz - z : z > maxz ? z - maxz : 0;
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        public double farthestDistanceSquared(final double x, final double y, final double z) {
+            final double dx = Math.max(x - minx, maxx - x);
+            final double dy = Math.max(y - miny, maxy - y);
+            final double dz = Math.max(z - minz, maxz - z);
+            return dx * dx + dy * dy + dz * dz;
+        }
+
+        public double getCenterX() {
+            return minx + (maxx - minx) / 2;
+        }
+
+        public double getCenterY() {
+            return miny + (maxy - miny) / 2;
+        }
+
+        public double getCenterZ() {
+            return minz + (maxz - minz) / 2;
+        }
+
+        public boolean intersects(
+                final double sx, final double sy, final double sz,
+                final double fx, final double fy, final double fz) {
+            return fx >= minx && fy >= miny && fz >= minz && sx < maxx && sy < maxy && sz < maxz;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + minx + "," + miny + "," + minz + " - " + maxx + "," + maxy + "," + maxz + "]";
+        }
+    }
+
+    /**
+     * Builds a {@link FlexibleOctree} with the default node capacity.
+     */
+    public FlexibleOctree() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param elemPerNode
+     *            maximum number of elements per node
+     */
+    public FlexibleOctree(final int elemPerNode) {
+        this(new Box(-1, -1, -1, 1, 1, 1), elemPerNode, null);
+    }
+
+    private FlexibleOctree(final Box bounds, final int elemPerNode, final FlexibleOctree<E> parentNode) {
+        this.bounds = bounds;
+        maxElements = elemPerNode;
+        parent = parentNode;
+        root = this;
+    }
+
+    private void append(final E e, final double x, final double y, final double z) {
+        xs[size] = x;
+        ys[size] = y;
+        zs[size] = z;
+        elements[size] = e;
+        size++;
+    }
+
+    /*
+     * Index of the child whose bounds contain the point. The octant is
+     * computed from the center, but when a former root becomes a child,
+     * rounding may make its bounds slightly disagree with the center of the
+     * new parent.
+     */
+    private int childIndex(final double x, final double y, final double z) {
+        final int selected = (x < bounds.getCenterX() ? 0 : X_BIT)
+                | (y < bounds.getCenterY() ? 0 : Y_BIT)
+                | (z < bounds.getCenterZ() ? 0 : Z_BIT);
+        if (children[selected].contains(x, y, z)) {
+            return selected;
+        }
+        for (int c = 0; c < CHILDREN; c++) {
+            if (children[c].contains(x, y, z)) {
+                return c;
+            }
+        }
+        return selected;
+    }
+
+    private boolean contains(final double x, final double y, final double z) {
+        return bounds.contains(x, y, z);
+    }
+
+    private FlexibleOctree<E> createParent(final double x, final double y, final double z) {
+        /*
+         * Double the size along each axis, towards the point
+         */
+        final double width = bounds.maxx - bounds.minx;
+        final double height = bounds.maxy - bounds.miny;
+        final double depth = bounds.maxz - bounds.minz;
+        final boolean left = x < bounds.getCenterX();
+        final boolean below = y < bounds.getCenterY();
+        final boolean behind = z < bounds.getCenterZ();
+        final FlexibleOctree<E> newRoot = new FlexibleOctree<>(new Box(
+                left ? bounds.minx - width : bounds.minx,
+                below ? bounds.miny - height : bounds.miny,
+                behind ? bounds.minz - depth : bounds.minz,
+                left ? bounds.maxx : bounds.maxx + width,
+                below ? bounds.maxy : bounds.maxy + height,
+                behind ? bounds.maxz : bounds.maxz + depth), maxElements, null);
+        newRoot.subdivide((left ? X_BIT : 0) | (below ? Y_BIT : 0) | (behind ? Z_BIT : 0), this);
+        return newRoot;
+    }
+
+    private void delete(final int index) {
+        final int tail = size - index - 1;
+        if (tail > 0) {
+            System.arraycopy(xs, index + 1, xs, index, tail);
+            System.arraycopy(ys, index + 1, ys, index, tail);
+            System.arraycopy(zs, index + 1, zs, index, tail);
+            System.arraycopy(elements, index + 1, elements, index, tail);
+        }
+        size--;
+        elements[size] = null;
+    }
+
+    /*
+     * Arrays get allocated with room for maxElements entries, and grow beyond
+     * only for buckets.
+     */
+    @SuppressWarnings("unchecked")
+    private void ensureCapacity(final int capacity) {
+        if (elements == null) {
+            final int length = Math.max(maxElements, capacity);
+            xs = new double[length];
+            ys = new double[length];
+            zs = new double[length];
+            elements = (E[]) new Object[length];
+        } else if (elements.length < capacity) {
+            final int length = Math.max(capacity, 2 * elements.length);
+            xs = Arrays.copyOf(xs, length);
+            ys = Arrays.copyOf(ys, length);
+            zs = Arrays.copyOf(zs, length);
+            elements = Arrays.copyOf(elements, length);
+        }
+    }
+
+    @Override
+    public int getDimensions() {
+        return 3;
+    }
+
+    /**
+     * @return the maximum number of elements per node
+     */
+    public int getMaxElementsNumber() {
+        return maxElements;
+    }
+
+    private int indexOf(final E e, final double x, final double y, final double z) {
+        for (int i = 0; i < size; i++) {
+            if (xs[i] == x && ys[i] == y && zs[i] == z && (e == elements[i] || e != null && e.equals(elements[i]))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void insert(final E e, final double... pos) {
+        assert pos.length == 3;
+        insert(e, pos[0], pos[1], pos[2]);
+    }
+
+    /**
+     * Same of {@link #insert(Object, double...)}, but with explicit parameters.
+     *
+     * @param e
+     *            element
+     * @param x
+     *            X
+     * @param y
+     *            Y
+     * @param z
+     *            Z
+     */
+    public void insert(final E e, final double x, final double y, final double z) {
+        while (!root.contains(x, y, z)) {
+            root = root.createParent(x, y, z);
+        }
+        root.insertHere(e, x, y, z);
+    }
+
+    private void insertHere(final E e, final double x, final double y, final double z) {
+        FlexibleOctree<E> cur = this;
+        while (cur.size >= maxElements && (cur.children != null || !cur.isBucketFor(x, y, z))) {
+            if (cur.children == null) {
+                cur.subdivide(-1, null);
+            }
+            cur = cur.children[cur.childIndex(x, y, z)];
+        }
+        cur.insertNode(e, x, y, z);
+    }
+
+    private void insertNode(final E e, final double x, final double y, final double z) {
+        ensureCapacity(size + 1);
+        append(e, x, y, z);
+        updateSubtreeSize(1);
+    }
+
+    /*
+     * A full node without children becomes a bucket, hosting entries beyond
+     * its capacity instead of subdividing, if all its entries share the
+     * coordinates of the new one, or if its volume is too small to be split.
+     * Once beyond capacity, entries are assumed to be all in the same place:
+     * see keeps(int, double, double, double).
+     */
+    private boolean isBucketFor(final double x, final double y, final double z) {
+        if (!isDivisible()) {
+            return true;
+        }
+        final int checks = size > maxElements ? 1 : size;
+        for (int i = 0; i < checks; i++) {
+            if (xs[i] != x || ys[i] != y || zs[i] != z) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * False if rounding prevents the center from splitting the volume in
+     * eight non empty octants.
+     */
+    private boolean isDivisible() {
+        final double cx = bounds.getCenterX();
+        final double cy = bounds.getCenterY();
+        final double cz = bounds.getCenterZ();
+        return bounds.minx < cx && cx < bounds.maxx
+                && bounds.miny < cy && cy < bounds.maxy
+                && bounds.minz < cz && cz < bounds.maxz;
+    }
+
+    /*
+     * True if the entry at index can be updated in place when moving to the
+     * provided position. Entries of a bucket beyond capacity share the same
+     * position, those leaving it must be inserted again so that the bucket
+     * gets split once its elements disperse.
+     */
+    private boolean keeps(final int index, final double x, final double y, final double z) {
+        return contains(x, y, z)
+                && (size <= maxElements || xs[index] == x && ys[index] == y && zs[index] == z || !isDivisible());
+    }
+
+    @Override
+    public boolean move(final E e, final double[] start, final double[] end) {
+        assert start.length == 3;
+        assert end.length == 3;
+        return move(e, start[0], start[1], start[2], end[0], end[1], end[2]);
+    }
+
+    /**
+     * Same of {@link #move(Object, double[], double[])}, but with explicit
+     * parameters.
+     *
+     * @param e
+     *            the element
+     * @param sx
+     *            the start x
+     * @param sy
+     *            the start y
+     * @param sz
+     *            the start z
+     * @param fx
+     *            the final x
+     * @param fy
+     *            the final y
+     * @param fz
+     *            the final z
+     * @return true if the element is found and moved
+     */
+    public boolean move(
+            final E e,
+            final double sx, final double sy, final double sz,
+            final double fx, final double fy, final double fz) {
+        for (FlexibleOctree<E> cur = root; cur.contains(sx, sy, sz); cur = cur.children[cur.childIndex(sx, sy, sz)]) {
+            final int index = cur.indexOf(e, sx, sy, sz);
+            if (index >= 0) {
+                if (cur.keeps(index, fx, fy, fz)) {
+                    /*
+                     * Moved within the same octant: no subtree size changes.
+                     */
+                    cur.delete(index);
+                    cur.append(e, fx, fy, fz);
+                } else {
+                    cur.delete(index);
+                    cur.updateSubtreeSize(-1);
+                    if (cur.parent == null
+                            || !cur.parent.contains(fx, fy, fz)
+                            || !cur.swapMostStatic(e, fx, fy, fz)) {
+                        insert(e, fx, fy, fz);
+                    }
+                }
+                return true;
+            }
+            if (cur.children == null) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public List<E> query(final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 3;
+        assert space[1].length == 3;
+        return query(space[0][0], space[0][1], space[0][2], space[1][0], space[1][1], space[1][2]);
+    }
+
+    @Override
+    public void query(final Consumer<? super E> action, final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 3;
+        assert space[1].length == 3;
+        query(space[0][0], space[0][1], space[0][2], space[1][0], space[1][1], space[1][2], action);
+    }
+
+    /**
+     * Same of {@link #query(double[]...)}, but with explicit parameters.
+     *
+     * @param x1
+     *            X coordinate of the first corner
+     * @param y1
+     *            Y coordinate of the first corner
+     * @param z1
+     *            Z coordinate of the first corner
+     * @param x2
+     *            X coordinate of the opposite corner
+     * @param y2
+     *            Y coordinate of the opposite corner
+     * @param z2
+     *            Z coordinate of the opposite corner
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> query(
+            final double x1, final double y1, final double z1,
+            final double x2, final double y2, final double z2) {
+        final List<E> result = new ArrayList<>();
+        query(x1, y1, z1, x2, y2, z2, result::add);
+        return result;
+    }
+
+    /**
+     * Same of {@link #query(Consumer, double[]...)}, but with explicit
+     * parameters.
+     *
+     * @param x1
+     *            X coordinate of the first corner
+     * @param y1
+     *            Y coordinate of the first corner
+     * @param z1
+     *            Z coordinate of the first corner
+     * @param x2
+     *            X coordinate of the opposite corner
+     * @param y2
+     *            Y coordinate of the opposite corner
+     * @param z2
+     *            Z coordinate of the opposite corner
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     */
+    public void query(
+            final double x1, final double y1, final double z1,
+            final double x2, final double y2, final double z2,
+            final Consumer<? super E> action) {
+        root.queryHere(Math.min(x1, x2), Math.min(y1, y2), Math.min(z1, z2),
+                Math.max(x1, x2), Math.max(y1, y2), Math.max(z1, z2), action);
+    }
+
+    private void queryHere(
+            final double sx, final double sy, final double sz,
+            final double fx, final double fy, final double fz,
+            final Consumer<? super E> action) {
+        if (subtreeSize > 0 && bounds.intersects(sx, sy, sz, fx, fy, fz)) {
+            for (int i = 0; i < size; i++) {
+                final double x = xs[i];
+                final double y = ys[i];
+                final double z = zs[i];
+                if (x >= sx && x < fx && y >= sy && y < fy && z >= sz && z < fz) {
+                    action.accept(elements[i]);
+                }
+            }
+            if (children != null) {
+                for (final FlexibleOctree<E> child : children) {
+                    child.queryHere(sx, sy, sz, fx, fy, fz, action);
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<E> queryRadius(final double[] center, final double radius) {
+        assert center.length == 3;
+        return queryRadius(center[0], center[1], center[2], radius);
+    }
+
+    /**
+     * Same of {@link #queryRadius(double[], double)}, but with explicit
+     * parameters.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param z
+     *            Z coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> queryRadius(final double x, final double y, final double z, final double radius) {
+        final List<E> result = new ArrayList<>();
+        queryRadius(x, y, z, radius, result::add);
+        return result;
+    }
+
+    /**
+     * Feeds each element whose distance from the center is not greater than
+     * radius to the provided action.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param z
+     *            Z coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     */
+    public void queryRadius(
+            final double x, final double y, final double z, final double radius,
+            final Consumer<? super E> action) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        root.queryRadiusHere(x, y, z, radius * radius, action);
+    }
+
+    private void queryRadiusHere(
+            final double cx, final double cy, final double cz, final double squaredRadius,
+            final Consumer<? super E> action) {
+        if (subtreeSize > 0 && bounds.distanceSquared(cx, cy, cz) <= squaredRadius) {
+            if (bounds.farthestDistanceSquared(cx, cy, cz) <= squaredRadius) {
+                visitAll(action);
+            } else {
+                for (int i = 0; i < size; i++) {
+                    final double dx = xs[i] - cx;
+                    final double dy = ys[i] - cy;
+                    final double dz = zs[i] - cz;
+                    if (dx * dx + dy * dy + dz * dz <= squaredRadius) {
+                        action.accept(elements[i]);
+                    }
+                }
+                if (children != null) {
+                    for (final FlexibleOctree<E> child : children) {
+                        child.queryRadiusHere(cx, cy, cz, squaredRadius, action);
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(final E e, final double... pos) {
+        assert pos.length == 3;
+        return remove(e, pos[0], pos[1], pos[2]);
+    }
+
+    /**
+     * Same of {@link #remove(Object, double...)} with explicit parameters.
+     *
+     * @param e
+     *            Element to remove
+     * @param x
+     *            X position of the element
+     * @param y
+     *            Y position of the element
+     * @param z
+     *            Z position of the element
+     * @return true if the element has been found and removed
+     */
+    public boolean remove(final E e, final double x, final double y, final double z) {
+        return root.removeHere(e, x, y, z);
+    }
+
+    private boolean removeHere(final E e, final double x, final double y, final double z) {
+        if (contains(x, y, z)) {
+            final int index = indexOf(e, x, y, z);
+            if (index >= 0) {
+                delete(index);
+                updateSubtreeSize(-1);
+                return true;
+            }
+            if (children != null) {
+                for (final FlexibleOctree<E> child : children) {
+                    if (child.removeHere(e, x, y, z)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * Creates the children, using the provided one, if any, for the octant
+     * at the provided index.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void subdivide(final int index, final FlexibleOctree<E> existing) {
+        children = new FlexibleOctree[CHILDREN];
+        final double cx = bounds.getCenterX();
+        final double cy = bounds.getCenterY();
+        final double cz = bounds.getCenterZ();
+        for (int c = 0; c < CHILDREN; c++) {
+            if (c == index) {
+                children[c] = existing;
+                existing.parent = this;
+                subtreeSize += existing.subtreeSize;
+            } else {
+                final boolean upperX = (c & X_BIT) != 0;
+                final boolean upperY = (c & Y_BIT) != 0;
+                final boolean upperZ = (c & Z_BIT) != 0;
+                children[c] = new FlexibleOctree<>(new Box(
+                        upperX ? cx : bounds.minx, upperY ? cy : bounds.miny, upperZ ? cz : bounds.minz,
+                        upperX ? bounds.maxx : cx, upperY ? bounds.maxy : cy, upperZ ? bounds.maxz : cz),
+                        maxElements, this);
+            }
+        }
+    }
+
+    private boolean swapMostStatic(final E e, final double fx, final double fy, final double fz) {
+        if (size >= maxElements || parent.size > maxElements) {
+            /*
+             * Buckets only host entries in the same place
+             */
+            return false;
+        }
+        for (int i = 0; i < parent.size; i++) {
+            final double tx = parent.xs[i];
+            final double ty = parent.ys[i];
+            final double tz = parent.zs[i];
+            if (contains(tx, ty, tz)) {
+                /*
+                 * Pull down an entry of the parent, and take its place there
+                 */
+                final E target = parent.elements[i];
+                parent.delete(i);
+                parent.updateSubtreeSize(-1);
+                insertNode(target, tx, ty, tz);
+                parent.insertNode(e, fx, fy, fz);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void updateSubtreeSize(final int delta) {
+        for (FlexibleOctree<E> cur = this; cur != null; cur = cur.parent) {
+            cur.subtreeSize += delta;
+        }
+    }
+
+    private void visitAll(final Consumer<? super E> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(elements[i]);
+        }
+        if (children != null) {
+            for (final FlexibleOctree<E> child : children) {
+                child.visitAll(action);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(root.bounds.toString()).append(" with ")
+                .append(root.subtreeSize).append(" elements");
+        return sb.toString();
+    }
+
+}
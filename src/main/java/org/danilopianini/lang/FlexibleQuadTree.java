@@ -6,16 +6,36 @@
  *******************************************************************************/
 package org.danilopianini.lang;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Deque;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.List;
-
-import com.google.common.base.Optional;
-
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import java8.util.Optional;
+import java8.util.Spliterator;
+import java8.util.Spliterators;
+import java8.util.function.BiConsumer;
+import java8.util.function.Consumer;
+import java8.util.function.IntPredicate;
+import java8.util.stream.IntStreams;
+import java8.util.stream.Stream;
 import java8.util.stream.StreamSupport;
 
 /**
@@ -29,66 +49,329 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
      * Default maximum number of entries per node.
      */
     public static final int DEFAULT_CAPACITY = 10;
+    /**
+     * Default minimum number of elements that a subtree must contain for a
+     * query to visit its children in parallel: never. Parallel tasks run in
+     * the common pool, and no crossover with the sequential traversal has
+     * been measured yet, hence parallelism must be asked for explicitly. See
+     * ParallelQueryBenchmark among the tests to pick a threshold.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = Integer.MAX_VALUE;
+    /*
+     * Outcomes of a batch move for each element
+     */
+    private static final byte NOT_FOUND = 0;
+    private static final byte MOVED = 1;
+    private static final byte LEFT = 2;
+    private static final Comparator<Candidate<?>> CLOSEST_FIRST = (a, b) -> Double.compare(a.distance, b.distance);
+    private static final Comparator<Candidate<?>> FARTHEST_FIRST = (a, b) -> Double.compare(b.distance, a.distance);
 
     private final Rectangle2D bounds;
-    private final Deque<QuadTreeEntry<E>> elements;
+    /*
+     * Area where the entries of this node may lie: the bounds, enlarged in
+     * loose trees. Entries get inserted according to the bounds, but stay in
+     * place as long as they move within the reach.
+     */
+    private final Rectangle2D reach;
     private final int maxElements;
+    private final int parallelThreshold;
+    private final double looseness;
+    /*
+     * Shared among all the nodes of the tree, null if elements are not tracked
+     */
+    private final Map<E, FlexibleQuadTree<E>> locations;
+    /*
+     * Entries are stored as parallel arrays, ordered from the oldest to the
+     * most recently inserted. Arrays are allocated upon the first insertion.
+     */
+    private double[] xs;
+    private double[] ys;
+    private E[] elements;
+    private int size;
+    /*
+     * Number of entries in this node and in all its descendants
+     */
+    private int subtreeSize;
 
-    private final List<Optional<FlexibleQuadTree<E>>> children = new ArrayList<>(
-            Collections.nCopies(4, Optional.absent()));
+    /*
+     * Null until the node gets subdivided, then four children indexed by
+     * Child ordinal.
+     */
+    private FlexibleQuadTree<E>[] children;
 
     /**
-     * root is NOT consistent everywhere. It is only guaranteed to be consistent
-     * in the entry point node and in the current root.
+     * root is NOT consistent everywhere. The entry point node holds no entry
+     * and refers to the current root, any other node refers to itself.
      */
     private FlexibleQuadTree<E> root;
 
     private FlexibleQuadTree<E> parent;
 
-    private boolean childrenCreated;
+    /*
+     * Nodes whose epoch differs from the one of the current root may be shared
+     * with snapshots, and get copied before being modified.
+     */
+    private int epoch;
+
+    /*
+     * Changes whenever the entries or the children of this node change, or
+     * when the node gets replaced by a copy. Used to validate cached queries.
+     */
+    private transient int modCount;
+
+    /*
+     * Only set on the entry point, if mutations are being recorded
+     */
+    private transient Journal<E> journal;
+
+    /*
+     * Only set on the entry point, if some region is being watched
+     */
+    private transient RTree<Watch<E>> watches;
 
     private enum Child {
         TR, BR, BL, TL;
     }
 
-    private static class QuadTreeEntry<E> implements Serializable {
-        private static final long serialVersionUID = 9021533648086596986L;
-        private final E element;
-        private final double x, y;
+    /*
+     * Either a node or an element, along with its squared distance from the
+     * point of a nearest neighbor search.
+     */
+    private static final class Candidate<T> {
+        private final T item;
+        private final double distance;
+
+        Candidate(final T item, final double distance) {
+            this.item = item;
+            this.distance = distance;
+        }
+    }
+
+    /*
+     * Append-only log of the mutations. The file starts with magic number and
+     * version (ints), then each record is made of its type (byte), the
+     * coordinates involved (doubles), the length of the element (int) and its
+     * bytes.
+     */
+    private static final class Journal<E> {
+        private static final int MAGIC = 0x4651544A;
+        private static final int VERSION = 1;
+        private static final byte INSERT = 1;
+        private static final byte MOVE = 2;
+        private static final byte REMOVE = 3;
+        private static final int RECORD_SIZE = 64;
+        private final FileChannel channel;
+        private final ChannelOutput out;
+        private final ElementCodec<? super E> codec;
+        private ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+        Journal(final Path file, final ElementCodec<? super E> codec) throws IOException {
+            channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            out = new ChannelOutput(channel, channel.size());
+            this.codec = codec;
+            if (out.position() == 0) {
+                out.putInt(MAGIC);
+                out.putInt(VERSION);
+            }
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+
+        void flush() throws IOException {
+            out.flush();
+            channel.force(false);
+        }
+
+        void insert(final E e, final double x, final double y) throws IOException {
+            write(INSERT, e, x, y);
+        }
+
+        void move(final E e, final double sx, final double sy, final double fx, final double fy) throws IOException {
+            write(MOVE, e, sx, sy, fx, fy);
+        }
+
+        void remove(final E e, final double x, final double y) throws IOException {
+            write(REMOVE, e, x, y);
+        }
+
+        /*
+         * The record gets encoded in full before being appended, so that a
+         * failure never leaves a part of it in the buffer
+         */
+        private void write(final byte type, final E e, final double... coordinates) throws IOException {
+            final byte[] data = codec.encode(e);
+            final int length = 1 + coordinates.length * ChannelOutput.DOUBLE_BYTES + ChannelOutput.INT_BYTES
+                    + data.length;
+            if (record.capacity() < length) {
+                record = ByteBuffer.allocate(Math.max(length, 2 * record.capacity()));
+            }
+            record.clear();
+            record.put(type);
+            for (final double c : coordinates) {
+                record.putDouble(c);
+            }
+            record.putInt(data.length);
+            record.put(data);
+            out.put(record.array(), 0, length);
+        }
+    }
+
+    /*
+     * The nodes a rectangle query visits, along with their modification
+     * counts at the time of the visit
+     */
+    static final class Footprint<E> {
+        private final FlexibleQuadTree<E> root;
+        private final List<FlexibleQuadTree<E>> nodes = new ArrayList<>();
+        private int[] counts = new int[Child.values().length];
+
+        private Footprint(final FlexibleQuadTree<E> root) {
+            this.root = root;
+        }
+
+        private void add(final FlexibleQuadTree<E> node) {
+            if (nodes.size() == counts.length) {
+                counts = Arrays.copyOf(counts, 2 * counts.length);
+            }
+            counts[nodes.size()] = node.modCount;
+            nodes.add(node);
+        }
+    }
+
+    /*
+     * Lazy traversal of the subtrees intersecting a rectangle. Entries of the
+     * current node are scanned one by one, pending subtrees are kept on a
+     * stack, and splitting hands off half of the pending subtrees.
+     */
+    private static final class QuerySpliterator<E> implements Spliterator<E> {
+        private final double sx, sy, fx, fy;
+        private final Deque<FlexibleQuadTree<E>> pending = new ArrayDeque<>();
+        private FlexibleQuadTree<E> current;
+        private int index;
+
+        QuerySpliterator(final double sx, final double sy, final double fx, final double fy) {
+            this.sx = sx;
+            this.sy = sy;
+            this.fx = fx;
+            this.fy = fy;
+        }
 
-        QuadTreeEntry(final E el, final double xp, final double yp) {
-            element = el;
-            x = xp;
-            y = yp;
+        @Override
+        public int characteristics() {
+            return 0;
         }
 
         @Override
-        public boolean equals(final Object obj) {
-            if (obj instanceof QuadTreeEntry<?>) {
-                final QuadTreeEntry<?> e = (QuadTreeEntry<?>) obj;
-                if (samePosition(e)) {
-                    return element == e.element || element != null && element.equals(e.element);
-                }
+        public long estimateSize() {
+            long estimate = current == null ? 0 : current.size - index;
+            for (final FlexibleQuadTree<E> node : pending) {
+                estimate += node.subtreeSize;
+            }
+            return estimate;
+        }
+
+        /*
+         * Makes the next pending subtree current, returns false if none
+         */
+        private boolean expand() {
+            current = pending.poll();
+            index = 0;
+            if (current == null) {
                 return false;
             }
+            if (current.hasChildren()) {
+                for (final FlexibleQuadTree<E> child : current.children) {
+                    offer(child);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(final Consumer<? super E> action) {
+            if (current != null) {
+                for (; index < current.size; index++) {
+                    acceptIfInside(index, action);
+                }
+                current = null;
+            }
+            for (FlexibleQuadTree<E> node = pending.poll(); node != null; node = pending.poll()) {
+                node.queryHere(sx, sy, fx, fy, action);
+            }
+        }
+
+        private boolean acceptIfInside(final int i, final Consumer<? super E> action) {
+            final double x = current.xs[i];
+            final double y = current.ys[i];
+            if (x >= sx && x < fx && y >= sy && y < fy) {
+                action.accept(current.elements[i]);
+                return true;
+            }
             return false;
         }
 
         @Override
-        public int hashCode() {
-            return HashUtils.hash32(x, y, element);
+        public Comparator<? super E> getComparator() {
+            return Spliterators.getComparator(this);
         }
 
-        public boolean isIn(final double sx, final double sy, final double fx, final double fy) {
-            return x >= sx && x < fx && y >= sy && y < fy;
+        @Override
+        public long getExactSizeIfKnown() {
+            return -1;
         }
 
-        public boolean samePosition(final QuadTreeEntry<?> target) {
-            return x == target.x && y == target.y;
+        @Override
+        public boolean hasCharacteristics(final int characteristics) {
+            return Spliterators.hasCharacteristics(this, characteristics);
         }
 
-        public String toString() {
-            return element.toString() + "@[" + x + ", " + y + "]";
+        /*
+         * Queues a subtree, unless it is empty or out of the rectangle
+         */
+        private void offer(final FlexibleQuadTree<E> node) {
+            if (node.subtreeSize > 0 && node.reach.intersects(sx, sy, fx, fy)) {
+                pending.push(node);
+            }
+        }
+
+        @Override
+        public boolean tryAdvance(final Consumer<? super E> action) {
+            do {
+                while (current != null && index < current.size) {
+                    if (acceptIfInside(index++, action)) {
+                        return true;
+                    }
+                }
+            } while (expand());
+            return false;
+        }
+
+        @Override
+        public Spliterator<E> trySplit() {
+            final QuerySpliterator<E> split = new QuerySpliterator<>(sx, sy, fx, fy);
+            while (pending.size() == 1) {
+                /*
+                 * A single pending subtree gets opened up, after handing off
+                 * the rest of the current node
+                 */
+                if (current != null && index < current.size) {
+                    split.current = current;
+                    split.index = index;
+                    current = null;
+                    return split;
+                }
+                expand();
+            }
+            if (pending.isEmpty()) {
+                return null;
+            }
+            for (int i = pending.size() / 2; i > 0; i--) {
+                split.pending.push(pending.pollLast());
+            }
+            return split;
         }
     }
 
@@ -115,6 +398,33 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
             return miny + (maxy - miny) / 2;
         }
 
+        public double distanceSquared(final double x, final double y) {
+            final double dx = x < minx ? minx - x : x > maxx ? x - maxx : 0;
+            final double dy = y < miny ? miny - y : y > maxy ? y - maxy : 0;
+            return dx * dx + dy * dy;
+        }
+
+        public double distanceSquared(final Rectangle2D other) {
+            final double dx = Math.max(0, Math.max(other.minx - maxx, minx - other.maxx));
+            final double dy = Math.max(0, Math.max(other.miny - maxy, miny - other.maxy));
+            return dx * dx + dy * dy;
+        }
+
+        /*
+         * Same center, sides multiplied by factor
+         */
+        public Rectangle2D enlarge(final double factor) {
+            final double dx = (maxx - minx) * (factor - 1) / 2;
+            final double dy = (maxy - miny) * (factor - 1) / 2;
+            return new Rectangle2D(minx - dx, miny - dy, maxx + dx, maxy + dy);
+        }
+
+        public double farthestDistanceSquared(final double x, final double y) {
+            final double dx = Math.max(x - minx, maxx - x);
+            final double dy = Math.max(y - miny, maxy - y);
+            return dx * dx + dy * dy;
+        }
+
         public double getMaxX() {
             return maxx;
         }
@@ -131,6 +441,10 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
             return miny;
         }
 
+        public boolean isInside(final double sx, final double sy, final double fx, final double fy) {
+            return minx >= sx && miny >= sy && maxx <= fx && maxy <= fy;
+        }
+
         public boolean intersects(final double sx, final double sy, final double fx, final double fy) {
             return fx >= minx && fy >= miny && sx < maxx && sy < maxy;
         }
@@ -141,39 +455,129 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
         }
     }
 
-    private boolean moveFromNode(
-            final FlexibleQuadTree<E> root,
-            final E e,
-            final double sx, final double sy,
-            final double fx, final double fy) {
-        for (FlexibleQuadTree<E> cur = root; cur.contains(sx, sy); cur = cur.selectChild(sx, sy)) {
-            if (cur.elements.remove(new QuadTreeEntry<E>(e, sx, sy))) {
+    /*
+     * Read only view over nodes that the tree will never modify again
+     */
+    private static final class Snapshot<E> implements SpatialIndex<E> {
+        private static final long serialVersionUID = 1L;
+        private final FlexibleQuadTree<E> root;
+
+        Snapshot(final FlexibleQuadTree<E> root) {
+            this.root = root;
+        }
+
+        @Override
+        public int getDimensions() {
+            return 2;
+        }
+
+        @Override
+        public void insert(final E element, final double... position) {
+            throw new UnsupportedOperationException("Snapshots are immutable.");
+        }
+
+        @Override
+        public boolean move(final E element, final double[] start, final double[] end) {
+            throw new UnsupportedOperationException("Snapshots are immutable.");
+        }
+
+        @Override
+        public List<E> query(final double[]... space) {
+            assert space.length == 2;
+            final List<E> result = new ArrayList<>();
+            root.queryInto(Math.min(space[0][0], space[1][0]), Math.min(space[0][1], space[1][1]),
+                    Math.max(space[0][0], space[1][0]), Math.max(space[0][1], space[1][1]), result);
+            return result;
+        }
+
+        @Override
+        public void query(final Consumer<? super E> action, final double[]... space) {
+            assert space.length == 2;
+            root.queryHere(Math.min(space[0][0], space[1][0]), Math.min(space[0][1], space[1][1]),
+                    Math.max(space[0][0], space[1][0]), Math.max(space[0][1], space[1][1]), action);
+        }
+
+        @Override
+        public List<E> queryRadius(final double[] center, final double radius) {
+            assert center.length == 2;
+            if (!(radius >= 0)) {
+                throw new IllegalArgumentException("Invalid radius: " + radius);
+            }
+            final List<E> result = new ArrayList<>();
+            root.queryRadiusHere(center[0], center[1], radius * radius, result::add);
+            return result;
+        }
+
+        @Override
+        public boolean remove(final E element, final double... position) {
+            throw new UnsupportedOperationException("Snapshots are immutable.");
+        }
+
+        @Override
+        public String toString() {
+            return "Snapshot of " + root.subtreeSize + " elements";
+        }
+    }
+
+    /*
+     * A rectangle, or a circle if the radius is not NaN, along with its
+     * listener
+     */
+    private static final class Watch<E> {
+        private final double minx, miny, maxx, maxy;
+        private final double cx, cy, squaredRadius;
+        private final RegionListener<? super E> listener;
+
+        Watch(
+                final double minx, final double miny, final double maxx, final double maxy,
+                final double radius, final RegionListener<? super E> listener) {
+            this.minx = minx;
+            this.miny = miny;
+            this.maxx = maxx;
+            this.maxy = maxy;
+            cx = minx + radius;
+            cy = miny + radius;
+            squaredRadius = radius * radius;
+            this.listener = listener;
+        }
+
+        /*
+         * Same semantics of query and queryRadius
+         */
+        boolean contains(final double x, final double y) {
+            if (Double.isNaN(squaredRadius)) {
+                return x >= minx && x < maxx && y >= miny && y < maxy;
+            }
+            final double dx = x - cx;
+            final double dy = y - cy;
+            return dx * dx + dy * dy <= squaredRadius;
+        }
+    }
+
+    private void moveEntry(final FlexibleQuadTree<E> node, final int index, final E e, final double fx, final double fy) {
+        if (node.keeps(index, fx, fy)) {
+            /*
+             * Moved within the reach of the same node: no subtree size
+             * changes.
+             */
+            node.delete(index);
+            node.append(e, fx, fy);
+        } else {
+            node.removeAt(index);
+            if (node.parent == null
+                    || !node.parent.reaches(fx, fy)
+                    || !node.swapMostStatic(e, fx, fy)) {
                 /*
-                 * Node found.
+                 * In case:
+                 *  - we are the root
+                 *  - we moved outside the parent's area
+                 *  - the swapping operation failed
+                 * Entries leaving a bucket never get swapped, as the bucket is
+                 * still full.
                  */
-                if (cur.contains(fx, fy)) {
-                    /*
-                     * Moved within the same quadrant.
-                     */
-                    cur.insertNode(e, fx, fy);
-                } else if (cur.parent == null
-                        || !cur.parent.contains(fx, fy)
-                        || !cur.swapMostStatic(e, fx, fy)) {
-                    /*
-                     * In case:
-                     *  - we are the root
-                     *  - we moved outside the parent's area
-                     *  - the swapping operation failed
-                     */
-                    insert(e, fx, fy);
-                }
-                return true;
-            }
-            if (!cur.hasChildren()) {
-                return false;
+                place(e, fx, fy);
             }
         }
-        return false;
     }
 
     /**
@@ -185,12 +589,43 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
 
     private FlexibleQuadTree(
             final double minx, final double maxx, final double miny, final double maxy,
-            final int elemPerQuad, final FlexibleQuadTree<E> rootNode, final FlexibleQuadTree<E> parentNode) {
+            final int elemPerQuad, final int parallelism, final double looseness,
+            final Map<E, FlexibleQuadTree<E>> locationMap, final FlexibleQuadTree<E> parentNode) {
         bounds = new Rectangle2D(minx, miny, maxx, maxy);
-        elements = new LinkedList<>();
+        reach = looseness == 1 ? bounds : bounds.enlarge(looseness);
         maxElements = elemPerQuad;
+        parallelThreshold = parallelism;
+        this.looseness = looseness;
+        locations = locationMap;
+        parent = parentNode;
+        root = this;
+    }
+
+    /*
+     * Copies the content of a node. Children are shared, and get copied in
+     * turn when modified.
+     */
+    private FlexibleQuadTree(final FlexibleQuadTree<E> original, final FlexibleQuadTree<E> parentNode, final int epoch) {
+        bounds = original.bounds;
+        reach = original.reach;
+        maxElements = original.maxElements;
+        parallelThreshold = original.parallelThreshold;
+        looseness = original.looseness;
+        locations = original.locations;
         parent = parentNode;
-        root = rootNode == null ? this : rootNode;
+        root = this;
+        this.epoch = epoch;
+        modCount = original.modCount;
+        size = original.size;
+        subtreeSize = original.subtreeSize;
+        if (original.elements != null) {
+            xs = original.xs.clone();
+            ys = original.ys.clone();
+            elements = original.elements.clone();
+        }
+        if (original.children != null) {
+            children = original.children.clone();
+        }
     }
 
     /**
@@ -198,144 +633,994 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
      *            maximum number of elements per quad
      */
     public FlexibleQuadTree(final int elemPerQuad) {
-        this(-1, 1, -1, 1, elemPerQuad, null, null);
+        this(elemPerQuad, DEFAULT_PARALLEL_THRESHOLD);
     }
 
-    private double centerX() {
-        return bounds.getCenterX();
+    /**
+     * @param elemPerQuad
+     *            maximum number of elements per quad
+     * @param parallelThreshold
+     *            minimum number of elements that a subtree must contain for
+     *            {@link #query(double, double, double, double)} to search its
+     *            children in parallel. Smaller subtrees are searched
+     *            sequentially. Use {@link Integer#MAX_VALUE} to never run in
+     *            parallel.
+     */
+    public FlexibleQuadTree(final int elemPerQuad, final int parallelThreshold) {
+        this(elemPerQuad, parallelThreshold, false);
     }
 
-    private double centerY() {
-        return bounds.getCenterY();
+    /**
+     * @param elemPerQuad
+     *            maximum number of elements per quad
+     * @param parallelThreshold
+     *            minimum number of elements that a subtree must contain for
+     *            {@link #query(double, double, double, double)} to search its
+     *            children in parallel
+     * @param trackElements
+     *            if true, the tree keeps track of the node hosting each
+     *            element, enabling {@link #move(Object, double, double)} and
+     *            {@link #remove(Object)}. Elements are tracked by identity,
+     *            hence each instance can be inserted only once, and all
+     *            moves and removals match elements by identity.
+     */
+    public FlexibleQuadTree(final int elemPerQuad, final int parallelThreshold, final boolean trackElements) {
+        this(elemPerQuad, parallelThreshold, trackElements, 1);
     }
 
-    private boolean contains(final double x, final double y) {
-        return bounds.contains(x, y);
+    /**
+     * Builds a loose tree: each node hosts the entries lying within its area
+     * enlarged by the provided factor around its center. Entries are inserted
+     * according to the actual areas, but get updated in place as long as
+     * they move within the enlarged area of their node, hence elements
+     * jittering around the boundary of a node seldom get re-inserted. Queries
+     * prune nodes according to the enlarged areas, hence they visit more
+     * nodes the looser the tree. Batch moves find elements that left the
+     * actual area of their node by searching them one by one.
+     * 
+     * @param elemPerQuad
+     *            maximum number of elements per quad
+     * @param parallelThreshold
+     *            minimum number of elements that a subtree must contain for
+     *            {@link #query(double, double, double, double)} to search its
+     *            children in parallel
+     * @param trackElements
+     *            if true, the tree keeps track of the node hosting each
+     *            element, see
+     *            {@link #FlexibleQuadTree(int, int, boolean)}
+     * @param looseness
+     *            ratio between the side of the area where a node accepts
+     *            entries and the side of the node, at least 1. With 1, the
+     *            tree is a regular quadtree. 2 is a common choice.
+     */
+    public FlexibleQuadTree(
+            final int elemPerQuad, final int parallelThreshold, final boolean trackElements,
+            final double looseness) {
+        this(-1, 1, -1, 1, elemPerQuad, parallelThreshold, looseness,
+                trackElements ? new IdentityHashMap<>() : null, null);
+        if (!(looseness >= 1) || Double.isInfinite(looseness)) {
+            throw new IllegalArgumentException("Invalid looseness: " + looseness);
+        }
+        detachRoot();
     }
 
-    private FlexibleQuadTree<E> create(
-            final double minx, final double maxx, final double miny, final double maxy,
-            final FlexibleQuadTree<E> father) {
-        return new FlexibleQuadTree<E>(minx, maxx, miny, maxy, getMaxElementsNumber(), root, father);
+    /*
+     * Builds a tree whose root initially covers the provided area
+     */
+    FlexibleQuadTree(
+            final double minx, final double miny, final double maxx, final double maxy,
+            final int elemPerQuad, final int parallelThreshold) {
+        this(minx, maxx, miny, maxy, elemPerQuad, parallelThreshold, 1, null, null);
+        detachRoot();
     }
 
-    private void createChildIfAbsent(final Child c) {
-        if (!children.get(c.ordinal()).isPresent()) {
-            setChild(c, create(minX(c), maxX(c), minY(c), maxY(c), this));
+    private void addWatch(final Watch<E> w) {
+        if (watches == null) {
+            watches = new RTree<>();
         }
+        watches.insert(w, w.minx, w.miny, w.maxx, w.maxy);
     }
 
-    private void createParent(final double x, final double y) {
-        /*
-         * Determine where the parent should be
-         */
-        if (x < centerX()) {
-            final double minx = 2 * minX() - maxX();
-            if (y < centerY()) {
-                /*
-                 * This will be TR child of the new parent
-                 */
-                root = create(minx, maxX(), 2 * minY() - maxY(), maxY(), null);
-                root.setChild(Child.TR, this);
-            } else {
-                /*
-                 * This will be BR child of the new parent
-                 */
-                root = create(minx, maxX(), minY(), 2 * maxY() - minY(), null);
-                root.setChild(Child.BR, this);
-            }
-        } else {
-            final double maxx = 2 * maxX() - minX();
-            if (y < centerY()) {
-                /*
-                 * This will be TL child of the new parent
-                 */
-                root = create(minX(), maxx, 2 * minY() - maxY(), maxY(), null);
-                root.setChild(Child.TL, this);
-            } else {
-                /*
-                 * This will be BL child of the new parent
-                 */
-                root = create(minX(), maxx, minY(), 2 * maxY() - minY(), null);
-                root.setChild(Child.BL, this);
+    private void append(final E e, final double x, final double y) {
+        xs[size] = x;
+        ys[size] = y;
+        elements[size] = e;
+        size++;
+        modCount++;
+    }
+
+    private void bulkInsert(final E[] es, final double[] x, final double[] y) {
+        double minx = x[0];
+        double miny = y[0];
+        double maxx = minx;
+        double maxy = miny;
+        final int[] order = new int[es.length];
+        for (int i = 0; i < es.length; i++) {
+            order[i] = i;
+            minx = Math.min(minx, x[i]);
+            miny = Math.min(miny, y[i]);
+            maxx = Math.max(maxx, x[i]);
+            maxy = Math.max(maxy, y[i]);
+        }
+        while (!root.contains(minx, miny)) {
+            root = root.createParent(minx, miny);
+        }
+        while (!root.contains(maxx, maxy)) {
+            root = root.createParent(maxx, maxy);
+        }
+        root.insertAllHere(es, x, y, order, 0, order.length);
+    }
+
+    /*
+     * Index of the child whose bounds contain the point, or the number of
+     * children if none does.
+     */
+    private int childIndex(final double x, final double y) {
+        final int selected = selectQuadrant(x, y).ordinal();
+        if (children[selected].contains(x, y)) {
+            return selected;
+        }
+        for (int c = 0; c < children.length; c++) {
+            if (children[c].contains(x, y)) {
+                return c;
             }
         }
-        /*
-         * A bit cryptic, but the root of the new root is the root itself.
-         * Otherwise, the root would point to the previous root.
-         */
-        root.root = root;
-        root.subdivide();
+        return children.length;
     }
 
-    private FlexibleQuadTree<E> getChild(final Child c) {
-        return children.get(c.ordinal()).get();
+    private double centerX() {
+        return bounds.getCenterX();
     }
 
-    @Override
-    public int getDimensions() {
-        return 2;
+    private double centerY() {
+        return bounds.getCenterY();
     }
 
-    /**
-     * @return the maximum number of elements per node
+    /*
+     * Grid cell of a coordinate, clamped to guard against rounding
      */
-    public int getMaxElementsNumber() {
-        return maxElements;
+    private static int cell(final double coordinate, final double min, final double scale, final int cells) {
+        return Math.min(cells - 1, (int) ((coordinate - min) * scale));
     }
 
-    private boolean hasChildren() {
-        if (!childrenCreated) {
-            childrenCreated = StreamSupport.stream(children).allMatch(Optional::isPresent);
+    /*
+     * Pulls all the entries of the descendants into this node, which must be
+     * able to host them, and drops the children. Descendants are only read,
+     * hence they can be shared with snapshots.
+     */
+    private void collapse() {
+        assert subtreeSize <= maxElements;
+        ensureCapacity(subtreeSize);
+        for (final FlexibleQuadTree<E> child : children) {
+            child.drainInto(this);
         }
-        return childrenCreated;
+        children = null;
+        modCount++;
     }
 
-    private boolean hasSpace() {
-        return elements.size() < maxElements;
+    /*
+     * Collapses the topmost ancestor whose subtree holds at most half the node
+     * capacity, if it has children. The margin avoids collapsing and
+     * subdividing the same node over and over as elements come and go. Only
+     * to be called on nodes reached through writable paths.
+     */
+    private void collapseSparseAncestor() {
+        final int threshold = maxElements / 2;
+        if (subtreeSize <= threshold) {
+            FlexibleQuadTree<E> top = this;
+            while (top.parent != null && top.parent.subtreeSize <= threshold) {
+                top = top.parent;
+            }
+            if (top.hasChildren()) {
+                top.collapse();
+            }
+        }
     }
 
-    @Override
-    public void insert(final E e, final double... pos) {
-        assert pos.length == 2;
-        insert(e, pos[0], pos[1]);
+    /*
+     * Copies the entries of the subtree from the provided offset on, returns
+     * the next free position
+     */
+    private int collectInto(final E[] es, final double[] x, final double[] y, final int from) {
+        int next = from;
+        for (int i = 0; i < size; i++) {
+            es[next] = elements[i];
+            x[next] = xs[i];
+            y[next] = ys[i];
+            next++;
+        }
+        if (hasChildren()) {
+            for (final FlexibleQuadTree<E> child : children) {
+                next = child.collectInto(es, x, y, next);
+            }
+        }
+        return next;
     }
 
     /**
-     * Same of {@link #insert(Object, double...)}, but with explicit parameters.
-     * 
-     * @param e
-     *            element
-     * @param x
-     *            X
-     * @param y
-     *            Y
+     * Reduces the tree to its minimal shape. If all the elements lie in a
+     * single quadrant of the root, for as many levels as possible, the tree
+     * gets rebuilt with that quadrant as root, as per
+     * {@link #insertAll(Object[], double[], double[])}. Otherwise, subtrees
+     * that can fit in a single node get collapsed into their top node.
+     * Removals already collapse subtrees that fall below half the node
+     * capacity, but only this method shrinks the root back after the regions
+     * around the elements have been emptied, e.g. once an outlier is gone.
      */
-    public void insert(final E e, final double x, final double y) {
+    @SuppressWarnings("unchecked")
+    public void compact() {
+        final List<FlexibleQuadTree<E>> path = new ArrayList<>();
+        FlexibleQuadTree<E> target = root;
+        for (int c = target.onlyPopulatedChild(path); c >= 0; c = target.onlyPopulatedChild(path)) {
+            path.add(target);
+            target = target.children[c];
+        }
+        if (target == root) {
+            root.compactHere();
+        } else {
+            final int n = root.subtreeSize;
+            final E[] es = (E[]) new Object[n];
+            final double[] x = new double[n];
+            final double[] y = new double[n];
+            root.collectInto(es, x, y, 0);
+            /*
+             * In loose trees, the entries of the target subtree may lie
+             * outside its bounds: the new root grows to include them.
+             */
+            root = root.create(target.minX(), target.maxX(), target.minY(), target.maxY(), null);
+            bulkInsert(es, x, y);
+        }
+    }
+
+    private void compactHere() {
+        if (hasChildren()) {
+            if (subtreeSize <= maxElements) {
+                collapse();
+            } else {
+                for (int c = 0; c < children.length; c++) {
+                    if (children[c].isCompactable()) {
+                        writableChild(c).compactHere();
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean contains(final double x, final double y) {
+        return bounds.contains(x, y);
+    }
+
+    /*
+     * Copies all the entries in the provided arrays, which must be of size()
+     * length at least
+     */
+    void copyEntries(final E[] es, final double[] x, final double[] y) {
+        root.collectInto(es, x, y, 0);
+    }
+
+    /**
+     * Counts the elements that {@link #query(double, double, double, double)}
+     * would return, without collecting them. Subtrees lying completely inside
+     * the rectangle are counted without visiting their entries.
+     * 
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return the number of elements in range
+     */
+    public int count(final double x1, final double y1, final double x2, final double y2) {
+        return root.countHere(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2));
+    }
+
+    private int countHere(final double sx, final double sy, final double fx, final double fy) {
+        if (subtreeSize == 0 || !reach.intersects(sx, sy, fx, fy)) {
+            return 0;
+        }
+        if (reach.isInside(sx, sy, fx, fy)) {
+            return subtreeSize;
+        }
+        int result = 0;
+        for (int i = 0; i < size; i++) {
+            final double x = xs[i];
+            final double y = ys[i];
+            if (x >= sx && x < fx && y >= sy && y < fy) {
+                result++;
+            }
+        }
+        if (hasChildren()) {
+            for (final FlexibleQuadTree<E> child : children) {
+                result += child.countHere(sx, sy, fx, fy);
+            }
+        }
+        return result;
+    }
+
+    private FlexibleQuadTree<E> create(
+            final double minx, final double maxx, final double miny, final double maxy,
+            final FlexibleQuadTree<E> father) {
+        final FlexibleQuadTree<E> result = new FlexibleQuadTree<E>(
+                minx, maxx, miny, maxy, getMaxElementsNumber(), parallelThreshold, looseness, locations, father);
+        result.epoch = epoch;
+        return result;
+    }
+
+    private void createChildIfAbsent(final Child c) {
+        if (children == null || children[c.ordinal()] == null) {
+            setChild(c, create(minX(c), maxX(c), minY(c), maxY(c), this));
+        }
+    }
+
+    private FlexibleQuadTree<E> createParent(final double x, final double y) {
         /*
-         * I must insert starting from the root. If the root does not contain
-         * the coordinates, then the tree should be expanded upwards
+         * Determine where the parent should be
          */
-        for (; !root.contains(x, y); root = root.root) {
-            root.createParent(x, y);
+        final FlexibleQuadTree<E> newRoot;
+        if (x < centerX()) {
+            final double minx = 2 * minX() - maxX();
+            if (y < centerY()) {
+                /*
+                 * This will be TR child of the new parent
+                 */
+                newRoot = create(minx, maxX(), 2 * minY() - maxY(), maxY(), null);
+                newRoot.setChild(Child.TR, this);
+            } else {
+                /*
+                 * This will be BR child of the new parent
+                 */
+                newRoot = create(minx, maxX(), minY(), 2 * maxY() - minY(), null);
+                newRoot.setChild(Child.BR, this);
+            }
+        } else {
+            final double maxx = 2 * maxX() - minX();
+            if (y < centerY()) {
+                /*
+                 * This will be TL child of the new parent
+                 */
+                newRoot = create(minX(), maxx, 2 * minY() - maxY(), maxY(), null);
+                newRoot.setChild(Child.TL, this);
+            } else {
+                /*
+                 * This will be BL child of the new parent
+                 */
+                newRoot = create(minX(), maxx, minY(), 2 * maxY() - minY(), null);
+                newRoot.setChild(Child.BL, this);
+            }
+        }
+        newRoot.subdivide();
+        return newRoot;
+    }
+
+    private void delete(final int index) {
+        final int tail = size - index - 1;
+        if (tail > 0) {
+            System.arraycopy(xs, index + 1, xs, index, tail);
+            System.arraycopy(ys, index + 1, ys, index, tail);
+            System.arraycopy(elements, index + 1, elements, index, tail);
+        }
+        size--;
+        elements[size] = null;
+        modCount++;
+    }
+
+    /*
+     * The entry point only refers to the actual root. Being held by the user,
+     * it must never become part of a snapshot, or it would keep that version
+     * of the tree alive.
+     */
+    private void detachRoot() {
+        root = new FlexibleQuadTree<>(this, null, epoch);
+    }
+
+    /*
+     * Stops the journal after a failed write, closing it as far as possible
+     */
+    private void discardJournal(final IOException cause) {
+        final Journal<E> failed = journal;
+        journal = null;
+        try {
+            failed.close();
+        } catch (IOException ex) {
+            cause.addSuppressed(ex);
+        }
+    }
+
+    private void drainInto(final FlexibleQuadTree<E> target) {
+        for (int i = 0; i < size; i++) {
+            target.append(elements[i], xs[i], ys[i]);
+            if (locations != null) {
+                locations.put(elements[i], target);
+            }
+        }
+        if (hasChildren()) {
+            for (final FlexibleQuadTree<E> child : children) {
+                child.drainInto(target);
+            }
+        }
+    }
+
+    /*
+     * Arrays get allocated with room for maxElements entries, and grow beyond
+     * only for buckets.
+     */
+    @SuppressWarnings("unchecked")
+    private void ensureCapacity(final int capacity) {
+        if (elements == null) {
+            final int length = Math.max(maxElements, capacity);
+            xs = new double[length];
+            ys = new double[length];
+            elements = (E[]) new Object[length];
+        } else if (elements.length < capacity) {
+            final int length = Math.max(capacity, 2 * elements.length);
+            xs = Arrays.copyOf(xs, length);
+            ys = Arrays.copyOf(ys, length);
+            elements = Arrays.copyOf(elements, length);
+        }
+    }
+
+    private FlexibleQuadTree<E> find(final E e, final double x, final double y) {
+        return find(e, x, y, locations == null);
+    }
+
+    /*
+     * Node of this subtree hosting the entry, null if not found. Nodes are
+     * only read, hence none gets copied, even if shared with some snapshot.
+     * In loose trees the reaches of siblings overlap: the child whose bounds
+     * contain the position is tried first, then the others.
+     */
+    private FlexibleQuadTree<E> find(final E e, final double x, final double y, final boolean byEquality) {
+        if (!reaches(x, y)) {
+            return null;
+        }
+        if (indexOf(e, x, y, byEquality) >= 0) {
+            return this;
+        }
+        if (hasChildren()) {
+            /*
+             * Do not rely on selectChild() only: when a former root becomes a
+             * child, rounding may make its bounds slightly disagree with the
+             * center of the new parent.
+             */
+            final int first = selectQuadrant(x, y).ordinal();
+            for (int i = 0; i < children.length; i++) {
+                final FlexibleQuadTree<E> child = children[(first + i) % children.length];
+                if (child.subtreeSize > 0) {
+                    final FlexibleQuadTree<E> host = child.find(e, x, y, byEquality);
+                    if (host != null) {
+                        return host;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes the mutations recorded so far to the journal file, and forces
+     * them to the storage device. Checkpointing this way costs as much as the
+     * changes made since the previous flush. Does nothing if no journal is
+     * active.
+     * 
+     * @throws IOException
+     *             if the journal can not be written, in which case it gets
+     *             stopped
+     */
+    public void flushJournal() throws IOException {
+        if (journal != null) {
+            try {
+                journal.flush();
+            } catch (IOException ex) {
+                discardJournal(ex);
+                throw ex;
+            }
+        }
+    }
+
+    /*
+     * Records the nodes that a query on the rectangle would visit
+     */
+    Footprint<E> footprint(final double sx, final double sy, final double fx, final double fy) {
+        final Footprint<E> result = new Footprint<>(root);
+        root.footprintHere(sx, sy, fx, fy, result);
+        return result;
+    }
+
+    private void footprintHere(
+            final double sx, final double sy, final double fx, final double fy,
+            final Footprint<E> footprint) {
+        if (reach.intersects(sx, sy, fx, fy)) {
+            footprint.add(this);
+            if (hasChildren()) {
+                for (final FlexibleQuadTree<E> child : children) {
+                    child.footprintHere(sx, sy, fx, fy, footprint);
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds each pair of elements whose distance is not greater than radius
+     * to the provided action, exactly once and in no particular order. The
+     * tree gets walked once: pairs of nodes whose bounds are farther than
+     * radius are skipped, and no per element query is performed.
+     * 
+     * @param radius
+     *            the maximum distance between the elements of a pair
+     * @param action
+     *            the {@link BiConsumer} to feed with each pair
+     */
+    public void forEachPairWithin(final double radius, final BiConsumer<? super E, ? super E> action) {
+        forEachPairWithin(radius, action, false);
+    }
+
+    /**
+     * Same of {@link #forEachPairWithin(double, BiConsumer)}, optionally
+     * visiting in parallel the subtrees larger than the parallel threshold.
+     * In this case, the action must be thread safe.
+     * 
+     * @param radius
+     *            the maximum distance between the elements of a pair
+     * @param action
+     *            the {@link BiConsumer} to feed with each pair
+     * @param parallel
+     *            true if large subtrees should be visited in parallel
+     */
+    public void forEachPairWithin(
+            final double radius, final BiConsumer<? super E, ? super E> action, final boolean parallel) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        root.pairsHere(radius * radius, action, parallel);
+    }
+
+    @Override
+    public int getDimensions() {
+        return 2;
+    }
+
+    /**
+     * @return the ratio between the side of the area where a node accepts
+     *         entries and the side of the node, 1 if the tree is not loose
+     */
+    public double getLooseness() {
+        return looseness;
+    }
+
+    /**
+     * @return the maximum number of elements per node
+     */
+    public int getMaxElementsNumber() {
+        return maxElements;
+    }
+
+    /**
+     * @return the minimum number of elements that a subtree must contain to
+     *         be queried in parallel
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    private boolean hasChildren() {
+        /*
+         * Children are created all at once by subdivide()
+         */
+        return children != null && children[children.length - 1] != null;
+    }
+
+    private boolean hasSpace() {
+        return size < maxElements;
+    }
+
+    private int indexOf(final E e) {
+        for (int i = 0; i < size; i++) {
+            if (e == elements[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Tracked elements are matched by identity, as the location map does,
+     * the others by equality
+     */
+    private int indexOf(final E e, final double x, final double y) {
+        return indexOf(e, x, y, locations == null);
+    }
+
+    private int indexOf(final E e, final double x, final double y, final boolean byEquality) {
+        for (int i = 0; i < size; i++) {
+            if (xs[i] == x && ys[i] == y && (e == elements[i] || byEquality && e != null && e.equals(elements[i]))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Divides the rectangle in a grid of equal cells, and counts the elements
+     * in each cell, e.g. to draw a density map. Each element that
+     * {@link #query(double, double, double, double)} would return is counted
+     * in exactly one cell. Subtrees lying completely inside a cell are counted
+     * without visiting their entries.
+     * 
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param columns
+     *            number of cells along X
+     * @param rows
+     *            number of cells along Y
+     * @return the counts, indexed by column (from the smallest X) and row
+     *         (from the smallest Y)
+     */
+    public int[][] histogram(
+            final double x1, final double y1, final double x2, final double y2,
+            final int columns, final int rows) {
+        if (columns < 1 || rows < 1) {
+            throw new IllegalArgumentException("Invalid grid: " + columns + "x" + rows);
+        }
+        final int[][] counts = new int[columns][rows];
+        final double sx = Math.min(x1, x2);
+        final double sy = Math.min(y1, y2);
+        final double fx = Math.max(x1, x2);
+        final double fy = Math.max(y1, y2);
+        if (sx < fx && sy < fy) {
+            root.histogramHere(sx, sy, fx, fy, columns / (fx - sx), rows / (fy - sy), counts);
+        }
+        return counts;
+    }
+
+    private void histogramHere(
+            final double sx, final double sy, final double fx, final double fy,
+            final double xScale, final double yScale, final int[][] counts) {
+        if (subtreeSize == 0 || !reach.intersects(sx, sy, fx, fy)) {
+            return;
+        }
+        if (reach.isInside(sx, sy, fx, fy)) {
+            /*
+             * Cells are monotone in the coordinates: if the extreme points
+             * share the cell, so does the whole node
+             */
+            final double lastX = Math.nextAfter(reach.getMaxX(), Double.NEGATIVE_INFINITY);
+            final double lastY = Math.nextAfter(reach.getMaxY(), Double.NEGATIVE_INFINITY);
+            final int column = cell(reach.getMinX(), sx, xScale, counts.length);
+            final int row = cell(reach.getMinY(), sy, yScale, counts[0].length);
+            if (column == cell(lastX, sx, xScale, counts.length) && row == cell(lastY, sy, yScale, counts[0].length)) {
+                counts[column][row] += subtreeSize;
+                return;
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            final double x = xs[i];
+            final double y = ys[i];
+            if (x >= sx && x < fx && y >= sy && y < fy) {
+                counts[cell(x, sx, xScale, counts.length)][cell(y, sy, yScale, counts[0].length)]++;
+            }
+        }
+        if (hasChildren()) {
+            for (final FlexibleQuadTree<E> child : children) {
+                child.histogramHere(sx, sy, fx, fy, xScale, yScale, counts);
+            }
+        }
+    }
+
+    @Override
+    public void insert(final E e, final double... pos) {
+        assert pos.length == 2;
+        insert(e, pos[0], pos[1]);
+    }
+
+    /**
+     * Same of {@link #insert(Object, double...)}, but with explicit parameters.
+     * 
+     * @param e
+     *            element
+     * @param x
+     *            X
+     * @param y
+     *            Y
+     */
+    public void insert(final E e, final double x, final double y) {
+        if (locations != null && locations.containsKey(e)) {
+            throw new IllegalArgumentException(e + " is already in this tree.");
+        }
+        place(e, x, y);
+        inserted(e, x, y);
+    }
+
+    /*
+     * Records an insertion in the journal and notifies the watches
+     */
+    private void inserted(final E e, final double x, final double y) {
+        if (journal != null) {
+            try {
+                journal.insert(e, x, y);
+            } catch (IOException ex) {
+                throw journalFailure("insertion", e, ex);
+            }
+        }
+        if (watches != null) {
+            watches.query(x, y, x, y, w -> {
+                if (w.contains(x, y)) {
+                    w.listener.entered(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Inserts a batch of elements at once. The tree gets expanded only once to
+     * include all the points, then points are distributed top-down: each node
+     * takes as many as it can host and partitions the remaining ones among
+     * its children in a single pass. The resulting tree obeys the same rules
+     * of one built via {@link #insert(Object, double, double)}.
+     * 
+     * @param es
+     *            the elements
+     * @param x
+     *            X coordinates, x[i] is the X of es[i]
+     * @param y
+     *            Y coordinates, y[i] is the Y of es[i]
+     */
+    public void insertAll(final E[] es, final double[] x, final double[] y) {
+        if (es.length != x.length || es.length != y.length) {
+            throw new IllegalArgumentException("Got " + es.length + " elements, "
+                    + x.length + " X coordinates, and " + y.length + " Y coordinates.");
+        }
+        if (es.length == 0) {
+            return;
+        }
+        if (locations != null) {
+            final Set<E> batch = Collections.newSetFromMap(new IdentityHashMap<>());
+            for (final E e : es) {
+                if (locations.containsKey(e) || !batch.add(e)) {
+                    throw new IllegalArgumentException(e + " is already in this tree.");
+                }
+            }
+        }
+        bulkInsert(es, x, y);
+        if (journal != null || watches != null) {
+            for (int i = 0; i < es.length; i++) {
+                inserted(es[i], x[i], y[i]);
+            }
+        }
+    }
+
+    /*
+     * Distributes the points whose indexes are in order[from, to)
+     */
+    private void insertAllHere(
+            final E[] es, final double[] x, final double[] y,
+            final int[] order, final int from, final int to) {
+        subtreeSize += to - from;
+        final int here = to - from > maxElements - size && !hasChildren() && isBucketFor(x, y, order, from, to)
+                ? to - from
+                : Math.max(0, Math.min(maxElements - size, to - from));
+        if (here > 0) {
+            ensureCapacity(size + here);
+        }
+        for (int i = from; i < from + here; i++) {
+            final int index = order[i];
+            append(es[index], x[index], y[index]);
+            if (locations != null) {
+                locations.put(es[index], this);
+            }
+        }
+        final int start = from + here;
+        if (start < to) {
+            if (!hasChildren()) {
+                subdivide();
+            }
+            final double cx = centerX();
+            final double cy = centerY();
+            final int left = partition(order, start, to, i -> x[i] < cx);
+            final int bottomLeft = partition(order, start, left, i -> y[i] < cy);
+            final int bottomRight = partition(order, left, to, i -> y[i] < cy);
+            insertAllInChild(Child.BL, es, x, y, order, start, bottomLeft);
+            insertAllInChild(Child.TL, es, x, y, order, bottomLeft, left);
+            insertAllInChild(Child.BR, es, x, y, order, left, bottomRight);
+            insertAllInChild(Child.TR, es, x, y, order, bottomRight, to);
+        }
+    }
+
+    private void insertAllInChild(
+            final Child c, final E[] es, final double[] x, final double[] y,
+            final int[] order, final int from, final int to) {
+        if (from < to) {
+            writableChild(c.ordinal()).insertAllHere(es, x, y, order, from, to);
+        }
+    }
+
+    private void insertHere(final E e, final double x, final double y) {
+        if (hasSpace() || !hasChildren() && isBucketFor(x, y)) {
+            insertNode(e, x, y);
+        } else {
+            if (!hasChildren()) {
+                subdivide();
+            }
+            selectChild(x, y).insertHere(e, x, y);
+        }
+    }
+
+    private void insertNode(final E e, final double x, final double y) {
+        ensureCapacity(size + 1);
+        append(e, x, y);
+        updateSubtreeSize(1);
+        if (locations != null) {
+            locations.put(e, this);
+        }
+    }
+
+    /*
+     * A full node without children becomes a bucket, hosting entries beyond
+     * its capacity instead of subdividing, if all its entries share the
+     * coordinates of the new one, or if its area is too small to be split.
+     * Once beyond capacity, entries are assumed to be all in the same place:
+     * see keeps(int, double, double).
+     */
+    private boolean isBucketFor(final double x, final double y) {
+        if (!isDivisible()) {
+            return true;
+        }
+        final int checks = size > maxElements ? 1 : size;
+        for (int i = 0; i < checks; i++) {
+            if (xs[i] != x || ys[i] != y) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Same of isBucketFor(double, double), for all the batch indexes in
+     * order[from, to).
+     */
+    private boolean isBucketFor(final double[] x, final double[] y, final int[] order, final int from, final int to) {
+        if (!isDivisible()) {
+            return true;
+        }
+        final double px = size > 0 ? xs[0] : x[order[from]];
+        final double py = size > 0 ? ys[0] : y[order[from]];
+        if (!isBucketFor(px, py)) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (x[order[i]] != px || y[order[i]] != py) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isCompactable() {
+        if (!hasChildren()) {
+            return false;
         }
-        root.insertHere(e, x, y);
+        if (subtreeSize <= maxElements) {
+            return true;
+        }
+        for (final FlexibleQuadTree<E> child : children) {
+            if (child.isCompactable()) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private void insertHere(final E e, final double x, final double y) {
-        if (hasSpace()) {
-            insertNode(e, x, y);
-        } else {
-            if (!hasChildren()) {
-                subdivide();
+    /*
+     * False if rounding prevents the center from splitting the area in four
+     * non empty quadrants.
+     */
+    private boolean isDivisible() {
+        final double cx = centerX();
+        final double cy = centerY();
+        return minX() < cx && cx < maxX() && minY() < cy && cy < maxY();
+    }
+
+    /**
+     * @return true if this tree keeps track of the node hosting each element
+     */
+    public boolean isTrackingElements() {
+        return locations != null;
+    }
+
+    /*
+     * True if no node visited by the query changed since the footprint got
+     * recorded, hence the query would return the same elements
+     */
+    boolean isUnchanged(final Footprint<E> footprint) {
+        if (footprint.root != root) {
+            return false;
+        }
+        for (int i = 0; i < footprint.nodes.size(); i++) {
+            if (footprint.nodes.get(i).modCount != footprint.counts[i]) {
+                return false;
             }
-            selectChild(x, y).insertHere(e, x, y);
         }
+        return true;
     }
 
-    private void insertNode(final E e, final double x, final double y) {
-        assert elements.size() < maxElements : "Bug in " + getClass() + ". Forced insertion over the container size.";
-        elements.push(new QuadTreeEntry<>(e, x, y));
+    private IllegalStateException journalFailure(final String mutation, final E e, final IOException cause) {
+        discardJournal(cause);
+        return new IllegalStateException("Could not record the " + mutation + " of " + e + ", journal stopped", cause);
+    }
+
+    /*
+     * True if the entry at index can be updated in place when moving to the
+     * provided position. Entries of a bucket beyond capacity share the same
+     * position, those leaving it must be placed again so that the bucket
+     * gets split once its elements disperse.
+     */
+    private boolean keeps(final int index, final double x, final double y) {
+        return reaches(x, y) && (size <= maxElements || xs[index] == x && ys[index] == y || !isDivisible());
+    }
+
+    /**
+     * Loads a tree saved by {@link #save(Path, ElementCodec)}, with the same
+     * structure, node capacity, parallel threshold, element tracking and
+     * looseness. To query a large saved tree without loading it, use
+     * {@link MappedQuadTree#open(Path, ElementCodec)}.
+     * 
+     * @param file
+     *            the file
+     * @param codec
+     *            the {@link ElementCodec} the file was written with
+     * @param <E>
+     *            content of the tree
+     * @return the loaded tree
+     * @throws IOException
+     *             if the file can not be read or is not in the expected format
+     */
+    public static <E> FlexibleQuadTree<E> load(final Path file, final ElementCodec<? extends E> codec) throws IOException {
+        final MappedQuadTree<E> source = MappedQuadTree.open(file, codec);
+        final FlexibleQuadTree<E> result = new FlexibleQuadTree<>(
+                source.getMaxElementsNumber(), source.getParallelThreshold(), source.isTrackingElements(),
+                source.getLooseness());
+        result.root = result.restore(source, source.root(), null);
+        return result;
+    }
+
+    /**
+     * Loads a tree saved by {@link #save(Path, ElementCodec)}, then replays
+     * the journal recorded since, as per {@link #replay(Path, ElementCodec)}.
+     * 
+     * @param snapshot
+     *            the file written by {@link #save(Path, ElementCodec)}
+     * @param journal
+     *            the journal file
+     * @param codec
+     *            the {@link ElementCodec} both files were written with
+     * @param <E>
+     *            content of the tree
+     * @return the loaded tree
+     * @throws IOException
+     *             if the files can not be read, are not in the expected format,
+     *             or do not match each other
+     */
+    public static <E> FlexibleQuadTree<E> load(
+            final Path snapshot, final Path journal, final ElementCodec<? extends E> codec) throws IOException {
+        final FlexibleQuadTree<E> result = load(snapshot, codec);
+        result.replay(journal, codec);
+        return result;
+    }
+
+    private FlexibleQuadTree<E> locate(final E e) {
+        if (locations == null) {
+            throw new UnsupportedOperationException("This tree does not track its elements.");
+        }
+        final FlexibleQuadTree<E> node = locations.get(e);
+        return node == null ? null : writable(node);
     }
 
     private double maxX() {
@@ -406,78 +1691,689 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
         }
     }
 
-    @Override
-    public boolean move(final E e, final double[] start, final double[] end) {
-        assert start.length == 2;
-        assert end.length == 2;
-        return move(e, start[0], start[1], end[0], end[1]);
+    @Override
+    public boolean move(final E e, final double[] start, final double[] end) {
+        assert start.length == 2;
+        assert end.length == 2;
+        return move(e, start[0], start[1], end[0], end[1]);
+    }
+
+    /**
+     * Same of {@link #move(Object, double[], double[])}, but with explicit
+     * parameters.
+     * 
+     * @param e
+     *            the element
+     * @param sx
+     *            the start x
+     * @param sy
+     *            the start y
+     * @param fx
+     *            the final x
+     * @param fy
+     *            the final y
+     * @return true if the element is found and no error occurred
+     */
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        final FlexibleQuadTree<E> host = root.find(e, sx, sy);
+        if (host == null) {
+            return false;
+        }
+        final FlexibleQuadTree<E> node = writable(host);
+        moveEntry(node, node.indexOf(e, sx, sy), e, fx, fy);
+        moved(e, sx, sy, fx, fy);
+        return true;
+    }
+
+    /**
+     * Moves an element without knowing its current position. Available only
+     * if the tree tracks its elements. If the element remains within the area
+     * of the node hosting it, the operation runs in constant time.
+     * 
+     * @param e
+     *            the element
+     * @param fx
+     *            the final x
+     * @param fy
+     *            the final y
+     * @return true if the element is found and moved
+     * @throws UnsupportedOperationException
+     *             if the tree does not track its elements
+     */
+    public boolean move(final E e, final double fx, final double fy) {
+        final FlexibleQuadTree<E> node = locate(e);
+        if (node == null) {
+            return false;
+        }
+        final int index = node.indexOf(e);
+        final double sx = node.xs[index];
+        final double sy = node.ys[index];
+        moveEntry(node, index, e, fx, fy);
+        moved(e, sx, sy, fx, fy);
+        return true;
+    }
+
+    /**
+     * Moves a batch of elements at once. Elements are searched top-down, by
+     * splitting the batch among the children according to the start
+     * positions, so that each subtree is visited once. Elements whose final
+     * position is still within the area of the node hosting them are updated
+     * in place. The others are removed and then inserted back all together,
+     * as per {@link #insertAll(Object[], double[], double[])}. Disjoint
+     * subtrees are processed in parallel if they are larger than the
+     * parallel threshold and the tree does not track its elements.
+     * 
+     * @param es
+     *            the elements
+     * @param sx
+     *            the start X coordinates
+     * @param sy
+     *            the start Y coordinates
+     * @param fx
+     *            the final X coordinates
+     * @param fy
+     *            the final Y coordinates
+     * @return the number of elements found and moved
+     */
+    @SuppressWarnings("unchecked")
+    public int moveAll(final E[] es, final double[] sx, final double[] sy, final double[] fx, final double[] fy) {
+        final int n = es.length;
+        if (sx.length != n || sy.length != n || fx.length != n || fy.length != n) {
+            throw new IllegalArgumentException("All the arrays must have the same length as the " + n + " elements.");
+        }
+        final int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        final byte[] status = new byte[n];
+        root.moveAllHere(es, sx, sy, fx, fy, order, new int[n], new byte[n], status, 0, n);
+        int moved = 0;
+        int left = 0;
+        for (int i = 0; i < n; i++) {
+            if (status[i] == LEFT) {
+                left++;
+            } else if (status[i] == MOVED) {
+                moved++;
+            }
+        }
+        if (left > 0) {
+            final E[] leaving = (E[]) new Object[left];
+            final double[] x = new double[left];
+            final double[] y = new double[left];
+            for (int i = 0, j = 0; i < n; i++) {
+                if (status[i] == LEFT) {
+                    leaving[j] = es[i];
+                    x[j] = fx[i];
+                    y[j] = fy[i];
+                    j++;
+                }
+            }
+            bulkInsert(leaving, x, y);
+        }
+        /*
+         * Notified only now that the leaving elements are back in the tree
+         */
+        for (int i = 0; i < n; i++) {
+            if (status[i] != NOT_FOUND) {
+                moved(es[i], sx[i], sy[i], fx[i], fy[i]);
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            /*
+             * Elements not found where expected, if any, get searched one by
+             * one.
+             */
+            if (status[i] == NOT_FOUND && move(es[i], sx[i], sy[i], fx[i], fy[i])) {
+                moved++;
+            }
+        }
+        return moved + left;
+    }
+
+    /*
+     * Handles the batch indexes in order[from, to), returns the number of
+     * entries removed from this subtree. Indexes still to be found get sorted
+     * by child, using buffer and quadrants as scratch space in [from, to).
+     */
+    private int moveAllHere(
+            final E[] es, final double[] sx, final double[] sy, final double[] fx, final double[] fy,
+            final int[] order, final int[] buffer, final byte[] quadrants, final byte[] status,
+            final int from, final int to) {
+        int removed = 0;
+        final boolean split = hasChildren();
+        final int none = Child.values().length;
+        /*
+         * ranges[q + 1] counts the indexes to be sent to quadrant q, with q == none
+         * meaning that there is nothing else to do for them.
+         */
+        final int[] ranges = new int[none + 2];
+        for (int i = from; i < to; i++) {
+            final int k = order[i];
+            final int index = size == 0 ? -1 : indexOf(es[k], sx[k], sy[k]);
+            byte quadrant = (byte) none;
+            if (index >= 0) {
+                if (keeps(index, fx[k], fy[k])) {
+                    /*
+                     * As in moveEntry, the entry becomes the newest, so that
+                     * swapMostStatic keeps picking the oldest one
+                     */
+                    delete(index);
+                    append(es[k], fx[k], fy[k]);
+                    status[k] = MOVED;
+                } else {
+                    if (locations != null) {
+                        locations.remove(elements[index]);
+                    }
+                    delete(index);
+                    removed++;
+                    status[k] = LEFT;
+                }
+            } else if (split) {
+                quadrant = (byte) childIndex(sx[k], sy[k]);
+            }
+            quadrants[i] = quadrant;
+            ranges[quadrant + 1]++;
+        }
+        if (split && ranges[none + 1] < to - from) {
+            /*
+             * Counting sort of the pending indexes by child: afterwards, the
+             * indexes for child c are in order[ranges[c], ranges[c + 1]).
+             */
+            ranges[0] = from;
+            for (int q = 1; q < ranges.length; q++) {
+                ranges[q] += ranges[q - 1];
+            }
+            final int[] cursors = ranges.clone();
+            for (int i = from; i < to; i++) {
+                buffer[cursors[quadrants[i]]++] = order[i];
+            }
+            System.arraycopy(buffer, from, order, from, to - from);
+            for (int c = 0; c < none; c++) {
+                if (ranges[c] < ranges[c + 1]) {
+                    writableChild(c);
+                }
+            }
+            if (locations == null && subtreeSize >= parallelThreshold && ranges[none] - from > maxElements) {
+                removed += IntStreams.range(0, none).parallel()
+                        .filter(c -> ranges[c] < ranges[c + 1])
+                        .map(c -> children[c].moveAllHere(es, sx, sy, fx, fy,
+                                order, buffer, quadrants, status, ranges[c], ranges[c + 1]))
+                        .sum();
+            } else {
+                for (int c = 0; c < none; c++) {
+                    if (ranges[c] < ranges[c + 1]) {
+                        removed += children[c].moveAllHere(es, sx, sy, fx, fy,
+                                order, buffer, quadrants, status, ranges[c], ranges[c + 1]);
+                    }
+                }
+            }
+        }
+        subtreeSize -= removed;
+        return removed;
+    }
+
+    /*
+     * Records a move in the journal and notifies the watches whose boundary
+     * got crossed
+     */
+    private void moved(final E e, final double sx, final double sy, final double fx, final double fy) {
+        if (journal != null) {
+            try {
+                journal.move(e, sx, sy, fx, fy);
+            } catch (IOException ex) {
+                throw journalFailure("movement", e, ex);
+            }
+        }
+        if (watches != null) {
+            watches.query(sx, sy, sx, sy, w -> {
+                if (w.contains(sx, sy) && !w.contains(fx, fy)) {
+                    w.listener.left(e);
+                }
+            });
+            watches.query(fx, fy, fx, fy, w -> {
+                if (w.contains(fx, fy) && !w.contains(sx, sy)) {
+                    w.listener.entered(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Finds the element closest to the provided point.
+     * 
+     * @param x
+     *            X coordinate of the point
+     * @param y
+     *            Y coordinate of the point
+     * @return the closest element, or an empty {@link Optional} if the
+     *         {@link FlexibleQuadTree} is empty
+     */
+    public Optional<E> nearest(final double x, final double y) {
+        return nearest(x, y, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the element closest to the provided point, within a maximum
+     * distance.
+     * 
+     * @param x
+     *            X coordinate of the point
+     * @param y
+     *            Y coordinate of the point
+     * @param maxRadius
+     *            the maximum distance from the point
+     * @return the closest element, or an empty {@link Optional} if there is
+     *         no element within maxRadius
+     * @throws IllegalArgumentException
+     *             if maxRadius is negative or NaN
+     */
+    public Optional<E> nearest(final double x, final double y, final double maxRadius) {
+        final List<E> result = nearest(1, x, y, maxRadius);
+        return result.isEmpty() ? Optional.empty() : Optional.ofNullable(result.get(0));
+    }
+
+    /**
+     * Finds the k elements closest to the provided point.
+     * 
+     * @param k
+     *            the maximum number of elements to return
+     * @param x
+     *            X coordinate of the point
+     * @param y
+     *            Y coordinate of the point
+     * @return a {@link List} of at most k elements, sorted by increasing
+     *         distance from the point
+     */
+    public List<E> nearest(final int k, final double x, final double y) {
+        return nearest(k, x, y, Double.POSITIVE_INFINITY);
+    }
+
+    /**
+     * Finds the k elements closest to the provided point, within a maximum
+     * distance. Nodes are visited best-first, by increasing distance of their
+     * bounds from the point, and the search stops as soon as no unvisited node
+     * can host an element closer than the k-th best found.
+     * 
+     * @param k
+     *            the maximum number of elements to return
+     * @param x
+     *            X coordinate of the point
+     * @param y
+     *            Y coordinate of the point
+     * @param maxRadius
+     *            the maximum distance from the point
+     * @return a {@link List} of at most k elements, sorted by increasing
+     *         distance from the point
+     * @throws IllegalArgumentException
+     *             if k is negative, or maxRadius is negative or NaN
+     */
+    public List<E> nearest(final int k, final double x, final double y, final double maxRadius) {
+        if (k < 0) {
+            throw new IllegalArgumentException("Can not search for " + k + " neighbors.");
+        }
+        if (!(maxRadius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + maxRadius);
+        }
+        if (k == 0) {
+            return Collections.emptyList();
+        }
+        final double maxDistance = maxRadius * maxRadius;
+        final PriorityQueue<Candidate<FlexibleQuadTree<E>>> nodes = new PriorityQueue<>(DEFAULT_CAPACITY, CLOSEST_FIRST);
+        final PriorityQueue<Candidate<E>> best = new PriorityQueue<>(Math.min(k, root.subtreeSize) + 1, FARTHEST_FIRST);
+        nodes.add(new Candidate<>(root, root.reach.distanceSquared(x, y)));
+        while (!nodes.isEmpty()) {
+            final Candidate<FlexibleQuadTree<E>> next = nodes.poll();
+            if (next.distance > maxDistance || best.size() == k && next.distance >= best.peek().distance) {
+                break;
+            }
+            final FlexibleQuadTree<E> node = next.item;
+            for (int i = 0; i < node.size; i++) {
+                final double dx = node.xs[i] - x;
+                final double dy = node.ys[i] - y;
+                final double distance = dx * dx + dy * dy;
+                if (distance <= maxDistance && (best.size() < k || distance < best.peek().distance)) {
+                    best.add(new Candidate<>(node.elements[i], distance));
+                    if (best.size() > k) {
+                        best.poll();
+                    }
+                }
+            }
+            if (node.hasChildren()) {
+                for (final FlexibleQuadTree<E> child : node.children) {
+                    if (child.subtreeSize > 0) {
+                        final double distance = child.reach.distanceSquared(x, y);
+                        if (distance <= maxDistance) {
+                            nodes.add(new Candidate<>(child, distance));
+                        }
+                    }
+                }
+            }
+        }
+        final List<E> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            result.add(best.poll().item);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    @Override
+    public List<E> query(final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 2;
+        assert space[1].length == 2;
+        return query(space[0][0], space[0][1], space[1][0], space[1][1]);
+    }
+
+    @Override
+    public void query(final Consumer<? super E> action, final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 2;
+        assert space[1].length == 2;
+        query(space[0][0], space[0][1], space[1][0], space[1][1], action);
+    }
+
+    /**
+     * Same of {@link #query(double...)}, but with explicit parameters.
+     * 
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> query(final double x1, final double y1, final double x2, final double y2) {
+        final List<E> result = new ArrayList<>();
+        root.queryInto(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), result);
+        return result;
+    }
+
+    /**
+     * Same of {@link #query(Consumer, double[]...)}, but with explicit
+     * parameters. The traversal is sequential, and the action is run on the
+     * calling thread: no lock is taken and nothing gets allocated.
+     * 
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     */
+    public void query(
+            final double x1, final double y1, final double x2, final double y2,
+            final Consumer<? super E> action) {
+        root.queryHere(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), action);
+    }
+
+    /*
+     * Pairs the entries of this node with the ones in the subtree of other
+     */
+    private void pairEntriesWith(
+            final FlexibleQuadTree<E> other, final double squaredRadius,
+            final BiConsumer<? super E, ? super E> action) {
+        if (other.subtreeSize > 0 && reach.distanceSquared(other.reach) <= squaredRadius) {
+            for (int i = 0; i < size; i++) {
+                final double x = xs[i];
+                final double y = ys[i];
+                for (int j = 0; j < other.size; j++) {
+                    final double dx = other.xs[j] - x;
+                    final double dy = other.ys[j] - y;
+                    if (dx * dx + dy * dy <= squaredRadius) {
+                        action.accept(elements[i], other.elements[j]);
+                    }
+                }
+            }
+            if (other.hasChildren()) {
+                for (final FlexibleQuadTree<E> child : other.children) {
+                    pairEntriesWith(child, squaredRadius, action);
+                }
+            }
+        }
+    }
+
+    /*
+     * Pairs the subtree of this node with the disjoint subtree of other
+     */
+    private void pairWith(
+            final FlexibleQuadTree<E> other, final double squaredRadius,
+            final BiConsumer<? super E, ? super E> action) {
+        if (subtreeSize > 0 && other.subtreeSize > 0 && reach.distanceSquared(other.reach) <= squaredRadius) {
+            if (size > 0) {
+                pairEntriesWith(other, squaredRadius, action);
+            }
+            if (hasChildren()) {
+                for (final FlexibleQuadTree<E> child : children) {
+                    if (other.size > 0) {
+                        other.pairEntriesWith(child, squaredRadius, action);
+                    }
+                    if (other.hasChildren()) {
+                        for (final FlexibleQuadTree<E> otherChild : other.children) {
+                            child.pairWith(otherChild, squaredRadius, action);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /*
+     * Pairs the elements of the subtree among themselves
+     */
+    private void pairsHere(
+            final double squaredRadius, final BiConsumer<? super E, ? super E> action, final boolean parallel) {
+        if (subtreeSize < 2) {
+            return;
+        }
+        for (int i = 0; i < size; i++) {
+            final double x = xs[i];
+            final double y = ys[i];
+            for (int j = i + 1; j < size; j++) {
+                final double dx = xs[j] - x;
+                final double dy = ys[j] - y;
+                if (dx * dx + dy * dy <= squaredRadius) {
+                    action.accept(elements[i], elements[j]);
+                }
+            }
+        }
+        if (hasChildren()) {
+            /*
+             * Each child with itself and with the entries of this node, then
+             * each pair of distinct children
+             */
+            final List<Runnable> tasks = new ArrayList<>();
+            for (int c = 0; c < children.length; c++) {
+                final FlexibleQuadTree<E> child = children[c];
+                tasks.add(() -> {
+                    if (size > 0) {
+                        pairEntriesWith(child, squaredRadius, action);
+                    }
+                    child.pairsHere(squaredRadius, action, parallel);
+                });
+                for (int o = c + 1; o < children.length; o++) {
+                    final FlexibleQuadTree<E> other = children[o];
+                    tasks.add(() -> child.pairWith(other, squaredRadius, action));
+                }
+            }
+            if (parallel && subtreeSize >= parallelThreshold) {
+                StreamSupport.parallelStream(tasks).forEach(Runnable::run);
+            } else {
+                for (final Runnable task : tasks) {
+                    task.run();
+                }
+            }
+        }
+    }
+
+    /*
+     * Moves the indexes matching the predicate at the beginning of the range,
+     * returns the first index of the non matching ones.
+     */
+    private static int partition(final int[] order, final int from, final int to, final IntPredicate predicate) {
+        int first = from;
+        int last = to - 1;
+        while (first <= last) {
+            if (predicate.test(order[first])) {
+                first++;
+            } else {
+                final int tmp = order[first];
+                order[first] = order[last];
+                order[last] = tmp;
+                last--;
+            }
+        }
+        return first;
+    }
+
+    /*
+     * Inserts starting from the root. If the root does not contain the
+     * coordinates, then the tree gets expanded upwards
+     */
+    private void place(final E e, final double x, final double y) {
+        while (!root.contains(x, y)) {
+            root = root.createParent(x, y);
+        }
+        root.insertHere(e, x, y);
+    }
+
+    /*
+     * Feeds the entries of this node in range to the action, without visiting
+     * the children
+     */
+    private void queryEntries(
+            final double sx, final double sy, final double fx, final double fy,
+            final Consumer<? super E> action) {
+        for (int i = 0; i < size; i++) {
+            final double x = xs[i];
+            final double y = ys[i];
+            if (x >= sx && x < fx && y >= sy && y < fy) {
+                action.accept(elements[i]);
+            }
+        }
     }
 
-    /**
-     * Same of {@link #move(Object, double[], double[])}, but with explicit
-     * parameters.
-     * 
-     * @param e
-     *            the element
-     * @param sx
-     *            the start x
-     * @param sy
-     *            the start y
-     * @param fx
-     *            the final x
-     * @param fy
-     *            the final y
-     * @return true if the element is found and no error occurred
+    private void queryHere(
+            final double sx, final double sy, final double fx, final double fy,
+            final Consumer<? super E> action) {
+        if (reach.intersects(sx, sy, fx, fy)) {
+            queryEntries(sx, sy, fx, fy, action);
+            if (hasChildren()) {
+                for (final FlexibleQuadTree<E> child : children) {
+                    child.queryHere(sx, sy, fx, fy, action);
+                }
+            }
+        }
+    }
+
+    /*
+     * Same of queryHere, collecting the results in a list. Subtrees large
+     * enough get their children visited in parallel.
      */
-    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
-        return moveFromNode(root, e, sx, sy, fx, fy);
+    private void queryInto(
+            final double sx, final double sy, final double fx, final double fy,
+            final List<E> results) {
+        if (subtreeSize < parallelThreshold || !hasChildren()) {
+            queryHere(sx, sy, fx, fy, results::add);
+        } else if (reach.intersects(sx, sy, fx, fy)) {
+            queryEntries(sx, sy, fx, fy, results::add);
+            if (shouldSplit(sx, sy, fx, fy)) {
+                /*
+                 * Each task fills its own list, lists get merged once
+                 */
+                results.addAll(StreamSupport.parallelStream(Arrays.asList(children))
+                        .collect(ArrayList<E>::new, (l, c) -> c.queryInto(sx, sy, fx, fy, l), List::addAll));
+            } else {
+                for (final FlexibleQuadTree<E> child : children) {
+                    child.queryInto(sx, sy, fx, fy, results);
+                }
+            }
+        }
     }
 
     @Override
-    public List<E> query(final double[]... space) {
-        assert space.length == 2;
-        assert space[0].length == 2;
-        assert space[1].length == 2;
-        return query(space[0][0], space[0][1], space[1][0], space[1][1]);
+    public List<E> queryRadius(final double[] center, final double radius) {
+        assert center.length == 2;
+        return queryRadius(center[0], center[1], radius);
     }
 
     /**
-     * Same of {@link #query(double...)}, but with explicit parameters.
+     * Same of {@link #queryRadius(double[], double)}, but with explicit
+     * parameters.
      * 
-     * @param x1
-     *            Rectangle X coordinate of the first point
-     * @param y1
-     *            Rectangle Y coordinate of the first point
-     * @param x2
-     *            Rectangle X coordinate of the second point
-     * @param y2
-     *            Rectangle Y coordinate of the second point
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
      * @return {@link List} of Objects in range.
      */
-    public List<E> query(final double x1, final double y1, final double x2, final double y2) {
+    public List<E> queryRadius(final double x, final double y, final double radius) {
         final List<E> result = new ArrayList<>();
-        final double sx = Math.min(x1, x2);
-        final double sy = Math.min(y1, y2);
-        final double fx = Math.max(x1, x2);
-        final double fy = Math.max(y1, y2);
-        root.query(sx, sy, fx, fy, Collections.synchronizedList(result));
+        queryRadius(x, y, radius, result::add);
         return result;
     }
 
-    private void query(// NOPMD: False positive
-            final double sx, final double sy, final double fx, final double fy, final List<E> results) {
-        if (bounds.intersects(sx, sy, fx, fy)) {
-            for (final QuadTreeEntry<E> entry : elements) {
-                if (entry.isIn(sx, sy, fx, fy)) {
-                    results.add(entry.element);
+    /**
+     * Feeds each element whose distance from the center is not greater than
+     * radius to the provided action. Nodes whose bounds do not intersect the
+     * circle are skipped, nodes lying completely inside the circle are
+     * accepted without checking their entries.
+     * 
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     */
+    public void queryRadius(final double x, final double y, final double radius, final Consumer<? super E> action) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        root.queryRadiusHere(x, y, radius * radius, action);
+    }
+
+    private void queryRadiusHere(
+            final double cx, final double cy, final double squaredRadius,
+            final Consumer<? super E> action) {
+        if (subtreeSize > 0 && reach.distanceSquared(cx, cy) <= squaredRadius) {
+            if (reach.farthestDistanceSquared(cx, cy) <= squaredRadius) {
+                visitAll(action);
+            } else {
+                for (int i = 0; i < size; i++) {
+                    final double dx = xs[i] - cx;
+                    final double dy = ys[i] - cy;
+                    if (dx * dx + dy * dy <= squaredRadius) {
+                        action.accept(elements[i]);
+                    }
+                }
+                if (hasChildren()) {
+                    for (final FlexibleQuadTree<E> child : children) {
+                        child.queryRadiusHere(cx, cy, squaredRadius, action);
+                    }
                 }
-            }
-            if (hasChildren()) {
-                StreamSupport.parallelStream(children).map(Optional::get).forEach(c -> c.query(sx, sy, fx, fy, results));
             }
         }
     }
 
+    /*
+     * True if the point lies where the entries of this node may lie
+     */
+    private boolean reaches(final double x, final double y) {
+        return reach.contains(x, y);
+    }
+
     @Override
     public boolean remove(final E e, final double... pos) {
         assert pos.length == 2;
@@ -496,45 +2392,302 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
      * @return true if the element has been found and removed
      */
     public boolean remove(final E e, final double x, final double y) {
-        return root.removeHere(e, x, y);
+        final FlexibleQuadTree<E> host = root.find(e, x, y);
+        if (host == null) {
+            return false;
+        }
+        final FlexibleQuadTree<E> node = writable(host);
+        node.removeAt(node.indexOf(e, x, y));
+        node.collapseSparseAncestor();
+        removed(e, x, y);
+        return true;
+    }
+
+    /**
+     * Removes an element without knowing its current position. Available only
+     * if the tree tracks its elements.
+     * 
+     * @param e
+     *            Element to remove
+     * @return true if the element has been found and removed
+     * @throws UnsupportedOperationException
+     *             if the tree does not track its elements
+     */
+    public boolean remove(final E e) {
+        final FlexibleQuadTree<E> node = locate(e);
+        if (node == null) {
+            return false;
+        }
+        final int index = node.indexOf(e);
+        final double x = node.xs[index];
+        final double y = node.ys[index];
+        node.removeAt(index);
+        node.collapseSparseAncestor();
+        removed(e, x, y);
+        return true;
+    }
+
+    /*
+     * Records a removal in the journal and notifies the watches
+     */
+    private void removed(final E e, final double x, final double y) {
+        if (journal != null) {
+            try {
+                journal.remove(e, x, y);
+            } catch (IOException ex) {
+                throw journalFailure("removal", e, ex);
+            }
+        }
+        if (watches != null) {
+            watches.query(x, y, x, y, w -> {
+                if (w.contains(x, y)) {
+                    w.listener.left(e);
+                }
+            });
+        }
     }
 
-    private boolean removeHere(final E e, final double x, final double y) {
-        if (contains(x, y)) {
-            return elements.remove(new QuadTreeEntry<E>(e, x, y)) || removeInChildren(e, x, y);
+    private void removeAt(final int index) {
+        if (locations != null) {
+            locations.remove(elements[index]);
+        }
+        delete(index);
+        updateSubtreeSize(-1);
+    }
+
+    /**
+     * Applies the mutations recorded in a journal, see
+     * {@link #startJournal(Path, ElementCodec)}. Elements are matched by
+     * equality. An incomplete record at the end of the journal, e.g. left by a
+     * crash, is ignored.
+     * 
+     * @param file
+     *            the journal
+     * @param codec
+     *            the {@link ElementCodec} the journal was written with
+     * @throws IOException
+     *             if the journal can not be read, is not in the expected
+     *             format, or refers to elements not in this tree
+     */
+    public void replay(final Path file, final ElementCodec<? extends E> codec) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            try {
+                if (in.readInt() != Journal.MAGIC) {
+                    throw new IOException(file + " is not a FlexibleQuadTree journal.");
+                }
+                if (in.readInt() != Journal.VERSION) {
+                    throw new IOException(file + " has an unsupported journal version.");
+                }
+            } catch (EOFException e) {
+                return;
+            }
+            long record = 0;
+            for (int type = in.read(); type >= 0; type = in.read()) {
+                final boolean done;
+                try {
+                    if (type == Journal.INSERT) {
+                        final double x = in.readDouble();
+                        final double y = in.readDouble();
+                        insert(readElement(in, codec), x, y);
+                        done = true;
+                    } else if (type == Journal.MOVE) {
+                        final double sx = in.readDouble();
+                        final double sy = in.readDouble();
+                        final double fx = in.readDouble();
+                        final double fy = in.readDouble();
+                        done = move(stored(readElement(in, codec), sx, sy), sx, sy, fx, fy);
+                    } else if (type == Journal.REMOVE) {
+                        final double x = in.readDouble();
+                        final double y = in.readDouble();
+                        done = remove(stored(readElement(in, codec), x, y), x, y);
+                    } else {
+                        throw new IOException("Unknown record type " + type + " in " + file);
+                    }
+                } catch (EOFException e) {
+                    return;
+                }
+                if (!done) {
+                    throw new IOException("Record " + record + " of " + file + " refers to an element not in the tree.");
+                }
+                record++;
+            }
+        }
+    }
+
+    private static <E> E readElement(final DataInputStream in, final ElementCodec<? extends E> codec) throws IOException {
+        final byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+        return codec.decode(ByteBuffer.wrap(data).asReadOnlyBuffer());
+    }
+
+    /*
+     * Replayed records decode new instances: in tracked trees, which match
+     * by identity, they must be resolved to the equal element stored at the
+     * position.
+     */
+    private E stored(final E e, final double x, final double y) {
+        if (locations == null) {
+            return e;
+        }
+        final FlexibleQuadTree<E> host = root.find(e, x, y, true);
+        return host == null ? e : host.elements[host.indexOf(e, x, y, true)];
+    }
+
+    /*
+     * Builds the subtree of a saved node
+     */
+    private FlexibleQuadTree<E> restore(final MappedQuadTree<E> source, final int node, final FlexibleQuadTree<E> father) {
+        final FlexibleQuadTree<E> result = create(
+                source.minX(node), source.maxX(node), source.minY(node), source.maxY(node), father);
+        final int entries = source.size(node);
+        if (entries > 0) {
+            result.ensureCapacity(entries);
+            for (int i = 0; i < entries; i++) {
+                final E e = source.element(node, i);
+                result.append(e, source.x(node, i), source.y(node, i));
+                if (locations != null) {
+                    locations.put(e, result);
+                }
+            }
+        }
+        result.subtreeSize = source.subtreeSize(node);
+        if (source.hasChildren(node)) {
+            result.children = newChildren();
+            for (int c = 0; c < result.children.length; c++) {
+                result.children[c] = restore(source, source.child(node, c), result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes this tree to a file in a compact binary format, with NIO. The
+     * node structure is saved as is, elements are written through the
+     * provided {@link ElementCodec}. The file can be loaded back with
+     * {@link #load(Path, ElementCodec)}, or queried in place with
+     * {@link MappedQuadTree#open(Path, ElementCodec)}. Nodes are written
+     * children first, hence the recursion is only as deep as the tree.
+     * 
+     * @param file
+     *            the file to write, overwritten if it exists
+     * @param codec
+     *            the {@link ElementCodec} translating elements to bytes
+     * @throws IOException
+     *             if the file can not be written
+     */
+    public void save(final Path file, final ElementCodec<? super E> codec) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.position(MappedQuadTree.HEADER_SIZE);
+            final ChannelOutput out = new ChannelOutput(channel, MappedQuadTree.HEADER_SIZE);
+            final long rootOffset = root.writeHere(out, codec);
+            out.flush();
+            final ByteBuffer header = ByteBuffer.allocate(MappedQuadTree.HEADER_SIZE);
+            header.putInt(MappedQuadTree.MAGIC)
+                .putInt(MappedQuadTree.VERSION)
+                .putInt(maxElements)
+                .putInt(parallelThreshold)
+                .putInt(locations == null ? 0 : 1)
+                .putInt(0)
+                .putLong(root.subtreeSize)
+                .putLong(rootOffset)
+                .putDouble(looseness)
+                .flip();
+            long position = 0;
+            while (header.hasRemaining()) {
+                position += channel.write(header, position);
+            }
         }
-        return false;
     }
 
-    private boolean removeInChildren(final E e, final double x, final double y) {
-        return StreamSupport.parallelStream(children)
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .filter(c -> c.removeHere(e, x, y))
-                .findAny()
-                .isPresent();
+    /*
+     * Index of the only child hosting elements, provided that the entries of
+     * this node and of the provided ancestors lie within it as well, -1
+     * otherwise.
+     */
+    private int onlyPopulatedChild(final List<FlexibleQuadTree<E>> ancestors) {
+        if (!hasChildren()) {
+            return -1;
+        }
+        int only = -1;
+        for (int c = 0; c < children.length; c++) {
+            if (children[c].subtreeSize > 0) {
+                if (only >= 0) {
+                    return -1;
+                }
+                only = c;
+            }
+        }
+        if (only >= 0) {
+            final FlexibleQuadTree<E> child = children[only];
+            for (int i = 0; i < size; i++) {
+                if (!child.contains(xs[i], ys[i])) {
+                    return -1;
+                }
+            }
+            for (final FlexibleQuadTree<E> ancestor : ancestors) {
+                for (int i = 0; i < ancestor.size; i++) {
+                    if (!child.contains(ancestor.xs[i], ancestor.ys[i])) {
+                        return -1;
+                    }
+                }
+            }
+        }
+        return only;
     }
 
     private FlexibleQuadTree<E> selectChild(final double x, final double y) {
         assert hasChildren();
+        return writableChild(selectQuadrant(x, y).ordinal());
+    }
+
+    private Child selectQuadrant(final double x, final double y) {
         if (x < centerX()) {
             if (y < centerY()) {
-                return getChild(Child.BL);
+                return Child.BL;
             }
-            return getChild(Child.TL);
+            return Child.TL;
         } else {
             if (y < centerY()) {
-                return getChild(Child.BR);
+                return Child.BR;
             }
-            return getChild(Child.TR);
+            return Child.TR;
         }
     }
 
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <E> FlexibleQuadTree<E>[] newChildren() {
+        return new FlexibleQuadTree[Child.values().length];
+    }
+
     private void setChild(final Child c, final FlexibleQuadTree<E> child) {
-        if (children.set(c.ordinal(), Optional.of(child)).isPresent()) {
+        if (children == null) {
+            children = newChildren();
+        }
+        if (children[c.ordinal()] != null) {
             throw new IllegalStateException();
         }
+        children[c.ordinal()] = child;
         child.parent = this;
+        subtreeSize += child.subtreeSize;
+        modCount++;
+    }
+
+    /*
+     * Parallelism pays off only if the subtree is large and the query actually
+     * spreads over more than a single child.
+     */
+    private boolean shouldSplit(final double sx, final double sy, final double fx, final double fy) {
+        if (subtreeSize < parallelThreshold) {
+            return false;
+        }
+        int intersecting = 0;
+        for (final FlexibleQuadTree<E> child : children) {
+            if (child.reach.intersects(sx, sy, fx, fy)) {
+                intersecting++;
+            }
+        }
+        return intersecting > 1;
     }
 
     private void subdivide() {
@@ -543,17 +2696,116 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
         }
     }
 
+    /**
+     * @return the number of elements in the tree
+     */
+    public int size() {
+        return root.subtreeSize;
+    }
+
+    /**
+     * Takes an immutable snapshot of this tree in constant time. The snapshot
+     * shares its nodes with the tree: later modifications of the tree copy
+     * the nodes they touch, along with the path leading to them from the
+     * root, leaving the snapshot untouched. Hence, the snapshot can be queried
+     * from other threads without any synchronization while this tree keeps
+     * changing.
+     * 
+     * @return an immutable {@link SpatialIndex} with the current content of
+     *         this tree
+     */
+    public SpatialIndex<E> snapshot() {
+        /*
+         * The root stays private to the tree: the snapshot gets a copy of it,
+         * and all the other nodes become shared.
+         */
+        final SpatialIndex<E> result = new Snapshot<>(new FlexibleQuadTree<>(root, null, root.epoch));
+        root.epoch++;
+        return result;
+    }
+
+    /**
+     * Starts recording insertions, movements and removals to an append-only
+     * journal, through a buffered channel. If the file exists, new records
+     * are appended. Combined with {@link #save(Path, ElementCodec)}, the tree
+     * can be restored with {@link #load(Path, Path, ElementCodec)}: save a
+     * full checkpoint, start a new journal, and call {@link #flushJournal()}
+     * for the cheaper incremental checkpoints in between. A failure in
+     * writing the journal stops it, as records following an incomplete one
+     * could not be read back, and makes the mutating method that met it throw
+     * an {@link IllegalStateException} once the mutation is done. A journal
+     * already active gets stopped.
+     * 
+     * @param file
+     *            the journal file
+     * @param codec
+     *            the {@link ElementCodec} translating elements to bytes
+     * @throws IOException
+     *             if the file can not be opened
+     */
+    public void startJournal(final Path file, final ElementCodec<? super E> codec) throws IOException {
+        stopJournal();
+        journal = new Journal<>(file, codec);
+    }
+
+    /**
+     * Flushes and closes the active journal, if any.
+     * 
+     * @throws IOException
+     *             if the journal can not be written
+     */
+    public void stopJournal() throws IOException {
+        if (journal != null) {
+            try {
+                journal.close();
+            } finally {
+                journal = null;
+            }
+        }
+    }
+
+    /**
+     * Lazy version of {@link #query(double, double, double, double)}: the
+     * tree gets walked while the stream is consumed, hence short circuiting
+     * operations such as findAny and limit stop the traversal early. Parallel
+     * streams split the work by subtree. The tree must not be modified while
+     * the stream is in use.
+     * 
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return a sequential {@link Stream} of the elements in range
+     */
+    public Stream<E> stream(final double x1, final double y1, final double x2, final double y2) {
+        final QuerySpliterator<E> spliterator = new QuerySpliterator<>(
+                Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2));
+        spliterator.offer(root);
+        return StreamSupport.stream(spliterator, false);
+    }
+
     private boolean swapMostStatic(final E e, final double fx, final double fy) {
         assert parent != null : "Tried to swap on a null parent.";
-        final Iterator<QuadTreeEntry<E>> iterator = parent.elements.descendingIterator();
-        while (iterator.hasNext()) {
-            final QuadTreeEntry<E> target = iterator.next();
-            if (contains(target.x, target.y)) {
+        if (!hasSpace() || parent.size > maxElements) {
+            /*
+             * Buckets only host entries in the same place
+             */
+            return false;
+        }
+        for (int i = 0; i < parent.size; i++) {
+            final double tx = parent.xs[i];
+            final double ty = parent.ys[i];
+            if (reaches(tx, ty)) {
                 /*
                  * There is a swappable node
                  */
-                iterator.remove();
-                elements.push(target);
+                final E target = parent.elements[i];
+                parent.removeAt(i);
+                insertNode(target, tx, ty);
                 parent.insertNode(e, fx, fy);
                 return true;
             }
@@ -561,9 +2813,199 @@ public final class FlexibleQuadTree<E> implements SpatialIndex<E> {
         return false;
     }
 
+    /**
+     * Stops watching all the regions watched by the provided listener.
+     * 
+     * @param listener
+     *            the listener
+     * @return true if some region was being watched by the listener
+     */
+    public boolean unwatch(final RegionListener<? super E> listener) {
+        if (watches == null) {
+            return false;
+        }
+        boolean found = false;
+        final double inf = Double.POSITIVE_INFINITY;
+        for (final Watch<E> w : watches.query(-inf, -inf, inf, inf)) {
+            if (w.listener == listener) {
+                watches.remove(w, w.minx, w.miny, w.maxx, w.maxy);
+                found = true;
+            }
+        }
+        if (watches.size() == 0) {
+            watches = null;
+        }
+        return found;
+    }
+
+    private void visitAll(final Consumer<? super E> action) {
+        for (int i = 0; i < size; i++) {
+            action.accept(elements[i]);
+        }
+        if (hasChildren()) {
+            for (final FlexibleQuadTree<E> child : children) {
+                child.visitAll(action);
+            }
+        }
+    }
+
+    /**
+     * Watches a rectangle: from now on, the listener gets notified whenever
+     * an element enters or leaves it, upon {@link #insert(Object, double, double)},
+     * move and remove, and their batch versions. Only the watches whose
+     * boundary was crossed get notified, hence the cost of a mutation does not
+     * depend on the number of elements in the watched regions. The elements
+     * already in the rectangle are not notified. Listeners must not add or
+     * remove watches. Watches are neither serialized nor journaled.
+     * 
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param listener
+     *            the {@link RegionListener} to notify
+     */
+    public void watch(
+            final double x1, final double y1, final double x2, final double y2,
+            final RegionListener<? super E> listener) {
+        addWatch(new Watch<E>(
+                Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), Double.NaN, listener));
+    }
+
+    /**
+     * Same of {@link #watch(double, double, double, double, RegionListener)},
+     * but watches a circle.
+     * 
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @param listener
+     *            the {@link RegionListener} to notify
+     */
+    public void watchRadius(
+            final double x, final double y, final double radius,
+            final RegionListener<? super E> listener) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        addWatch(new Watch<E>(x - radius, y - radius, x + radius, y + radius, radius, listener));
+    }
+
+    /*
+     * Returns the node, after replacing it with a private copy if it is
+     * shared with some snapshot, along with the path leading to it. To be
+     * used on nodes found without copying them, and about to be modified.
+     */
+    private FlexibleQuadTree<E> writable(final FlexibleQuadTree<E> node) {
+        if (node.epoch == root.epoch) {
+            return node;
+        }
+        /*
+         * Copies share the bounds of their originals
+         */
+        final double x = node.centerX();
+        final double y = node.centerY();
+        FlexibleQuadTree<E> cur = root;
+        while (cur.bounds != node.bounds) {
+            cur = cur.writableChild(cur.childIndex(x, y));
+        }
+        return cur;
+    }
+
+    /*
+     * Returns the child, after replacing it with a private copy if it is
+     * shared with some snapshot. To be used on nodes about to be modified.
+     */
+    private FlexibleQuadTree<E> writableChild(final int index) {
+        final FlexibleQuadTree<E> child = children[index];
+        if (child.epoch == epoch) {
+            return child;
+        }
+        final FlexibleQuadTree<E> copy = new FlexibleQuadTree<>(child, this, epoch);
+        children[index] = copy;
+        /*
+         * Snapshots do not read the counter of the replaced node
+         */
+        child.modCount++;
+        if (locations != null) {
+            for (int i = 0; i < copy.size; i++) {
+                locations.put(copy.elements[i], copy);
+            }
+        }
+        if (copy.children != null) {
+            /*
+             * Snapshots never walk up the tree: shared children can point to
+             * the copy, so that the tree does not keep old versions alive.
+             */
+            for (final FlexibleQuadTree<E> grandChild : copy.children) {
+                grandChild.parent = copy;
+            }
+        }
+        return copy;
+    }
+
+    /*
+     * Writes the records of the elements and of the children, then the record
+     * of this node, and returns its offset.
+     */
+    private long writeHere(final ChannelOutput out, final ElementCodec<? super E> codec) throws IOException {
+        final long[] childOffsets = new long[hasChildren() ? children.length : 0];
+        for (int c = 0; c < childOffsets.length; c++) {
+            childOffsets[c] = children[c].writeHere(out, codec);
+        }
+        final long[] elementOffsets = new long[size];
+        for (int i = 0; i < size; i++) {
+            elementOffsets[i] = out.position();
+            final byte[] data = codec.encode(elements[i]);
+            out.putInt(data.length);
+            out.put(data);
+        }
+        final long offset = out.position();
+        out.putDouble(minX());
+        out.putDouble(minY());
+        out.putDouble(maxX());
+        out.putDouble(maxY());
+        out.putInt(size);
+        out.putInt(subtreeSize);
+        out.putInt(childOffsets.length == 0 ? 0 : 1);
+        out.putInt(0);
+        for (final long child : childOffsets) {
+            out.putLong(child);
+        }
+        for (int i = 0; i < size; i++) {
+            out.putDouble(xs[i]);
+            out.putDouble(ys[i]);
+            out.putLong(elementOffsets[i]);
+        }
+        return offset;
+    }
+
+    private void updateSubtreeSize(final int delta) {
+        for (FlexibleQuadTree<E> cur = this; cur != null; cur = cur.parent) {
+            cur.subtreeSize += delta;
+        }
+    }
+
     @Override
     public String toString() {
-        return bounds.toString() + ' ' + elements.toString();
+        if (root != this) {
+            return root.toString();
+        }
+        final StringBuilder sb = new StringBuilder(bounds.toString()).append(" [");
+        for (int i = size - 1; i >= 0; i--) {
+            sb.append(elements[i]).append("@[").append(xs[i]).append(", ").append(ys[i]).append(']');
+            if (i > 0) {
+                sb.append(", ");
+            }
+        }
+        return sb.append(']').toString();
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,495 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java8.util.function.Consumer;
+
+/**
+ * A {@link SpatialIndex} splitting the plane in square cells of fixed size.
+ * Only non empty cells are stored, in an open addressing hash table keyed
+ * by their packed coordinates, hence there is no bound on the coordinates. Moves within a
+ * cell update the entry in place, moves across cells remove it from a cell
+ * and append it to another in constant time. Queries visit exactly the
+ * cells they overlap.
+ *
+ * It works best when elements are spread rather uniformly and the cell size
+ * is comparable to the typical query size. For clustered data or queries of
+ * very different sizes, prefer {@link FlexibleQuadTree}.
+ *
+ * @param <E>
+ *            content of the index
+ */
+public final class HashGridIndex<E> implements SpatialIndex<E> {
+
+    private static final long serialVersionUID = 1L;
+    private static final int INITIAL_CELL_CAPACITY = 4;
+    private static final int INITIAL_TABLE_SIZE = 16;
+    private static final long GOLDEN_RATIO = 0x9E3779B97F4A7C15L;
+
+    private final double cellSize;
+    /*
+     * Linear probing table of the non empty cells, at most half full. Keys
+     * are stored in the cells, avoiding boxing.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Cell<E>[] table = new Cell[INITIAL_TABLE_SIZE];
+    private int cellCount;
+
+    /*
+     * Entries of a cell, as parallel arrays. Order is not preserved upon
+     * removal.
+     */
+    private static final class Cell<E> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int x, y;
+        private final long key;
+        private double[] xs = new double[INITIAL_CELL_CAPACITY];
+        private double[] ys = new double[INITIAL_CELL_CAPACITY];
+        @SuppressWarnings("unchecked")
+        private E[] elements = (E[]) new Object[INITIAL_CELL_CAPACITY];
+        private int size;
+
+        Cell(final int x, final int y) {
+            this.x = x;
+            this.y = y;
+            key = key(x, y);
+        }
+
+        void add(final E e, final double x, final double y) {
+            if (size == elements.length) {
+                final int capacity = size * 2;
+                xs = Arrays.copyOf(xs, capacity);
+                ys = Arrays.copyOf(ys, capacity);
+                elements = Arrays.copyOf(elements, capacity);
+            }
+            xs[size] = x;
+            ys[size] = y;
+            elements[size] = e;
+            size++;
+        }
+
+        int indexOf(final E e, final double x, final double y) {
+            for (int i = 0; i < size; i++) {
+                if (xs[i] == x && ys[i] == y && (e == elements[i] || e != null && e.equals(elements[i]))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void removeAt(final int index) {
+            size--;
+            xs[index] = xs[size];
+            ys[index] = ys[size];
+            elements[index] = elements[size];
+            elements[size] = null;
+        }
+    }
+
+    private interface CellVisitor<E> {
+        void visit(int x, int y, Cell<E> cell);
+    }
+
+    /**
+     * @param cellSize
+     *            the side of the cells. Should be in the order of magnitude
+     *            of the typical query.
+     */
+    public HashGridIndex(final double cellSize) {
+        if (!(cellSize > 0) || Double.isInfinite(cellSize)) {
+            throw new IllegalArgumentException("Invalid cell size: " + cellSize);
+        }
+        this.cellSize = cellSize;
+    }
+
+    private int cell(final double coordinate) {
+        /*
+         * Cells beyond the int range get merged in the outermost ones
+         */
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, Math.floor(coordinate / cellSize)));
+    }
+
+    /*
+     * Runs the visitor on each existing cell overlapping the cell range,
+     * choosing whether to look them up or to scan all the cells.
+     */
+    private void forEachCell(final int minx, final int miny, final int maxx, final int maxy, final CellVisitor<E> visitor) {
+        final double count = ((double) maxx - minx + 1) * ((double) maxy - miny + 1);
+        if (count <= cellCount) {
+            for (long x = minx; x <= maxx; x++) {
+                for (long y = miny; y <= maxy; y++) {
+                    final Cell<E> cell = lookup(key((int) x, (int) y));
+                    if (cell != null) {
+                        visitor.visit((int) x, (int) y, cell);
+                    }
+                }
+            }
+        } else {
+            for (final Cell<E> cell : table) {
+                if (cell != null && cell.x >= minx && cell.x <= maxx && cell.y >= miny && cell.y <= maxy) {
+                    visitor.visit(cell.x, cell.y, cell);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the side of the cells
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    @Override
+    public int getDimensions() {
+        return 2;
+    }
+
+    @Override
+    public void insert(final E element, final double... position) {
+        assert position.length == 2;
+        insert(element, position[0], position[1]);
+    }
+
+    /**
+     * Same of {@link #insert(Object, double...)}, but with explicit parameters.
+     *
+     * @param e
+     *            element
+     * @param x
+     *            X
+     * @param y
+     *            Y
+     */
+    public void insert(final E e, final double x, final double y) {
+        final int cx = cell(x);
+        final int cy = cell(y);
+        Cell<E> cell = lookup(key(cx, cy));
+        if (cell == null) {
+            cell = new Cell<>(cx, cy);
+            if (2 * (cellCount + 1) > table.length) {
+                resize(table.length * 2);
+            }
+            table[freeSlot(cell.key)] = cell;
+            cellCount++;
+        }
+        cell.add(e, x, y);
+    }
+
+    private int freeSlot(final long key) {
+        final int mask = table.length - 1;
+        int i = slot(key, mask);
+        while (table[i] != null) {
+            i = i + 1 & mask;
+        }
+        return i;
+    }
+
+    /*
+     * Cells at the border of the int range also host everything beyond it,
+     * hence their bounds can not be trusted.
+     */
+    private static boolean isBorder(final int c) {
+        return c == Integer.MIN_VALUE || c == Integer.MAX_VALUE;
+    }
+
+    private Cell<E> lookup(final long key) {
+        final int mask = table.length - 1;
+        for (int i = slot(key, mask);; i = i + 1 & mask) {
+            final Cell<E> cell = table[i];
+            if (cell == null || cell.key == key) {
+                return cell;
+            }
+        }
+    }
+
+    private static long key(final int x, final int y) {
+        return (long) x << Integer.SIZE | y & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public boolean move(final E element, final double[] start, final double[] end) {
+        assert start.length == 2;
+        assert end.length == 2;
+        return move(element, start[0], start[1], end[0], end[1]);
+    }
+
+    /**
+     * Same of {@link #move(Object, double[], double[])}, but with explicit
+     * parameters.
+     *
+     * @param e
+     *            the element
+     * @param sx
+     *            the start x
+     * @param sy
+     *            the start y
+     * @param fx
+     *            the final x
+     * @param fy
+     *            the final y
+     * @return true if the element is found and moved
+     */
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        final int startX = cell(sx);
+        final int startY = cell(sy);
+        final Cell<E> from = lookup(key(startX, startY));
+        if (from == null) {
+            return false;
+        }
+        final int index = from.indexOf(e, sx, sy);
+        if (index < 0) {
+            return false;
+        }
+        if (cell(fx) == startX && cell(fy) == startY) {
+            from.xs[index] = fx;
+            from.ys[index] = fy;
+            from.elements[index] = e;
+        } else {
+            removeAt(from, index);
+            insert(e, fx, fy);
+        }
+        return true;
+    }
+
+    @Override
+    public List<E> query(final double[]... parallelotope) {
+        assert parallelotope.length == 2;
+        assert parallelotope[0].length == 2;
+        assert parallelotope[1].length == 2;
+        return query(parallelotope[0][0], parallelotope[0][1], parallelotope[1][0], parallelotope[1][1]);
+    }
+
+    @Override
+    public void query(final Consumer<? super E> action, final double[]... parallelotope) {
+        assert parallelotope.length == 2;
+        assert parallelotope[0].length == 2;
+        assert parallelotope[1].length == 2;
+        query(parallelotope[0][0], parallelotope[0][1], parallelotope[1][0], parallelotope[1][1], action);
+    }
+
+    /**
+     * Same of {@link #query(double[]...)}, but with explicit parameters.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> query(final double x1, final double y1, final double x2, final double y2) {
+        final List<E> result = new ArrayList<>();
+        query(x1, y1, x2, y2, result::add);
+        return result;
+    }
+
+    /**
+     * Same of {@link #query(Consumer, double[]...)}, but with explicit
+     * parameters. Cells lying strictly inside the rectangle are accepted
+     * without checking their entries.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     */
+    public void query(
+            final double x1, final double y1, final double x2, final double y2,
+            final Consumer<? super E> action) {
+        final double sx = Math.min(x1, x2);
+        final double sy = Math.min(y1, y2);
+        final double fx = Math.max(x1, x2);
+        final double fy = Math.max(y1, y2);
+        final int minx = cell(sx);
+        final int miny = cell(sy);
+        final int maxx = cell(fx);
+        final int maxy = cell(fy);
+        forEachCell(minx, miny, maxx, maxy, (cx, cy, cell) -> {
+            /*
+             * cell() is monotonic: comparing cells is exact, while comparing
+             * coordinates with the cell bounds would suffer from rounding.
+             */
+            final boolean inside = cx > minx && cx < maxx && cy > miny && cy < maxy;
+            for (int i = 0; i < cell.size; i++) {
+                final double x = cell.xs[i];
+                final double y = cell.ys[i];
+                if (inside || x >= sx && x < fx && y >= sy && y < fy) {
+                    action.accept(cell.elements[i]);
+                }
+            }
+        });
+    }
+
+    @Override
+    public List<E> queryRadius(final double[] center, final double radius) {
+        assert center.length == 2;
+        return queryRadius(center[0], center[1], radius);
+    }
+
+    /**
+     * Same of {@link #queryRadius(double[], double)}, but with explicit
+     * parameters.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> queryRadius(final double x, final double y, final double radius) {
+        final List<E> result = new ArrayList<>();
+        queryRadius(x, y, radius, result::add);
+        return result;
+    }
+
+    /**
+     * Feeds each element whose distance from the center is not greater than
+     * radius to the provided action. Cells whose bounds are out of the circle
+     * are skipped, cells lying completely inside are accepted without
+     * checking their entries.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     */
+    public void queryRadius(final double x, final double y, final double radius, final Consumer<? super E> action) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        final double squaredRadius = radius * radius;
+        forEachCell(cell(x - radius), cell(y - radius), cell(x + radius), cell(y + radius), (cx, cy, cell) -> {
+            boolean inside = false;
+            if (!isBorder(cx) && !isBorder(cy)) {
+                /*
+                 * Bounds get slightly enlarged to account for rounding
+                 */
+                final double pad = 4 * Math.ulp(cellSize * (Math.max(Math.abs((double) cx), Math.abs((double) cy)) + 1));
+                final double minx = cx * cellSize - pad;
+                final double miny = cy * cellSize - pad;
+                final double maxx = (cx + 1.0) * cellSize + pad;
+                final double maxy = (cy + 1.0) * cellSize + pad;
+                final double nearX = x < minx ? minx - x : x > maxx ? x - maxx : 0;
+                final double nearY = y < miny ? miny - y : y > maxy ? y - maxy : 0;
+                if (nearX * nearX + nearY * nearY > squaredRadius) {
+                    return;
+                }
+                final double farX = Math.max(x - minx, maxx - x);
+                final double farY = Math.max(y - miny, maxy - y);
+                inside = farX * farX + farY * farY <= squaredRadius;
+            }
+            for (int i = 0; i < cell.size; i++) {
+                final double dx = cell.xs[i] - x;
+                final double dy = cell.ys[i] - y;
+                if (inside || dx * dx + dy * dy <= squaredRadius) {
+                    action.accept(cell.elements[i]);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean remove(final E element, final double... position) {
+        assert position.length == 2;
+        return remove(element, position[0], position[1]);
+    }
+
+    /**
+     * Same of {@link #remove(Object, double...)} with explicit parameters.
+     *
+     * @param e
+     *            Element to remove
+     * @param x
+     *            X position of the element
+     * @param y
+     *            Y position of the element
+     * @return true if the element has been found and removed
+     */
+    public boolean remove(final E e, final double x, final double y) {
+        final Cell<E> cell = lookup(key(cell(x), cell(y)));
+        if (cell != null) {
+            final int index = cell.indexOf(e, x, y);
+            if (index >= 0) {
+                removeAt(cell, index);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void removeAt(final Cell<E> cell, final int index) {
+        cell.removeAt(index);
+        if (cell.size == 0) {
+            removeCell(cell);
+        }
+    }
+
+    /*
+     * Backward shift deletion: the following entries of the cluster get moved
+     * back if the freed slot is still on their probing path.
+     */
+    private void removeCell(final Cell<E> cell) {
+        final int mask = table.length - 1;
+        int free = slot(cell.key, mask);
+        while (table[free] != cell) {
+            free = free + 1 & mask;
+        }
+        table[free] = null;
+        cellCount--;
+        for (int i = free + 1 & mask; table[i] != null; i = i + 1 & mask) {
+            final int home = slot(table[i].key, mask);
+            final boolean reachable = free <= i ? home <= free || home > i : home <= free && home > i;
+            if (reachable) {
+                table[free] = table[i];
+                table[i] = null;
+                free = i;
+            }
+        }
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private void resize(final int size) {
+        final Cell<E>[] old = table;
+        table = new Cell[size];
+        for (final Cell<E> cell : old) {
+            if (cell != null) {
+                table[freeSlot(cell.key)] = cell;
+            }
+        }
+    }
+
+    private static int slot(final long key, final int mask) {
+        return (int) (key * GOLDEN_RATIO >>> Integer.SIZE) & mask;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + cellCount + " cells of side " + cellSize;
+    }
+
+}
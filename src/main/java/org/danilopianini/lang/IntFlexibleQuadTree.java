@@ -0,0 +1,527 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+import java8.util.function.IntConsumer;
+
+/**
+ * A quadtree for elements identified by an int, such as dense entity
+ * identifiers. It follows the rules of {@link FlexibleQuadTree}: the tree
+ * grows upwards to include any point, co-located points share a bucket, and
+ * sparse subtrees get collapsed upon removal. Identifiers and coordinates are
+ * stored in primitive arrays, compared with ==, and handed out through an
+ * {@link IntConsumer} or an int array: no value gets boxed.
+ */
+public final class IntFlexibleQuadTree implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+    private static final int CHILDREN = 4;
+    private static final int TR = 0, BR = 1, BL = 2, TL = 3;
+    private static final int INITIAL_CAPACITY = 4;
+
+    private final int maxElements;
+    private Node root;
+
+    private static final class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final double minx, miny, maxx, maxy;
+        private Node parent;
+        private Node[] children;
+        private int[] ids;
+        private double[] xs;
+        private double[] ys;
+        private int size;
+        private int subtreeSize;
+
+        Node(final double minx, final double miny, final double maxx, final double maxy) {
+            this.minx = minx;
+            this.miny = miny;
+            this.maxx = maxx;
+            this.maxy = maxy;
+        }
+
+        void append(final int id, final double x, final double y) {
+            if (ids == null) {
+                ids = new int[INITIAL_CAPACITY];
+                xs = new double[INITIAL_CAPACITY];
+                ys = new double[INITIAL_CAPACITY];
+            } else if (size == ids.length) {
+                final int length = 2 * size;
+                ids = Arrays.copyOf(ids, length);
+                xs = Arrays.copyOf(xs, length);
+                ys = Arrays.copyOf(ys, length);
+            }
+            ids[size] = id;
+            xs[size] = x;
+            ys[size] = y;
+            size++;
+            for (Node cur = this; cur != null; cur = cur.parent) {
+                cur.subtreeSize++;
+            }
+        }
+
+        double centerX() {
+            return minx + (maxx - minx) / 2;
+        }
+
+        double centerY() {
+            return miny + (maxy - miny) / 2;
+        }
+
+        /*
+         * Index of the child containing the point. Bounds of a former root
+         * may slightly disagree with the center of its parent, hence the
+         * quadrant gets verified. Falls back to the quadrant if no child
+         * contains the point, so that insertions and lookups agree.
+         */
+        int childIndex(final double x, final double y) {
+            final int selected = x < centerX() ? y < centerY() ? BL : TL : y < centerY() ? BR : TR;
+            if (children[selected].contains(x, y)) {
+                return selected;
+            }
+            for (int c = 0; c < CHILDREN; c++) {
+                if (children[c].contains(x, y)) {
+                    return c;
+                }
+            }
+            return selected;
+        }
+
+        boolean contains(final double x, final double y) {
+            return x >= minx && y >= miny && x < maxx && y < maxy;
+        }
+
+        void delete(final int index) {
+            size--;
+            ids[index] = ids[size];
+            xs[index] = xs[size];
+            ys[index] = ys[size];
+            for (Node cur = this; cur != null; cur = cur.parent) {
+                cur.subtreeSize--;
+            }
+        }
+
+        void drainInto(final Node target) {
+            for (int i = 0; i < size; i++) {
+                target.ids[target.size] = ids[i];
+                target.xs[target.size] = xs[i];
+                target.ys[target.size] = ys[i];
+                target.size++;
+            }
+            if (children != null) {
+                for (final Node child : children) {
+                    child.drainInto(target);
+                }
+            }
+        }
+
+        int indexOf(final int id, final double x, final double y) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i] == id && xs[i] == x && ys[i] == y) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        boolean intersects(final double sx, final double sy, final double fx, final double fy) {
+            return fx >= minx && fy >= miny && sx < maxx && sy < maxy;
+        }
+
+        /*
+         * A leaf may exceed its capacity only if it can not be divided, or if
+         * all its entries share the same position.
+         */
+        boolean isBucketFor(final int capacity, final double x, final double y) {
+            if (!isDivisible()) {
+                return true;
+            }
+            final int checks = size > capacity ? 1 : size;
+            for (int i = 0; i < checks; i++) {
+                if (xs[i] != x || ys[i] != y) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean isDivisible() {
+            final double cx = centerX();
+            final double cy = centerY();
+            return minx < cx && cx < maxx && miny < cy && cy < maxy;
+        }
+
+        /*
+         * Entries of a bucket beyond capacity share the same position, those
+         * leaving it must be inserted again so that the bucket gets split.
+         */
+        boolean keeps(final int capacity, final int index, final double x, final double y) {
+            return contains(x, y) && (size <= capacity || xs[index] == x && ys[index] == y || !isDivisible());
+        }
+
+        void subdivide() {
+            final double cx = centerX();
+            final double cy = centerY();
+            children = new Node[CHILDREN];
+            setChild(TR, new Node(cx, cy, maxx, maxy));
+            setChild(BR, new Node(cx, miny, maxx, cy));
+            setChild(BL, new Node(minx, miny, cx, cy));
+            setChild(TL, new Node(minx, cy, cx, maxy));
+        }
+
+        void setChild(final int index, final Node child) {
+            if (children == null) {
+                children = new Node[CHILDREN];
+            }
+            children[index] = child;
+            child.parent = this;
+            subtreeSize += child.subtreeSize;
+        }
+    }
+
+    /**
+     * Builds a tree with the default node capacity.
+     */
+    public IntFlexibleQuadTree() {
+        this(FlexibleQuadTree.DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param elemPerQuad
+     *            maximum number of elements per node
+     */
+    public IntFlexibleQuadTree(final int elemPerQuad) {
+        if (elemPerQuad < 1) {
+            throw new IllegalArgumentException("Invalid node capacity: " + elemPerQuad);
+        }
+        maxElements = elemPerQuad;
+        root = new Node(-1, -1, 1, 1);
+    }
+
+    /*
+     * Collapses the topmost ancestor whose subtree holds at most half the node
+     * capacity, as per FlexibleQuadTree
+     */
+    private void collapseSparseAncestor(final Node node) {
+        final int threshold = maxElements / 2;
+        if (node.subtreeSize <= threshold) {
+            Node top = node;
+            while (top.parent != null && top.parent.subtreeSize <= threshold) {
+                top = top.parent;
+            }
+            if (top.children != null) {
+                final int length = Math.max(INITIAL_CAPACITY, top.subtreeSize);
+                top.ids = Arrays.copyOf(top.ids == null ? new int[0] : top.ids, length);
+                top.xs = Arrays.copyOf(top.xs == null ? new double[0] : top.xs, length);
+                top.ys = Arrays.copyOf(top.ys == null ? new double[0] : top.ys, length);
+                for (final Node child : top.children) {
+                    child.drainInto(top);
+                }
+                top.children = null;
+            }
+        }
+    }
+
+    private Node createParent(final Node node, final double x, final double y) {
+        final double width = node.maxx - node.minx;
+        final double height = node.maxy - node.miny;
+        final boolean left = x < node.centerX();
+        final boolean below = y < node.centerY();
+        final Node result = new Node(
+                left ? node.minx - width : node.minx,
+                below ? node.miny - height : node.miny,
+                left ? node.maxx : node.maxx + width,
+                below ? node.maxy : node.maxy + height);
+        /*
+         * The old root becomes the child on the opposite side of the point
+         */
+        result.setChild(left ? below ? TR : BR : below ? TL : BL, node);
+        final double cx = result.centerX();
+        final double cy = result.centerY();
+        final Node[] quadrants = {
+            new Node(cx, cy, result.maxx, result.maxy),
+            new Node(cx, result.miny, result.maxx, cy),
+            new Node(result.minx, result.miny, cx, cy),
+            new Node(result.minx, cy, cx, result.maxy),
+        };
+        for (int c = 0; c < CHILDREN; c++) {
+            if (result.children[c] == null) {
+                result.setChild(c, quadrants[c]);
+            }
+        }
+        return result;
+    }
+
+    private static int emit(final int id, final IntConsumer action, final int[] buffer, final int count) {
+        if (action != null) {
+            action.accept(id);
+        } else if (count < buffer.length) {
+            buffer[count] = id;
+        }
+        return count + 1;
+    }
+
+    /*
+     * Node hosting the entry, null if not found
+     */
+    private Node find(final int id, final double x, final double y) {
+        if (!root.contains(x, y)) {
+            return null;
+        }
+        for (Node cur = root; cur != null; cur = cur.children == null ? null : cur.children[cur.childIndex(x, y)]) {
+            if (cur.indexOf(id, x, y) >= 0) {
+                return cur;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the maximum number of elements per node
+     */
+    public int getMaxElementsNumber() {
+        return maxElements;
+    }
+
+    /**
+     * @param id
+     *            the element
+     * @param x
+     *            X
+     * @param y
+     *            Y
+     */
+    public void insert(final int id, final double x, final double y) {
+        while (!root.contains(x, y)) {
+            root = createParent(root, x, y);
+        }
+        insertFrom(root, id, x, y);
+    }
+
+    private void insertFrom(final Node start, final int id, final double x, final double y) {
+        Node cur = start;
+        while (cur.size >= maxElements && (cur.children != null || !cur.isBucketFor(maxElements, x, y))) {
+            if (cur.children == null) {
+                cur.subdivide();
+            }
+            cur = cur.children[cur.childIndex(x, y)];
+        }
+        cur.append(id, x, y);
+    }
+
+    /**
+     * Moves an element. If the final position is within the node hosting the
+     * element, it gets updated in place, unless the element leaves a bucket of
+     * co-located elements beyond the node capacity. Otherwise, the element
+     * gets inserted again starting from the closest node containing the final
+     * position.
+     *
+     * @param id
+     *            the element
+     * @param sx
+     *            the start x
+     * @param sy
+     *            the start y
+     * @param fx
+     *            the final x
+     * @param fy
+     *            the final y
+     * @return true if the element is found and moved
+     */
+    public boolean move(final int id, final double sx, final double sy, final double fx, final double fy) {
+        final Node node = find(id, sx, sy);
+        if (node == null) {
+            return false;
+        }
+        final int index = node.indexOf(id, sx, sy);
+        if (node.keeps(maxElements, index, fx, fy)) {
+            node.xs[index] = fx;
+            node.ys[index] = fy;
+            return true;
+        }
+        node.delete(index);
+        Node target = node;
+        while (target != null && !target.contains(fx, fy)) {
+            target = target.parent;
+        }
+        if (target == null) {
+            collapseSparseAncestor(node);
+            insert(id, fx, fy);
+        } else {
+            insertFrom(target, id, fx, fy);
+            collapseSparseAncestor(node);
+        }
+        return true;
+    }
+
+    /**
+     * Feeds each element in range to the provided action.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param action
+     *            the {@link IntConsumer} to feed with each element in range
+     */
+    public void query(
+            final double x1, final double y1, final double x2, final double y2,
+            final IntConsumer action) {
+        queryHere(root, Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), action, null, 0);
+    }
+
+    /**
+     * Writes the elements in range into the provided buffer. If the buffer
+     * is too small, the elements in excess are counted but not written: a
+     * larger buffer can then be used to run the query again.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param buffer
+     *            where to write the elements in range
+     * @return the number of elements in range
+     */
+    public int query(final double x1, final double y1, final double x2, final double y2, final int[] buffer) {
+        return queryHere(root, Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), null, buffer, 0);
+    }
+
+    /*
+     * Feeds the action if not null, otherwise writes into the buffer from the
+     * provided count on. Returns the updated count.
+     */
+    private static int queryHere(
+            final Node node,
+            final double sx, final double sy, final double fx, final double fy,
+            final IntConsumer action, final int[] buffer, final int count) {
+        int found = count;
+        if (node.subtreeSize > 0 && node.intersects(sx, sy, fx, fy)) {
+            for (int i = 0; i < node.size; i++) {
+                final double x = node.xs[i];
+                final double y = node.ys[i];
+                if (x >= sx && x < fx && y >= sy && y < fy) {
+                    found = emit(node.ids[i], action, buffer, found);
+                }
+            }
+            if (node.children != null) {
+                for (final Node child : node.children) {
+                    found = queryHere(child, sx, sy, fx, fy, action, buffer, found);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Feeds each element whose distance from the center is not greater than
+     * radius to the provided action.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @param action
+     *            the {@link IntConsumer} to feed with each element in range
+     */
+    public void queryRadius(final double x, final double y, final double radius, final IntConsumer action) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        queryRadiusHere(root, x, y, radius * radius, action, null, 0);
+    }
+
+    /**
+     * Same of {@link #query(double, double, double, double, int[])}, but for
+     * the elements whose distance from the center is not greater than
+     * radius.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @param buffer
+     *            where to write the elements in range
+     * @return the number of elements in range
+     */
+    public int queryRadius(final double x, final double y, final double radius, final int[] buffer) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        return queryRadiusHere(root, x, y, radius * radius, null, buffer, 0);
+    }
+
+    private static int queryRadiusHere(
+            final Node node, final double cx, final double cy, final double squaredRadius,
+            final IntConsumer action, final int[] buffer, final int count) {
+        int found = count;
+        final double dx = cx < node.minx ? node.minx - cx : cx > node.maxx ? cx - node.maxx : 0;
+        final double dy = cy < node.miny ? node.miny - cy : cy > node.maxy ? cy - node.maxy : 0;
+        if (node.subtreeSize > 0 && dx * dx + dy * dy <= squaredRadius) {
+            for (int i = 0; i < node.size; i++) {
+                final double ex = node.xs[i] - cx;
+                final double ey = node.ys[i] - cy;
+                if (ex * ex + ey * ey <= squaredRadius) {
+                    found = emit(node.ids[i], action, buffer, found);
+                }
+            }
+            if (node.children != null) {
+                for (final Node child : node.children) {
+                    found = queryRadiusHere(child, cx, cy, squaredRadius, action, buffer, found);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param id
+     *            Element to remove
+     * @param x
+     *            X position of the element
+     * @param y
+     *            Y position of the element
+     * @return true if the element has been found and removed
+     */
+    public boolean remove(final int id, final double x, final double y) {
+        final Node node = find(id, x, y);
+        if (node == null) {
+            return false;
+        }
+        node.delete(node.indexOf(id, x, y));
+        collapseSparseAncestor(node);
+        return true;
+    }
+
+    /**
+     * @return the number of elements in the tree
+     */
+    public int size() {
+        return root.subtreeSize;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + size() + " elements";
+    }
+
+}
@@ -0,0 +1,786 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java8.util.function.Consumer;
+
+/**
+ * A linear quadtree: entries are kept in primitive arrays, sorted by the
+ * Morton code of their position, namely the interleaved bits of their
+ * coordinates quantized over a frame. A rectangle query becomes a sequence of
+ * contiguous scans of the arrays: when the scan meets an entry outside of the
+ * rectangle, it jumps to the next code inside it via binary search.
+ *
+ * Updates are meant to be rare. Insertions go to a small unsorted write
+ * buffer, scanned by every query, that gets merged in the sorted arrays when
+ * full or upon {@link #flush()}. Removals mark the entry as removed, and
+ * removed entries get dropped upon merging. The frame gets recomputed on the
+ * data whenever points fall out of it; points out of the frame are mapped to
+ * its border, hence queries stay correct in the meantime.
+ *
+ * For update heavy workloads, prefer {@link FlexibleQuadTree}, which this
+ * index can be built from.
+ *
+ * @param <E>
+ *            content of the index
+ */
+public final class LinearQuadTree<E> implements SpatialIndex<E> {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * Default number of insertions buffered before merging.
+     */
+    public static final int DEFAULT_BUFFER_CAPACITY = 1024;
+    private static final int BITS = 31;
+    private static final long MAX_CELL = (1L << BITS) - 1;
+    private static final long X_BITS = 0x1555555555555555L;
+    private static final long Y_BITS = X_BITS << 1;
+    private static final int RADIX_BITS = 8;
+    private static final int MAX_MISSES = 16;
+    private static final int RADIX = 1 << RADIX_BITS;
+    /*
+     * Marks removed entries until the next merge. Never serialized, see
+     * SerializedForm.
+     */
+    private static final Object REMOVED = new Object();
+
+    private interface EntryVisitor<E> {
+        void visit(double x, double y, E element);
+    }
+
+    /*
+     * Serialization proxy holding the live entries only: writing does not
+     * merge the buffer of the tree, reading builds a merged one.
+     */
+    private static final class SerializedForm<E> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final int bufferCapacity;
+        private final Object[] elements;
+        private final double[] xs;
+        private final double[] ys;
+
+        SerializedForm(final LinearQuadTree<E> tree) {
+            bufferCapacity = tree.bufferCapacity;
+            final int n = tree.size();
+            elements = new Object[n];
+            xs = new double[n];
+            ys = new double[n];
+            int j = 0;
+            for (int i = 0; i < tree.size; i++) {
+                if (tree.elements[i] != REMOVED) {
+                    elements[j] = tree.elements[i];
+                    xs[j] = tree.xs[i];
+                    ys[j] = tree.ys[i];
+                    j++;
+                }
+            }
+            System.arraycopy(tree.belements, 0, elements, j, tree.buffered);
+            System.arraycopy(tree.bxs, 0, xs, j, tree.buffered);
+            System.arraycopy(tree.bys, 0, ys, j, tree.buffered);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Object readResolve() {
+            final LinearQuadTree<E> result = new LinearQuadTree<>(bufferCapacity);
+            result.rebuild((E[]) elements, xs, ys, elements.length);
+            return result;
+        }
+    }
+
+    private final int bufferCapacity;
+    /*
+     * Frame of the quantization
+     */
+    private double minx, miny, scalex, scaley;
+    /*
+     * Sorted entries
+     */
+    private long[] codes = new long[0];
+    private double[] xs = new double[0];
+    private double[] ys = new double[0];
+    private Object[] elements = new Object[0];
+    private int size;
+    private int removed;
+    /*
+     * Write buffer
+     */
+    private final double[] bxs;
+    private final double[] bys;
+    private final Object[] belements;
+    private int buffered;
+
+    /**
+     * Builds an empty {@link LinearQuadTree} with the default buffer capacity.
+     */
+    public LinearQuadTree() {
+        this(DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * @param bufferCapacity
+     *            number of insertions buffered before merging
+     */
+    public LinearQuadTree(final int bufferCapacity) {
+        if (bufferCapacity < 1) {
+            throw new IllegalArgumentException("Invalid buffer capacity: " + bufferCapacity);
+        }
+        this.bufferCapacity = bufferCapacity;
+        bxs = new double[bufferCapacity];
+        bys = new double[bufferCapacity];
+        belements = new Object[bufferCapacity];
+    }
+
+    /**
+     * Builds a {@link LinearQuadTree} with the content of a
+     * {@link FlexibleQuadTree}, and the default buffer capacity.
+     *
+     * @param source
+     *            the tree to copy
+     */
+    public LinearQuadTree(final FlexibleQuadTree<E> source) {
+        this(source, DEFAULT_BUFFER_CAPACITY);
+    }
+
+    /**
+     * Builds a {@link LinearQuadTree} with the content of a
+     * {@link FlexibleQuadTree}.
+     *
+     * @param source
+     *            the tree to copy
+     * @param bufferCapacity
+     *            number of insertions buffered before merging
+     */
+    @SuppressWarnings("unchecked")
+    public LinearQuadTree(final FlexibleQuadTree<E> source, final int bufferCapacity) {
+        this(bufferCapacity);
+        final int n = source.size();
+        final E[] es = (E[]) new Object[n];
+        final double[] x = new double[n];
+        final double[] y = new double[n];
+        source.copyEntries(es, x, y);
+        rebuild(es, x, y, n);
+    }
+
+    /*
+     * Smallest code inside the query box greater than a code which lies
+     * within [zmin, zmax] but outside of the box (Tropf and Herzog).
+     */
+    private static long bigmin(final long code, final long zmin, final long zmax) {
+        long result = 0;
+        long min = zmin;
+        long max = zmax;
+        /*
+         * Bits above the first difference between zmin and zmax are shared
+         */
+        for (int bit = Long.SIZE - 1 - Long.numberOfLeadingZeros(zmin ^ zmax); bit >= 0; bit--) {
+            final long mask = 1L << bit;
+            final long lower = (bit % 2 == 0 ? X_BITS : Y_BITS) & (mask - 1);
+            final boolean inCode = (code & mask) != 0;
+            final boolean inMin = (min & mask) != 0;
+            final boolean inMax = (max & mask) != 0;
+            if (!inCode && !inMin && inMax) {
+                result = min & ~lower | mask;
+                max = max & ~mask | lower;
+            } else if (!inCode && inMin && inMax) {
+                return min;
+            } else if (inCode && !inMin && !inMax) {
+                return result;
+            } else if (inCode && !inMin && inMax) {
+                min = min & ~lower | mask;
+            }
+        }
+        return result;
+    }
+
+    private long code(final double x, final double y) {
+        return spread(quantize(x, minx, scalex)) | spread(quantize(y, miny, scaley)) << 1;
+    }
+
+    private static long compact(final long code) {
+        long v = code & X_BITS;
+        v = (v | v >>> 1) & 0x3333333333333333L;
+        v = (v | v >>> 2) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | v >>> 4) & 0x00FF00FF00FF00FFL;
+        v = (v | v >>> 8) & 0x0000FFFF0000FFFFL;
+        return (v | v >>> 16) & 0x00000000FFFFFFFFL;
+    }
+
+    private static boolean equal(final Object a, final Object b) {
+        return a == b || a != null && a.equals(b);
+    }
+
+    /**
+     * Merges the write buffer into the sorted arrays, and drops the removed
+     * entries.
+     */
+    @SuppressWarnings("unchecked")
+    public void flush() {
+        if (buffered == 0 && removed == 0) {
+            return;
+        }
+        boolean inFrame = size > removed;
+        for (int i = 0; inFrame && i < buffered; i++) {
+            final double qx = (bxs[i] - minx) * scalex;
+            final double qy = (bys[i] - miny) * scaley;
+            inFrame = qx >= 0 && qx <= MAX_CELL && qy >= 0 && qy <= MAX_CELL;
+        }
+        if (inFrame) {
+            merge();
+        } else {
+            final int n = size - removed + buffered;
+            final E[] es = (E[]) new Object[n];
+            final double[] x = new double[n];
+            final double[] y = new double[n];
+            int j = 0;
+            for (int i = 0; i < size; i++) {
+                if (elements[i] != REMOVED) {
+                    es[j] = (E) elements[i];
+                    x[j] = xs[i];
+                    y[j] = ys[i];
+                    j++;
+                }
+            }
+            System.arraycopy(belements, 0, es, j, buffered);
+            System.arraycopy(bxs, 0, x, j, buffered);
+            System.arraycopy(bys, 0, y, j, buffered);
+            clearBuffer();
+            rebuild(es, x, y, n);
+        }
+    }
+
+    private void clearBuffer() {
+        Arrays.fill(belements, 0, buffered, null);
+        buffered = 0;
+    }
+
+    /**
+     * @return the number of insertions buffered before merging
+     */
+    public int getBufferCapacity() {
+        return bufferCapacity;
+    }
+
+    @Override
+    public int getDimensions() {
+        return 2;
+    }
+
+    @Override
+    public void insert(final E e, final double... position) {
+        assert position.length == 2;
+        insert(e, position[0], position[1]);
+    }
+
+    /**
+     * Same of {@link #insert(Object, double...)}, but with explicit parameters.
+     *
+     * @param e
+     *            element
+     * @param x
+     *            X
+     * @param y
+     *            Y
+     */
+    public void insert(final E e, final double x, final double y) {
+        if (buffered == bufferCapacity) {
+            flush();
+        }
+        bxs[buffered] = x;
+        bys[buffered] = y;
+        belements[buffered] = e;
+        buffered++;
+    }
+
+    /**
+     * Inserts a batch of elements, and merges them right away with the
+     * content of this index. Cheaper than many calls to
+     * {@link #insert(Object, double, double)}.
+     *
+     * @param es
+     *            the elements
+     * @param x
+     *            X coordinates, x[i] is the X of es[i]
+     * @param y
+     *            Y coordinates, y[i] is the Y of es[i]
+     */
+    @SuppressWarnings("unchecked")
+    public void insertAll(final E[] es, final double[] x, final double[] y) {
+        if (es.length != x.length || es.length != y.length) {
+            throw new IllegalArgumentException("Got " + es.length + " elements, "
+                    + x.length + " X coordinates, and " + y.length + " Y coordinates.");
+        }
+        final int n = size - removed + buffered + es.length;
+        final E[] all = (E[]) new Object[n];
+        final double[] ax = new double[n];
+        final double[] ay = new double[n];
+        int j = 0;
+        for (int i = 0; i < size; i++) {
+            if (elements[i] != REMOVED) {
+                all[j] = (E) elements[i];
+                ax[j] = xs[i];
+                ay[j] = ys[i];
+                j++;
+            }
+        }
+        System.arraycopy(belements, 0, all, j, buffered);
+        System.arraycopy(bxs, 0, ax, j, buffered);
+        System.arraycopy(bys, 0, ay, j, buffered);
+        j += buffered;
+        System.arraycopy(es, 0, all, j, es.length);
+        System.arraycopy(x, 0, ax, j, es.length);
+        System.arraycopy(y, 0, ay, j, es.length);
+        clearBuffer();
+        rebuild(all, ax, ay, n);
+    }
+
+    /*
+     * Index of the first code not smaller than the provided one in [from,
+     * size). Gallops from the start, as the target is usually close.
+     */
+    private int lowerBound(final long code, final int from) {
+        int low = from;
+        int step = 1;
+        while (low + step < size && codes[low + step] < code) {
+            low += step;
+            step <<= 1;
+        }
+        int high = Math.min(size, low + step);
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (codes[mid] < code) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /*
+     * Linear merge of the sorted buffer with the sorted arrays, skipping the
+     * removed entries
+     */
+    private void merge() {
+        final long[] bcodes = new long[buffered];
+        for (int i = 0; i < buffered; i++) {
+            bcodes[i] = code(bxs[i], bys[i]);
+        }
+        final int[] border = sortedOrder(bcodes, buffered);
+        final int n = size - removed + buffered;
+        final long[] mcodes = new long[n];
+        final double[] mxs = new double[n];
+        final double[] mys = new double[n];
+        final Object[] melements = new Object[n];
+        int i = 0;
+        int b = 0;
+        for (int j = 0; j < n; j++) {
+            while (i < size && elements[i] == REMOVED) {
+                i++;
+            }
+            if (b < buffered && (i == size || bcodes[border[b]] < codes[i])) {
+                final int k = border[b++];
+                mcodes[j] = bcodes[k];
+                mxs[j] = bxs[k];
+                mys[j] = bys[k];
+                melements[j] = belements[k];
+            } else {
+                mcodes[j] = codes[i];
+                mxs[j] = xs[i];
+                mys[j] = ys[i];
+                melements[j] = elements[i];
+                i++;
+            }
+        }
+        codes = mcodes;
+        xs = mxs;
+        ys = mys;
+        elements = melements;
+        size = n;
+        removed = 0;
+        clearBuffer();
+    }
+
+    @Override
+    public boolean move(final E e, final double[] start, final double[] end) {
+        assert start.length == 2;
+        assert end.length == 2;
+        return move(e, start[0], start[1], end[0], end[1]);
+    }
+
+    /**
+     * Same of {@link #move(Object, double[], double[])}, but with explicit
+     * parameters. Buffered entries, and entries whose Morton code does not
+     * change, are updated in place. Others get removed and inserted again.
+     *
+     * @param e
+     *            the element
+     * @param sx
+     *            the start x
+     * @param sy
+     *            the start y
+     * @param fx
+     *            the final x
+     * @param fy
+     *            the final y
+     * @return true if the element is found and moved
+     */
+    public boolean move(final E e, final double sx, final double sy, final double fx, final double fy) {
+        final int index = size == 0 ? -1 : sortedIndexOf(e, sx, sy);
+        if (index >= 0 && codes[index] == code(fx, fy)) {
+            xs[index] = fx;
+            ys[index] = fy;
+            elements[index] = e;
+            return true;
+        }
+        if (index >= 0) {
+            remove(e, sx, sy);
+            insert(e, fx, fy);
+            return true;
+        }
+        final int bufferedIndex = bufferedIndexOf(e, sx, sy);
+        if (bufferedIndex >= 0) {
+            bxs[bufferedIndex] = fx;
+            bys[bufferedIndex] = fy;
+            return true;
+        }
+        return false;
+    }
+
+    private int bufferedIndexOf(final E e, final double x, final double y) {
+        for (int i = 0; i < buffered; i++) {
+            if (bxs[i] == x && bys[i] == y && equal(e, belements[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public List<E> query(final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 2;
+        assert space[1].length == 2;
+        return query(space[0][0], space[0][1], space[1][0], space[1][1]);
+    }
+
+    @Override
+    public void query(final Consumer<? super E> action, final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 2;
+        assert space[1].length == 2;
+        query(space[0][0], space[0][1], space[1][0], space[1][1], action);
+    }
+
+    /**
+     * Same of {@link #query(double[]...)}, but with explicit parameters.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> query(final double x1, final double y1, final double x2, final double y2) {
+        final List<E> result = new ArrayList<>();
+        query(x1, y1, x2, y2, result::add);
+        return result;
+    }
+
+    /**
+     * Same of {@link #query(Consumer, double[]...)}, but with explicit
+     * parameters.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     */
+    public void query(
+            final double x1, final double y1, final double x2, final double y2,
+            final Consumer<? super E> action) {
+        final double sx = Math.min(x1, x2);
+        final double sy = Math.min(y1, y2);
+        final double fx = Math.max(x1, x2);
+        final double fy = Math.max(y1, y2);
+        scan(sx, sy, fx, fy, (x, y, e) -> {
+            if (x < fx && y < fy) {
+                action.accept(e);
+            }
+        });
+    }
+
+    @Override
+    public List<E> queryRadius(final double[] center, final double radius) {
+        assert center.length == 2;
+        return queryRadius(center[0], center[1], radius);
+    }
+
+    /**
+     * Same of {@link #queryRadius(double[], double)}, but with explicit
+     * parameters.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> queryRadius(final double x, final double y, final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        final List<E> result = new ArrayList<>();
+        final double squaredRadius = radius * radius;
+        scan(x - radius, y - radius, x + radius, y + radius, (ex, ey, e) -> {
+            final double dx = ex - x;
+            final double dy = ey - y;
+            if (dx * dx + dy * dy <= squaredRadius) {
+                result.add(e);
+            }
+        });
+        return result;
+    }
+
+    /*
+     * Cell of a coordinate along an axis. Monotone, hence a point inside a
+     * rectangle always falls in the cells of the rectangle corners.
+     */
+    private static long quantize(final double coordinate, final double min, final double scale) {
+        final double cell = Math.floor((coordinate - min) * scale);
+        return cell >= MAX_CELL ? MAX_CELL : cell > 0 ? (long) cell : 0;
+    }
+
+    private void readObject(final ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("Serialized through SerializedForm only.");
+    }
+
+    /*
+     * Sorts the provided entries with a frame fitting them
+     */
+    private void rebuild(final E[] es, final double[] x, final double[] y, final int n) {
+        double sx = Double.POSITIVE_INFINITY;
+        double sy = Double.POSITIVE_INFINITY;
+        double fx = Double.NEGATIVE_INFINITY;
+        double fy = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            sx = Math.min(sx, x[i]);
+            sy = Math.min(sy, y[i]);
+            fx = Math.max(fx, x[i]);
+            fy = Math.max(fy, y[i]);
+        }
+        minx = sx;
+        miny = sy;
+        scalex = scale(sx, fx);
+        scaley = scale(sy, fy);
+        final long[] unsorted = new long[n];
+        for (int i = 0; i < n; i++) {
+            unsorted[i] = code(x[i], y[i]);
+        }
+        final int[] order = sortedOrder(unsorted, n);
+        codes = new long[n];
+        xs = new double[n];
+        ys = new double[n];
+        elements = new Object[n];
+        for (int i = 0; i < n; i++) {
+            final int k = order[i];
+            codes[i] = unsorted[k];
+            xs[i] = x[k];
+            ys[i] = y[k];
+            elements[i] = es[k];
+        }
+        size = n;
+        removed = 0;
+    }
+
+    @Override
+    public boolean remove(final E e, final double... position) {
+        assert position.length == 2;
+        return remove(e, position[0], position[1]);
+    }
+
+    /**
+     * Same of {@link #remove(Object, double...)} with explicit parameters.
+     *
+     * @param e
+     *            Element to remove
+     * @param x
+     *            X position of the element
+     * @param y
+     *            Y position of the element
+     * @return true if the element has been found and removed
+     */
+    public boolean remove(final E e, final double x, final double y) {
+        final int index = bufferedIndexOf(e, x, y);
+        if (index >= 0) {
+            buffered--;
+            bxs[index] = bxs[buffered];
+            bys[index] = bys[buffered];
+            belements[index] = belements[buffered];
+            belements[buffered] = null;
+            return true;
+        }
+        final int sorted = size == 0 ? -1 : sortedIndexOf(e, x, y);
+        if (sorted >= 0) {
+            elements[sorted] = REMOVED;
+            removed++;
+            if (removed > size / 2) {
+                flush();
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Visits the live entries in the closed rectangle [sx, fx] x [sy, fy]
+     */
+    @SuppressWarnings("unchecked")
+    private void scan(
+            final double sx, final double sy, final double fx, final double fy,
+            final EntryVisitor<E> visitor) {
+        for (int i = 0; i < buffered; i++) {
+            final double x = bxs[i];
+            final double y = bys[i];
+            if (x >= sx && x <= fx && y >= sy && y <= fy) {
+                visitor.visit(x, y, (E) belements[i]);
+            }
+        }
+        if (size == 0) {
+            return;
+        }
+        final long minCellX = quantize(sx, minx, scalex);
+        final long minCellY = quantize(sy, miny, scaley);
+        final long maxCellX = quantize(fx, minx, scalex);
+        final long maxCellY = quantize(fy, miny, scaley);
+        final long zmin = spread(minCellX) | spread(minCellY) << 1;
+        final long zmax = spread(maxCellX) | spread(maxCellY) << 1;
+        int i = lowerBound(zmin, 0);
+        int misses = 0;
+        while (i < size && codes[i] <= zmax) {
+            final long code = codes[i];
+            final long cellX = compact(code);
+            final long cellY = compact(code >>> 1);
+            if (cellX >= minCellX && cellX <= maxCellX && cellY >= minCellY && cellY <= maxCellY) {
+                final double x = xs[i];
+                final double y = ys[i];
+                if (x >= sx && x <= fx && y >= sy && y <= fy && elements[i] != REMOVED) {
+                    visitor.visit(x, y, (E) elements[i]);
+                }
+                misses = 0;
+                i++;
+            } else {
+                /*
+                 * Out of the rectangle: after a few misses, jump to the next
+                 * code inside it
+                 */
+                i = misses++ < MAX_MISSES ? i + 1 : lowerBound(bigmin(code, zmin, zmax), i + 1);
+            }
+        }
+    }
+
+    private static double scale(final double min, final double max) {
+        final double scale = MAX_CELL / (max - min);
+        return scale > 0 && !Double.isInfinite(scale) ? scale : 1;
+    }
+
+    /**
+     * @return the number of elements in this index
+     */
+    public int size() {
+        return size - removed + buffered;
+    }
+
+    /*
+     * LSD radix sort of the first n codes, returns the order of their indexes
+     */
+    private static int[] sortedOrder(final long[] codes, final int n) {
+        int[] order = new int[n];
+        int[] swapOrder = new int[n];
+        long[] keys = Arrays.copyOf(codes, n);
+        long[] swapKeys = new long[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        final int[] counts = new int[RADIX + 1];
+        for (int shift = 0; shift < 2 * BITS; shift += RADIX_BITS) {
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < n; i++) {
+                counts[(int) (keys[i] >>> shift & (RADIX - 1)) + 1]++;
+            }
+            boolean trivial = false;
+            for (int d = 1; d <= RADIX; d++) {
+                trivial |= counts[d] == n;
+                counts[d] += counts[d - 1];
+            }
+            if (!trivial) {
+                for (int i = 0; i < n; i++) {
+                    final int target = counts[(int) (keys[i] >>> shift & (RADIX - 1))]++;
+                    swapKeys[target] = keys[i];
+                    swapOrder[target] = order[i];
+                }
+                final long[] tmpKeys = keys;
+                keys = swapKeys;
+                swapKeys = tmpKeys;
+                final int[] tmpOrder = order;
+                order = swapOrder;
+                swapOrder = tmpOrder;
+            }
+        }
+        return order;
+    }
+
+    /*
+     * Index of a live entry of the sorted arrays, -1 if none
+     */
+    private int sortedIndexOf(final E e, final double x, final double y) {
+        final long code = code(x, y);
+        for (int i = lowerBound(code, 0); i < size && codes[i] == code; i++) {
+            if (xs[i] == x && ys[i] == y && elements[i] != REMOVED && equal(e, elements[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long spread(final long cell) {
+        long v = cell & MAX_CELL;
+        v = (v | v << 16) & 0x0000FFFF0000FFFFL;
+        v = (v | v << 8) & 0x00FF00FF00FF00FFL;
+        v = (v | v << 4) & 0x0F0F0F0F0F0F0F0FL;
+        v = (v | v << 2) & 0x3333333333333333L;
+        return (v | v << 1) & X_BITS;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + size() + " elements, " + buffered + " buffered";
+    }
+
+    private Object writeReplace() {
+        return new SerializedForm<>(this);
+    }
+
+}
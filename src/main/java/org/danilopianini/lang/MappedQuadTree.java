@@ -0,0 +1,410 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import static org.danilopianini.lang.ChannelOutput.DOUBLE_BYTES;
+import static org.danilopianini.lang.ChannelOutput.INT_BYTES;
+import static org.danilopianini.lang.ChannelOutput.LONG_BYTES;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import java8.util.function.Consumer;
+
+/**
+ * A read only {@link SpatialIndex} over a file written by
+ * {@link FlexibleQuadTree#save(Path, ElementCodec)}. The file gets memory
+ * mapped, and queries walk the node records straight from the mapping:
+ * nothing is loaded upfront, and elements are decoded only when they are
+ * returned. Files must be smaller than 2GB.
+ *
+ * The file starts with a header, followed by the records of the nodes and of
+ * the elements. Nodes are written children first, each one followed by its
+ * elements, so that records only refer to records preceding them:
+ * <ul>
+ * <li>header: magic number, format version, node capacity and parallel
+ * threshold of the tree, 1 if it tracks its elements, 0 otherwise, padding
+ * (ints); number of elements and offset of the root (longs); looseness of the tree
+ * (double, since version 2);</li>
+ * <li>node: bounds as min X, min Y, max X, max Y (doubles); number of
+ * entries, number of entries in the subtree, 1 if it has children, 0
+ * otherwise, padding (ints); the offsets of the four children (longs), if
+ * any; then for each entry X and Y (doubles) and the offset of the element
+ * (long);</li>
+ * <li>element: length (int) followed by the bytes of the
+ * {@link ElementCodec}.</li>
+ * </ul>
+ * All values are big endian.
+ *
+ * @param <E>
+ *            content of the index
+ */
+public final class MappedQuadTree<E> implements SpatialIndex<E> {
+
+    private static final long serialVersionUID = 1L;
+    /*
+     * File layout
+     */
+    static final int MAGIC = 0x46515431;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 6 * INT_BYTES + 2 * LONG_BYTES + DOUBLE_BYTES;
+    static final int NODE_HEADER_SIZE = 4 * DOUBLE_BYTES + 4 * INT_BYTES;
+    static final int CHILDREN = 4;
+    static final int ENTRY_SIZE = 2 * DOUBLE_BYTES + LONG_BYTES;
+    private static final int MAX_X = 2 * DOUBLE_BYTES;
+    private static final int MAX_Y = 3 * DOUBLE_BYTES;
+    private static final int SIZE = 4 * DOUBLE_BYTES;
+    private static final int SUBTREE_SIZE = SIZE + INT_BYTES;
+    private static final int SPLIT = SUBTREE_SIZE + INT_BYTES;
+
+    private final String file;
+    private final ElementCodec<? extends E> codec;
+    private transient ByteBuffer data;
+    private transient int maxElements;
+    private transient int parallelThreshold;
+    private transient double looseness;
+    private transient boolean tracking;
+    private transient int size;
+    private transient int root;
+
+    private MappedQuadTree(final Path file, final ElementCodec<? extends E> codec) throws IOException {
+        this.file = file.toString();
+        this.codec = codec;
+        map();
+    }
+
+    /**
+     * Maps a file written by {@link FlexibleQuadTree#save(Path, ElementCodec)}.
+     *
+     * @param file
+     *            the file
+     * @param codec
+     *            the {@link ElementCodec} the file was written with
+     * @param <E>
+     *            content of the index
+     * @return a read only view of the file
+     * @throws IOException
+     *             if the file can not be read, is larger than 2GB, or is not
+     *             in the expected format
+     */
+    public static <E> MappedQuadTree<E> open(final Path file, final ElementCodec<? extends E> codec) throws IOException {
+        return new MappedQuadTree<>(file, codec);
+    }
+
+    int child(final int node, final int index) {
+        return (int) data.getLong(node + NODE_HEADER_SIZE + index * LONG_BYTES);
+    }
+
+    /*
+     * Index of the first entry record of a node
+     */
+    private int entries(final int node) {
+        return node + NODE_HEADER_SIZE + (hasChildren(node) ? CHILDREN * LONG_BYTES : 0);
+    }
+
+    E element(final int node, final int index) {
+        final int record = (int) data.getLong(entries(node) + index * ENTRY_SIZE + 2 * DOUBLE_BYTES);
+        final ByteBuffer bytes = data.duplicate();
+        bytes.position(record + INT_BYTES);
+        bytes.limit(record + INT_BYTES + data.getInt(record));
+        return codec.decode(bytes.slice().asReadOnlyBuffer());
+    }
+
+    @Override
+    public int getDimensions() {
+        return 2;
+    }
+
+    /**
+     * @return the looseness of the saved tree, see
+     *         {@link FlexibleQuadTree#getLooseness()}
+     */
+    public double getLooseness() {
+        return looseness;
+    }
+
+    /**
+     * @return the maximum number of elements per node of the saved tree
+     */
+    public int getMaxElementsNumber() {
+        return maxElements;
+    }
+
+    /**
+     * @return the parallel threshold of the saved tree
+     */
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    boolean hasChildren(final int node) {
+        return data.getInt(node + SPLIT) != 0;
+    }
+
+    @Override
+    public void insert(final E element, final double... position) {
+        throw new UnsupportedOperationException("Mapped trees are read only.");
+    }
+
+    /**
+     * @return true if the saved tree tracked its elements
+     */
+    public boolean isTrackingElements() {
+        return tracking;
+    }
+
+    private void map() throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException(file + " is too large to be mapped: " + channel.size() + " bytes.");
+            }
+            data = channel.map(MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (data.capacity() < 2 * INT_BYTES || data.getInt(0) != MAGIC) {
+            throw new IOException(file + " does not contain a saved FlexibleQuadTree.");
+        }
+        final int version = data.getInt(INT_BYTES);
+        if (version < 1 || version > VERSION) {
+            throw new IOException(file + " has unsupported format version " + version);
+        }
+        /*
+         * Version 1 files predate loose trees, and their header lacks the
+         * looseness
+         */
+        final int headerSize = version == 1 ? HEADER_SIZE - DOUBLE_BYTES : HEADER_SIZE;
+        if (data.capacity() < headerSize) {
+            throw new IOException(file + " is truncated: " + data.capacity() + " bytes.");
+        }
+        looseness = version == 1 ? 1 : data.getDouble(HEADER_SIZE - DOUBLE_BYTES);
+        maxElements = data.getInt(2 * INT_BYTES);
+        parallelThreshold = data.getInt(3 * INT_BYTES);
+        tracking = data.getInt(4 * INT_BYTES) != 0;
+        size = (int) data.getLong(6 * INT_BYTES);
+        final long rootOffset = data.getLong(6 * INT_BYTES + LONG_BYTES);
+        if (rootOffset < headerSize || rootOffset > data.capacity() - NODE_HEADER_SIZE) {
+            throw new IOException(file + " has an invalid root offset " + rootOffset);
+        }
+        root = (int) rootOffset;
+    }
+
+    /*
+     * How much the area of a node extends beyond its bounds on each side,
+     * computed as FlexibleQuadTree does
+     */
+    private double margin(final double min, final double max) {
+        return (max - min) * (looseness - 1) / 2;
+    }
+
+    double maxX(final int node) {
+        return data.getDouble(node + MAX_X);
+    }
+
+    double maxY(final int node) {
+        return data.getDouble(node + MAX_Y);
+    }
+
+    double minX(final int node) {
+        return data.getDouble(node);
+    }
+
+    double minY(final int node) {
+        return data.getDouble(node + DOUBLE_BYTES);
+    }
+
+    @Override
+    public boolean move(final E element, final double[] start, final double[] end) {
+        throw new UnsupportedOperationException("Mapped trees are read only.");
+    }
+
+    @Override
+    public List<E> query(final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 2;
+        assert space[1].length == 2;
+        return query(space[0][0], space[0][1], space[1][0], space[1][1]);
+    }
+
+    @Override
+    public void query(final Consumer<? super E> action, final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 2;
+        assert space[1].length == 2;
+        query(space[0][0], space[0][1], space[1][0], space[1][1], action);
+    }
+
+    /**
+     * Same of {@link #query(double[]...)}, but with explicit parameters.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> query(final double x1, final double y1, final double x2, final double y2) {
+        final List<E> result = new ArrayList<>();
+        query(x1, y1, x2, y2, result::add);
+        return result;
+    }
+
+    /**
+     * Same of {@link #query(Consumer, double[]...)}, but with explicit
+     * parameters.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     */
+    public void query(
+            final double x1, final double y1, final double x2, final double y2,
+            final Consumer<? super E> action) {
+        queryHere(root, Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), action);
+    }
+
+    private void queryHere(
+            final int node,
+            final double sx, final double sy, final double fx, final double fy,
+            final Consumer<? super E> action) {
+        final double mx = margin(minX(node), maxX(node));
+        final double my = margin(minY(node), maxY(node));
+        if (fx >= minX(node) - mx && fy >= minY(node) - my && sx < maxX(node) + mx && sy < maxY(node) + my) {
+            final int entries = entries(node);
+            for (int i = 0; i < size(node); i++) {
+                final double x = data.getDouble(entries + i * ENTRY_SIZE);
+                final double y = data.getDouble(entries + i * ENTRY_SIZE + DOUBLE_BYTES);
+                if (x >= sx && x < fx && y >= sy && y < fy) {
+                    action.accept(element(node, i));
+                }
+            }
+            if (hasChildren(node)) {
+                for (int c = 0; c < CHILDREN; c++) {
+                    queryHere(child(node, c), sx, sy, fx, fy, action);
+                }
+            }
+        }
+    }
+
+    @Override
+    public List<E> queryRadius(final double[] center, final double radius) {
+        assert center.length == 2;
+        return queryRadius(center[0], center[1], radius);
+    }
+
+    /**
+     * Same of {@link #queryRadius(double[], double)}, but with explicit
+     * parameters.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> queryRadius(final double x, final double y, final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        final List<E> result = new ArrayList<>();
+        queryRadiusHere(root, x, y, radius * radius, result);
+        return result;
+    }
+
+    private void queryRadiusHere(
+            final int node, final double cx, final double cy, final double squaredRadius,
+            final List<E> result) {
+        final double mx = margin(minX(node), maxX(node));
+        final double my = margin(minY(node), maxY(node));
+        final double minx = minX(node) - mx;
+        final double miny = minY(node) - my;
+        final double maxx = maxX(node) + mx;
+        final double maxy = maxY(node) + my;
+        final double dx = cx < minx ? minx - cx : cx > maxx ? cx - maxx : 0;
+        final double dy = cy < miny ? miny - cy : cy > maxy ? cy - maxy : 0;
+        if (subtreeSize(node) > 0 && dx * dx + dy * dy <= squaredRadius) {
+            final int entries = entries(node);
+            for (int i = 0; i < size(node); i++) {
+                final double ex = data.getDouble(entries + i * ENTRY_SIZE) - cx;
+                final double ey = data.getDouble(entries + i * ENTRY_SIZE + DOUBLE_BYTES) - cy;
+                if (ex * ex + ey * ey <= squaredRadius) {
+                    result.add(element(node, i));
+                }
+            }
+            if (hasChildren(node)) {
+                for (int c = 0; c < CHILDREN; c++) {
+                    queryRadiusHere(child(node, c), cx, cy, squaredRadius, result);
+                }
+            }
+        }
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        map();
+    }
+
+    @Override
+    public boolean remove(final E element, final double... position) {
+        throw new UnsupportedOperationException("Mapped trees are read only.");
+    }
+
+    /**
+     * @return the offset of the root record
+     */
+    int root() {
+        return root;
+    }
+
+    /**
+     * @return the number of elements in the index
+     */
+    public int size() {
+        return size;
+    }
+
+    int size(final int node) {
+        return data.getInt(node + SIZE);
+    }
+
+    int subtreeSize(final int node) {
+        return data.getInt(node + SUBTREE_SIZE);
+    }
+
+    double x(final int node, final int index) {
+        return data.getDouble(entries(node) + index * ENTRY_SIZE);
+    }
+
+    double y(final int node, final int index) {
+        return data.getDouble(entries(node) + index * ENTRY_SIZE + DOUBLE_BYTES);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " of " + size + " elements in " + file;
+    }
+
+}
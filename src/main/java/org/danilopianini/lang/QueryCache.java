@@ -0,0 +1,273 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.danilopianini.lang.FlexibleQuadTree.Footprint;
+
+import java8.util.function.Consumer;
+
+/**
+ * A {@link SpatialIndex} caching the results of the queries run on a
+ * {@link FlexibleQuadTree}, for regions that get queried many times between
+ * modifications. Along with each result, the cache records the nodes the query
+ * visited and their modification counts: a cached result gets recomputed only
+ * if one of those nodes changed since, no matter whether the tree got modified
+ * through this cache or directly. The least recently used results get evicted
+ * once the capacity is reached.
+ *
+ * Cached results are unmodifiable, and shared among the callers asking for the
+ * same region. As the tree, this class is not thread safe.
+ *
+ * @param <E>
+ *            content of the index
+ */
+public final class QueryCache<E> implements SpatialIndex<E> {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * Default maximum number of cached results.
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final int RECTANGLE = 0;
+    private static final int CIRCLE = 1;
+
+    private final FlexibleQuadTree<E> tree;
+    private final int capacity;
+    private transient Map<Key, Cached<E>> cache;
+    private transient long hits;
+    private transient long misses;
+
+    private static final class Cached<E> {
+        private final List<E> result;
+        private final Footprint<E> footprint;
+
+        Cached(final List<E> result, final Footprint<E> footprint) {
+            this.result = result;
+            this.footprint = footprint;
+        }
+    }
+
+    /*
+     * A rectangle as min and max corners, or a circle as center and radius
+     */
+    private static final class Key {
+        private final int kind;
+        private final double a, b, c, d;
+
+        Key(final int kind, final double a, final double b, final double c, final double d) {
+            this.kind = kind;
+            this.a = a;
+            this.b = b;
+            this.c = c;
+            this.d = d;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (obj instanceof Key) {
+                final Key other = (Key) obj;
+                return kind == other.kind
+                        && Double.compare(a, other.a) == 0 && Double.compare(b, other.b) == 0
+                        && Double.compare(c, other.c) == 0 && Double.compare(d, other.d) == 0;
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            long hash = kind;
+            for (final double v : new double[] { a, b, c, d }) {
+                hash = 31 * hash + Double.doubleToLongBits(v);
+            }
+            return (int) (hash ^ hash >>> Integer.SIZE);
+        }
+    }
+
+    /**
+     * Builds a cache with the default capacity.
+     *
+     * @param tree
+     *            the tree to query
+     */
+    public QueryCache(final FlexibleQuadTree<E> tree) {
+        this(tree, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param tree
+     *            the tree to query
+     * @param capacity
+     *            maximum number of cached results
+     */
+    public QueryCache(final FlexibleQuadTree<E> tree, final int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid capacity: " + capacity);
+        }
+        this.tree = tree;
+        this.capacity = capacity;
+        initCache();
+    }
+
+    /**
+     * Drops all the cached results.
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    private List<E> get(final Key key, final double sx, final double sy, final double fx, final double fy) {
+        final Cached<E> cached = cache.get(key);
+        if (cached != null && tree.isUnchanged(cached.footprint)) {
+            hits++;
+            return cached.result;
+        }
+        misses++;
+        final List<E> result = Collections.unmodifiableList(key.kind == RECTANGLE
+                ? tree.query(sx, sy, fx, fy)
+                : tree.queryRadius(key.a, key.b, key.c));
+        cache.put(key, new Cached<>(result, tree.footprint(sx, sy, fx, fy)));
+        return result;
+    }
+
+    /**
+     * @return the maximum number of cached results
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public int getDimensions() {
+        return 2;
+    }
+
+    /**
+     * @return the number of queries answered from the cache
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of queries that had to be run on the tree
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the cached tree
+     */
+    public FlexibleQuadTree<E> getTree() {
+        return tree;
+    }
+
+    private void initCache() {
+        cache = new LinkedHashMap<Key, Cached<E>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Key, Cached<E>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    @Override
+    public void insert(final E element, final double... position) {
+        tree.insert(element, position);
+    }
+
+    @Override
+    public boolean move(final E element, final double[] start, final double[] end) {
+        return tree.move(element, start, end);
+    }
+
+    @Override
+    public List<E> query(final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 2;
+        assert space[1].length == 2;
+        return query(space[0][0], space[0][1], space[1][0], space[1][1]);
+    }
+
+    @Override
+    public void query(final Consumer<? super E> action, final double[]... space) {
+        for (final E e : query(space)) {
+            action.accept(e);
+        }
+    }
+
+    /**
+     * Same of {@link #query(double[]...)}, but with explicit parameters.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return unmodifiable {@link List} of Objects in range.
+     */
+    public List<E> query(final double x1, final double y1, final double x2, final double y2) {
+        final double sx = Math.min(x1, x2);
+        final double sy = Math.min(y1, y2);
+        final double fx = Math.max(x1, x2);
+        final double fy = Math.max(y1, y2);
+        return get(new Key(RECTANGLE, sx, sy, fx, fy), sx, sy, fx, fy);
+    }
+
+    @Override
+    public List<E> queryRadius(final double[] center, final double radius) {
+        assert center.length == 2;
+        return queryRadius(center[0], center[1], radius);
+    }
+
+    /**
+     * Same of {@link #queryRadius(double[], double)}, but with explicit
+     * parameters.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @return unmodifiable {@link List} of Objects in range.
+     */
+    public List<E> queryRadius(final double x, final double y, final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        return get(new Key(CIRCLE, x, y, radius, 0), x - radius, y - radius, x + radius, y + radius);
+    }
+
+    private void readObject(final ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        initCache();
+    }
+
+    @Override
+    public boolean remove(final E element, final double... position) {
+        return tree.remove(element, position);
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + cache.size() + " results of " + tree;
+    }
+
+}
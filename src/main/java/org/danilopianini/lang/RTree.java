@@ -0,0 +1,878 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import java8.util.function.Consumer;
+
+/**
+ * A {@link SpatialIndex} storing axis aligned boxes, organized as an R-tree
+ * whose overflowing nodes are split as in the R*-tree: the split axis is the
+ * one minimizing the perimeters of the resulting nodes, and the split point
+ * the one minimizing their overlap. Points can be stored as degenerate boxes
+ * through the methods of {@link SpatialIndex}.
+ *
+ * Boxes are closed: a box intersects a query area even if they only share
+ * their border. The query methods of {@link SpatialIndex} follow instead the
+ * convention of the other indexes, excluding the upper bounds of the query
+ * area, so that points stored as degenerate boxes are found as in any other
+ * {@link SpatialIndex}.
+ *
+ * @param <E>
+ *            content of the index
+ */
+public final class RTree<E> implements SpatialIndex<E> {
+
+    private static final long serialVersionUID = 1L;
+    /**
+     * Default maximum number of entries per node.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 16;
+    /*
+     * Minimum fill of a node, as a fraction of the maximum, as suggested for
+     * the R*-tree.
+     */
+    private static final double MIN_FILL = 0.4;
+
+    private final int maxEntries;
+    private final int minEntries;
+    private Node<E> root;
+    private int size;
+
+    /*
+     * How the box of an element must relate to the query area. OVERLAPS is
+     * INTERSECTS, with the upper bounds of the area excluded.
+     */
+    private enum Relation {
+        INTERSECTS, OVERLAPS, WITHIN, CONTAINS;
+    }
+
+    /*
+     * Entries are stored as parallel arrays: leaves host elements, the other
+     * nodes host their children along with their minimum bounding boxes.
+     * Arrays have room for an extra entry, which triggers a split.
+     */
+    private static final class Node<E> implements Serializable {
+        private static final long serialVersionUID = 1L;
+        private final boolean leaf;
+        private final double[] minx, miny, maxx, maxy;
+        private final Object[] items;
+        private int size;
+        private Node<E> parent;
+
+        Node(final boolean leaf, final int capacity) {
+            this.leaf = leaf;
+            minx = new double[capacity];
+            miny = new double[capacity];
+            maxx = new double[capacity];
+            maxy = new double[capacity];
+            items = new Object[capacity];
+        }
+
+        @SuppressWarnings("unchecked")
+        void add(final Object item, final double sx, final double sy, final double fx, final double fy) {
+            minx[size] = sx;
+            miny[size] = sy;
+            maxx[size] = fx;
+            maxy[size] = fy;
+            items[size] = item;
+            if (!leaf) {
+                ((Node<E>) item).parent = this;
+            }
+            size++;
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<E> child(final int index) {
+            return (Node<E>) items[index];
+        }
+
+        boolean contains(final int i, final double sx, final double sy, final double fx, final double fy) {
+            return minx[i] <= sx && miny[i] <= sy && maxx[i] >= fx && maxy[i] >= fy;
+        }
+
+        /*
+         * Sets the bounds of the i-th entry to the minimum bounding box of the
+         * child it points to.
+         */
+        void fit(final int i) {
+            child(i).boundsInto(minx, miny, maxx, maxy, i);
+        }
+
+        /*
+         * Writes the minimum bounding box of this node at the i-th position
+         * of the provided arrays.
+         */
+        void boundsInto(final double[] sxs, final double[] sys, final double[] fxs, final double[] fys, final int i) {
+            double sx = Double.POSITIVE_INFINITY;
+            double sy = Double.POSITIVE_INFINITY;
+            double fx = Double.NEGATIVE_INFINITY;
+            double fy = Double.NEGATIVE_INFINITY;
+            for (int j = 0; j < size; j++) {
+                sx = Math.min(sx, minx[j]);
+                sy = Math.min(sy, miny[j]);
+                fx = Math.max(fx, maxx[j]);
+                fy = Math.max(fy, maxy[j]);
+            }
+            sxs[i] = sx;
+            sys[i] = sy;
+            fxs[i] = fx;
+            fys[i] = fy;
+        }
+
+        int indexOf(final Node<E> child) {
+            for (int i = 0; i < size; i++) {
+                if (items[i] == child) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("Inconsistent parent pointer");
+        }
+
+        boolean intersects(final int i, final double sx, final double sy, final double fx, final double fy) {
+            return minx[i] <= fx && miny[i] <= fy && maxx[i] >= sx && maxy[i] >= sy;
+        }
+
+        void removeAt(final int i) {
+            size--;
+            minx[i] = minx[size];
+            miny[i] = miny[size];
+            maxx[i] = maxx[size];
+            maxy[i] = maxy[size];
+            items[i] = items[size];
+            items[size] = null;
+        }
+    }
+
+    /**
+     * Builds an {@link RTree} with the default node capacity.
+     */
+    public RTree() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param maxEntries
+     *            maximum number of entries per node, at least 2
+     */
+    public RTree(final int maxEntries) {
+        if (maxEntries < 2) {
+            throw new IllegalArgumentException("Nodes must host at least two entries, got " + maxEntries);
+        }
+        this.maxEntries = maxEntries;
+        minEntries = Math.max(1, (int) (maxEntries * MIN_FILL));
+        root = new Node<>(true, maxEntries + 1);
+    }
+
+    private static double area(final double sx, final double sy, final double fx, final double fy) {
+        return (fx - sx) * (fy - sy);
+    }
+
+    /*
+     * Sort-Tile-Recursive packing: entries are sorted in vertical slices by
+     * their center X, then each slice is sorted by center Y and cut in full
+     * nodes. The same happens on the resulting nodes until one is left.
+     */
+    private Node<E> bulkLoad(final Object[] items, final double[][] boxes, final int count) {
+        Object[] level = items;
+        double[][] bounds = boxes;
+        int n = count;
+        boolean leaf = true;
+        while (true) {
+            final List<Node<E>> nodes = packLevel(level, bounds, n, leaf);
+            if (nodes.size() == 1) {
+                return nodes.get(0);
+            }
+            n = nodes.size();
+            level = nodes.toArray();
+            bounds = new double[4][n];
+            for (int i = 0; i < n; i++) {
+                nodes.get(i).boundsInto(bounds[0], bounds[1], bounds[2], bounds[3], i);
+            }
+            leaf = false;
+        }
+    }
+
+    private int chooseSubtree(final Node<E> node, final double sx, final double sy, final double fx, final double fy) {
+        int best = 0;
+        double bestEnlargement = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < node.size; i++) {
+            final double area = area(node.minx[i], node.miny[i], node.maxx[i], node.maxy[i]);
+            final double enlargement = area(
+                    Math.min(sx, node.minx[i]), Math.min(sy, node.miny[i]),
+                    Math.max(fx, node.maxx[i]), Math.max(fy, node.maxy[i])) - area;
+            if (enlargement < bestEnlargement || enlargement == bestEnlargement && area < bestArea) {
+                best = i;
+                bestEnlargement = enlargement;
+                bestArea = area;
+            }
+        }
+        return best;
+    }
+
+    /*
+     * Walks up from a node that lost an entry: underfull nodes get detached
+     * and their elements inserted back, the others get their bounds fitted.
+     */
+    private void condense(final Node<E> start) {
+        final List<Node<E>> orphans = new ArrayList<>();
+        Node<E> node = start;
+        while (node.parent != null) {
+            final Node<E> parent = node.parent;
+            final int index = parent.indexOf(node);
+            if (node.size < minEntries) {
+                parent.removeAt(index);
+                orphans.add(node);
+            } else {
+                parent.fit(index);
+            }
+            node = parent;
+        }
+        while (!root.leaf && root.size <= 1) {
+            if (root.size == 0) {
+                root = new Node<>(true, maxEntries + 1);
+            } else {
+                root = root.child(0);
+                root.parent = null;
+            }
+        }
+        for (final Node<E> orphan : orphans) {
+            reinsert(orphan);
+        }
+    }
+
+    /*
+     * Leaf hosting the element with exactly the provided bounds, if any
+     */
+    private Node<E> findLeaf(final Node<E> node, final E e, final double sx, final double sy, final double fx, final double fy) {
+        for (int i = 0; i < node.size; i++) {
+            if (node.contains(i, sx, sy, fx, fy)) {
+                if (node.leaf) {
+                    if (node.minx[i] == sx && node.miny[i] == sy && node.maxx[i] == fx && node.maxy[i] == fy
+                            && equal(e, node.items[i])) {
+                        return node;
+                    }
+                } else {
+                    final Node<E> found = findLeaf(node.child(i), e, sx, sy, fx, fy);
+                    if (found != null) {
+                        return found;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean equal(final Object a, final Object b) {
+        return a == b || a != null && a.equals(b);
+    }
+
+    @Override
+    public int getDimensions() {
+        return 2;
+    }
+
+    /**
+     * @return the maximum number of entries per node
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    private static int indexIn(final Node<?> leaf, final Object e,
+            final double sx, final double sy, final double fx, final double fy) {
+        for (int i = 0; i < leaf.size; i++) {
+            if (leaf.minx[i] == sx && leaf.miny[i] == sy && leaf.maxx[i] == fx && leaf.maxy[i] == fy
+                    && equal(e, leaf.items[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void insert(final E e, final double... position) {
+        assert position.length == 2;
+        insert(e, position[0], position[1], position[0], position[1]);
+    }
+
+    /**
+     * Inserts an element occupying a box.
+     *
+     * @param e
+     *            the element
+     * @param x1
+     *            X coordinate of a corner of the box
+     * @param y1
+     *            Y coordinate of a corner of the box
+     * @param x2
+     *            X coordinate of the opposite corner
+     * @param y2
+     *            Y coordinate of the opposite corner
+     */
+    public void insert(final E e, final double x1, final double y1, final double x2, final double y2) {
+        insertEntry(e, Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2));
+        size++;
+    }
+
+    /**
+     * Inserts a batch of boxes. The whole tree, including the elements it
+     * already contains, is rebuilt bottom-up by Sort-Tile-Recursive packing,
+     * which produces nodes with less overlap than one by one insertion.
+     *
+     * @param es
+     *            the elements
+     * @param x1
+     *            X coordinates of a corner of each box
+     * @param y1
+     *            Y coordinates of a corner of each box
+     * @param x2
+     *            X coordinates of the opposite corner of each box
+     * @param y2
+     *            Y coordinates of the opposite corner of each box
+     */
+    public void insertAll(final E[] es, final double[] x1, final double[] y1, final double[] x2, final double[] y2) {
+        final int n = es.length;
+        if (x1.length != n || y1.length != n || x2.length != n || y2.length != n) {
+            throw new IllegalArgumentException("All the arrays must have the same length as the " + n + " elements.");
+        }
+        if (n == 0) {
+            return;
+        }
+        final int total = size + n;
+        final Object[] items = new Object[total];
+        final double[][] boxes = new double[4][total];
+        final int existing = collect(root, items, boxes, 0);
+        for (int i = 0; i < n; i++) {
+            final int j = existing + i;
+            items[j] = es[i];
+            boxes[0][j] = Math.min(x1[i], x2[i]);
+            boxes[1][j] = Math.min(y1[i], y2[i]);
+            boxes[2][j] = Math.max(x1[i], x2[i]);
+            boxes[3][j] = Math.max(y1[i], y2[i]);
+        }
+        root = bulkLoad(items, boxes, total);
+        root.parent = null;
+        size = total;
+    }
+
+    /*
+     * Copies the elements of the subtree from the provided offset on, returns
+     * the next free position
+     */
+    private static int collect(final Node<?> node, final Object[] items, final double[][] boxes, final int from) {
+        int next = from;
+        for (int i = 0; i < node.size; i++) {
+            if (node.leaf) {
+                items[next] = node.items[i];
+                boxes[0][next] = node.minx[i];
+                boxes[1][next] = node.miny[i];
+                boxes[2][next] = node.maxx[i];
+                boxes[3][next] = node.maxy[i];
+                next++;
+            } else {
+                next = collect((Node<?>) node.items[i], items, boxes, next);
+            }
+        }
+        return next;
+    }
+
+    private void insertEntry(final E e, final double sx, final double sy, final double fx, final double fy) {
+        Node<E> node = root;
+        while (!node.leaf) {
+            final int best = chooseSubtree(node, sx, sy, fx, fy);
+            node.minx[best] = Math.min(node.minx[best], sx);
+            node.miny[best] = Math.min(node.miny[best], sy);
+            node.maxx[best] = Math.max(node.maxx[best], fx);
+            node.maxy[best] = Math.max(node.maxy[best], fy);
+            node = node.child(best);
+        }
+        node.add(e, sx, sy, fx, fy);
+        while (node.size > maxEntries) {
+            final Node<E> sibling = split(node);
+            final Node<E> parent = node.parent;
+            if (parent == null) {
+                root = new Node<>(false, maxEntries + 1);
+                root.add(node, 0, 0, 0, 0);
+                root.fit(0);
+                root.add(sibling, 0, 0, 0, 0);
+                root.fit(1);
+                return;
+            }
+            parent.fit(parent.indexOf(node));
+            parent.add(sibling, 0, 0, 0, 0);
+            parent.fit(parent.size - 1);
+            node = parent;
+        }
+    }
+
+    @Override
+    public boolean move(final E e, final double[] start, final double[] end) {
+        assert start.length == 2;
+        assert end.length == 2;
+        return move(e, start[0], start[1], start[0], start[1], end[0], end[1], end[0], end[1]);
+    }
+
+    /**
+     * Moves or resizes the box of an element. If the new box lies within the
+     * bounds of the leaf hosting the element, it gets updated in place.
+     *
+     * @param e
+     *            the element
+     * @param sx1
+     *            X coordinate of a corner of the current box
+     * @param sy1
+     *            Y coordinate of a corner of the current box
+     * @param sx2
+     *            X coordinate of the opposite corner of the current box
+     * @param sy2
+     *            Y coordinate of the opposite corner of the current box
+     * @param fx1
+     *            X coordinate of a corner of the new box
+     * @param fy1
+     *            Y coordinate of a corner of the new box
+     * @param fx2
+     *            X coordinate of the opposite corner of the new box
+     * @param fy2
+     *            Y coordinate of the opposite corner of the new box
+     * @return true if the element is found and moved
+     */
+    public boolean move(
+            final E e,
+            final double sx1, final double sy1, final double sx2, final double sy2,
+            final double fx1, final double fy1, final double fx2, final double fy2) {
+        final double sx = Math.min(sx1, sx2);
+        final double sy = Math.min(sy1, sy2);
+        final double fx = Math.max(sx1, sx2);
+        final double fy = Math.max(sy1, sy2);
+        final Node<E> leaf = findLeaf(root, e, sx, sy, fx, fy);
+        if (leaf == null) {
+            return false;
+        }
+        final int index = indexIn(leaf, e, sx, sy, fx, fy);
+        final double nsx = Math.min(fx1, fx2);
+        final double nsy = Math.min(fy1, fy2);
+        final double nfx = Math.max(fx1, fx2);
+        final double nfy = Math.max(fy1, fy2);
+        if (leaf.parent == null || leaf.parent.contains(leaf.parent.indexOf(leaf), nsx, nsy, nfx, nfy)) {
+            /*
+             * The bounds of the ancestors are still valid, maybe less tight.
+             */
+            leaf.minx[index] = nsx;
+            leaf.miny[index] = nsy;
+            leaf.maxx[index] = nfx;
+            leaf.maxy[index] = nfy;
+            leaf.items[index] = e;
+        } else {
+            leaf.removeAt(index);
+            condense(leaf);
+            insertEntry(e, nsx, nsy, nfx, nfy);
+        }
+        return true;
+    }
+
+    private List<Node<E>> packLevel(final Object[] items, final double[][] boxes, final int n, final boolean leaf) {
+        final int leaves = (n + maxEntries - 1) / maxEntries;
+        final int slices = (int) Math.ceil(Math.sqrt(leaves));
+        final int sliceSize = slices * maxEntries;
+        final Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(boxes[0][a] + boxes[2][a], boxes[0][b] + boxes[2][b]));
+        final List<Node<E>> result = new ArrayList<>(leaves);
+        for (int start = 0; start < n; start += sliceSize) {
+            final int end = Math.min(n, start + sliceSize);
+            Arrays.sort(order, start, end, (a, b) -> Double.compare(boxes[1][a] + boxes[3][a], boxes[1][b] + boxes[3][b]));
+            for (int from = start; from < end; from += maxEntries) {
+                final Node<E> node = new Node<>(leaf, maxEntries + 1);
+                for (int i = from; i < Math.min(end, from + maxEntries); i++) {
+                    final int k = order[i];
+                    node.add(items[k], boxes[0][k], boxes[1][k], boxes[2][k], boxes[3][k]);
+                }
+                result.add(node);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Finds the elements whose box intersects the provided rectangle, upper
+     * bounds excluded, as the other {@link SpatialIndex} implementations do.
+     * Use {@link #query(double, double, double, double)} to include them.
+     *
+     * @param space
+     *            two opposite corners of the rectangle
+     * @return {@link List} of Objects in range.
+     */
+    @Override
+    public List<E> query(final double[]... space) {
+        final List<E> result = new ArrayList<>();
+        query(result::add, space);
+        return result;
+    }
+
+    /**
+     * Same of {@link #query(double[]...)}, but feeds each element to the
+     * action.
+     *
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     * @param space
+     *            two opposite corners of the rectangle
+     */
+    @Override
+    public void query(final Consumer<? super E> action, final double[]... space) {
+        assert space.length == 2;
+        assert space[0].length == 2;
+        assert space[1].length == 2;
+        search(Relation.OVERLAPS, space[0][0], space[0][1], space[1][0], space[1][1], action);
+    }
+
+    /**
+     * Finds the elements whose box intersects the provided rectangle.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> query(final double x1, final double y1, final double x2, final double y2) {
+        final List<E> result = new ArrayList<>();
+        query(x1, y1, x2, y2, result::add);
+        return result;
+    }
+
+    /**
+     * Feeds each element whose box intersects the provided rectangle to the
+     * action.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @param action
+     *            the {@link Consumer} to feed with each element in range
+     */
+    public void query(
+            final double x1, final double y1, final double x2, final double y2,
+            final Consumer<? super E> action) {
+        search(Relation.INTERSECTS, x1, y1, x2, y2, action);
+    }
+
+    /**
+     * Finds the elements whose box contains the provided rectangle. Use a
+     * degenerate rectangle to find the boxes containing a point.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return {@link List} of the elements containing the rectangle
+     */
+    public List<E> queryContaining(final double x1, final double y1, final double x2, final double y2) {
+        final List<E> result = new ArrayList<>();
+        search(Relation.CONTAINS, x1, y1, x2, y2, result::add);
+        return result;
+    }
+
+    /**
+     * Finds the elements whose box lies within the provided rectangle.
+     *
+     * @param x1
+     *            Rectangle X coordinate of the first point
+     * @param y1
+     *            Rectangle Y coordinate of the first point
+     * @param x2
+     *            Rectangle X coordinate of the second point
+     * @param y2
+     *            Rectangle Y coordinate of the second point
+     * @return {@link List} of the elements within the rectangle
+     */
+    public List<E> queryWithin(final double x1, final double y1, final double x2, final double y2) {
+        final List<E> result = new ArrayList<>();
+        search(Relation.WITHIN, x1, y1, x2, y2, result::add);
+        return result;
+    }
+
+    @Override
+    public List<E> queryRadius(final double[] center, final double radius) {
+        assert center.length == 2;
+        return queryRadius(center[0], center[1], radius);
+    }
+
+    /**
+     * Finds the elements whose box has at least a point not farther than
+     * radius from the center.
+     *
+     * @param x
+     *            X coordinate of the center
+     * @param y
+     *            Y coordinate of the center
+     * @param radius
+     *            the maximum distance from the center
+     * @return {@link List} of Objects in range.
+     */
+    public List<E> queryRadius(final double x, final double y, final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        final List<E> result = new ArrayList<>();
+        if (size > 0) {
+            searchRadius(root, x, y, radius * radius, result::add);
+        }
+        return result;
+    }
+
+    /*
+     * Inserts back all the elements of a detached subtree
+     */
+    private void reinsert(final Node<E> node) {
+        for (int i = 0; i < node.size; i++) {
+            if (node.leaf) {
+                @SuppressWarnings("unchecked")
+                final E e = (E) node.items[i];
+                insertEntry(e, node.minx[i], node.miny[i], node.maxx[i], node.maxy[i]);
+            } else {
+                reinsert(node.child(i));
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(final E e, final double... position) {
+        assert position.length == 2;
+        return remove(e, position[0], position[1], position[0], position[1]);
+    }
+
+    /**
+     * Removes an element, given the box it was inserted with.
+     *
+     * @param e
+     *            the element
+     * @param x1
+     *            X coordinate of a corner of the box
+     * @param y1
+     *            Y coordinate of a corner of the box
+     * @param x2
+     *            X coordinate of the opposite corner
+     * @param y2
+     *            Y coordinate of the opposite corner
+     * @return true if the element has been found and removed
+     */
+    public boolean remove(final E e, final double x1, final double y1, final double x2, final double y2) {
+        final double sx = Math.min(x1, x2);
+        final double sy = Math.min(y1, y2);
+        final double fx = Math.max(x1, x2);
+        final double fy = Math.max(y1, y2);
+        final Node<E> leaf = findLeaf(root, e, sx, sy, fx, fy);
+        if (leaf == null) {
+            return false;
+        }
+        leaf.removeAt(indexIn(leaf, e, sx, sy, fx, fy));
+        condense(leaf);
+        size--;
+        return true;
+    }
+
+    private void search(
+            final Relation relation,
+            final double x1, final double y1, final double x2, final double y2,
+            final Consumer<? super E> action) {
+        searchHere(root, relation, Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), action);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> void searchHere(
+            final Node<E> node, final Relation relation,
+            final double sx, final double sy, final double fx, final double fy,
+            final Consumer<? super E> action) {
+        for (int i = 0; i < node.size; i++) {
+            final boolean matches;
+            if (node.leaf) {
+                switch (relation) {
+                case CONTAINS:
+                    matches = node.contains(i, sx, sy, fx, fy);
+                    break;
+                case OVERLAPS:
+                    matches = node.minx[i] < fx && node.miny[i] < fy && node.maxx[i] >= sx && node.maxy[i] >= sy;
+                    break;
+                case WITHIN:
+                    matches = node.minx[i] >= sx && node.miny[i] >= sy && node.maxx[i] <= fx && node.maxy[i] <= fy;
+                    break;
+                default:
+                    matches = node.intersects(i, sx, sy, fx, fy);
+                }
+                if (matches) {
+                    action.accept((E) node.items[i]);
+                }
+            } else {
+                /*
+                 * Boxes containing the area must be in children containing it.
+                 * Otherwise, the children must intersect the area.
+                 */
+                if (relation == Relation.CONTAINS
+                        ? node.contains(i, sx, sy, fx, fy)
+                        : node.intersects(i, sx, sy, fx, fy)) {
+                    searchHere(node.child(i), relation, sx, sy, fx, fy, action);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E> void searchRadius(
+            final Node<E> node, final double x, final double y, final double squaredRadius,
+            final Consumer<? super E> action) {
+        for (int i = 0; i < node.size; i++) {
+            final double dx = x < node.minx[i] ? node.minx[i] - x : x > node.maxx[i] ? x - node.maxx[i] : 0;
+            final double dy = y < node.miny[i] ? node.miny[i] - y : y > node.maxy[i] ? y - node.maxy[i] : 0;
+            if (dx * dx + dy * dy <= squaredRadius) {
+                if (node.leaf) {
+                    action.accept((E) node.items[i]);
+                } else {
+                    searchRadius(node.child(i), x, y, squaredRadius, action);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of elements in this index
+     */
+    public int size() {
+        return size;
+    }
+
+    /*
+     * R* split: for each axis, entries are sorted by their lower and by their
+     * upper bound, and all the distributions leaving at least minEntries on
+     * each side are considered. The axis with the smallest sum of perimeters
+     * is chosen, and along it the distribution with the least overlap, then
+     * the least total area. The node keeps the first group, the returned new
+     * node gets the second.
+     */
+    private Node<E> split(final Node<E> node) {
+        final int n = node.size;
+        final Integer[][] orders = new Integer[4][n];
+        final double[][] keys = { node.minx, node.maxx, node.miny, node.maxy };
+        for (int s = 0; s < orders.length; s++) {
+            for (int i = 0; i < n; i++) {
+                orders[s][i] = i;
+            }
+            final double[] key = keys[s];
+            Arrays.sort(orders[s], (a, b) -> Double.compare(key[a], key[b]));
+        }
+        final double[] low = new double[4 * (n + 1)];
+        final double[] high = new double[4 * (n + 1)];
+        double bestMargin = Double.POSITIVE_INFINITY;
+        int bestAxis = 0;
+        for (int axis = 0; axis < 2; axis++) {
+            double margin = 0;
+            for (int s = 2 * axis; s < 2 * axis + 2; s++) {
+                prefixBounds(node, orders[s], low, high);
+                for (int k = minEntries; k <= n - minEntries; k++) {
+                    margin += low[4 * k + 2] - low[4 * k] + low[4 * k + 3] - low[4 * k + 1]
+                            + high[4 * k + 2] - high[4 * k] + high[4 * k + 3] - high[4 * k + 1];
+                }
+            }
+            if (margin < bestMargin) {
+                bestMargin = margin;
+                bestAxis = axis;
+            }
+        }
+        Integer[] bestOrder = orders[2 * bestAxis];
+        int bestSplit = minEntries;
+        double bestOverlap = Double.POSITIVE_INFINITY;
+        double bestArea = Double.POSITIVE_INFINITY;
+        for (int s = 2 * bestAxis; s < 2 * bestAxis + 2; s++) {
+            prefixBounds(node, orders[s], low, high);
+            for (int k = minEntries; k <= n - minEntries; k++) {
+                final int l = 4 * k;
+                final double overlapX = Math.min(low[l + 2], high[l + 2]) - Math.max(low[l], high[l]);
+                final double overlapY = Math.min(low[l + 3], high[l + 3]) - Math.max(low[l + 1], high[l + 1]);
+                final double overlap = overlapX > 0 && overlapY > 0 ? overlapX * overlapY : 0;
+                final double area = area(low[l], low[l + 1], low[l + 2], low[l + 3])
+                        + area(high[l], high[l + 1], high[l + 2], high[l + 3]);
+                if (overlap < bestOverlap || overlap == bestOverlap && area < bestArea) {
+                    bestOverlap = overlap;
+                    bestArea = area;
+                    bestOrder = orders[s];
+                    bestSplit = k;
+                }
+            }
+        }
+        final double[] sx = node.minx.clone();
+        final double[] sy = node.miny.clone();
+        final double[] fx = node.maxx.clone();
+        final double[] fy = node.maxy.clone();
+        final Object[] items = node.items.clone();
+        final Node<E> sibling = new Node<>(node.leaf, maxEntries + 1);
+        node.size = 0;
+        Arrays.fill(node.items, null);
+        for (int i = 0; i < n; i++) {
+            final int k = bestOrder[i];
+            (i < bestSplit ? node : sibling).add(items[k], sx[k], sy[k], fx[k], fy[k]);
+        }
+        return sibling;
+    }
+
+    /*
+     * For each k, stores in low[4k..4k+3] the bounding box of the first k
+     * entries in the provided order, and in high[4k..4k+3] the bounding box
+     * of the others.
+     */
+    private static void prefixBounds(final Node<?> node, final Integer[] order, final double[] low, final double[] high) {
+        final int n = order.length;
+        low[0] = Double.POSITIVE_INFINITY;
+        low[1] = Double.POSITIVE_INFINITY;
+        low[2] = Double.NEGATIVE_INFINITY;
+        low[3] = Double.NEGATIVE_INFINITY;
+        for (int k = 1; k <= n; k++) {
+            final int e = order[k - 1];
+            low[4 * k] = Math.min(low[4 * k - 4], node.minx[e]);
+            low[4 * k + 1] = Math.min(low[4 * k - 3], node.miny[e]);
+            low[4 * k + 2] = Math.max(low[4 * k - 2], node.maxx[e]);
+            low[4 * k + 3] = Math.max(low[4 * k - 1], node.maxy[e]);
+        }
+        high[4 * n] = Double.POSITIVE_INFINITY;
+        high[4 * n + 1] = Double.POSITIVE_INFINITY;
+        high[4 * n + 2] = Double.NEGATIVE_INFINITY;
+        high[4 * n + 3] = Double.NEGATIVE_INFINITY;
+        for (int k = n - 1; k >= 0; k--) {
+            final int e = order[k];
+            high[4 * k] = Math.min(high[4 * k + 4], node.minx[e]);
+            high[4 * k + 1] = Math.min(high[4 * k + 5], node.miny[e]);
+            high[4 * k + 2] = Math.max(high[4 * k + 6], node.maxx[e]);
+            high[4 * k + 3] = Math.max(high[4 * k + 7], node.maxy[e]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + " with " + size + " elements";
+    }
+
+}
@@ -0,0 +1,31 @@
+/*******************************************************************************
+ * Copyright (C) 2009, 2015, Danilo Pianini and contributors
+ * listed in the project's build.gradle or pom.xml file.
+ *
+ * This file is distributed under the terms of the Apache License, version 2.0
+ *******************************************************************************/
+package org.danilopianini.lang;
+
+/**
+ * Receives the elements entering and leaving a region watched on a
+ * {@link FlexibleQuadTree}. Callbacks run on the thread mutating the tree,
+ * once the mutation is complete.
+ *
+ * @param <E>
+ *            type of the elements
+ */
+public interface RegionListener<E> {
+
+    /**
+     * @param element
+     *            the element inserted in the region, or moved inside it
+     */
+    void entered(E element);
+
+    /**
+     * @param element
+     *            the element removed from the region, or moved outside it
+     */
+    void left(E element);
+
+}
@@ -3,6 +3,8 @@ package org.danilopianini.lang;
 import java.io.Serializable;
 import java.util.List;
 
+import java8.util.function.Consumer;
+
 /**
  *
  * @param <E> content of the index
@@ -47,7 +49,8 @@ public interface SpatialIndex<E> extends Serializable {
      * Queries the {@link SpatialIndex}, searching for elements in a
      * parallelotope. "Parallelotope" is a fancy word for
      * "N-dimensional rectangle". A 2-parallelotope is in fact a rectangle, a
-     * 3-parallelotope is a parallelepiped, and so on.
+     * 3-parallelotope is a parallelepiped, and so on. The lower bounds of the
+     * parallelotope are included, the upper ones excluded.
      * 
      * @param parallelotope
      *            the space where to search for elements
@@ -55,6 +58,60 @@ public interface SpatialIndex<E> extends Serializable {
      */
     List<E> query(double[]... parallelotope);
 
+    /**
+     * Queries the {@link SpatialIndex}, searching for elements in a
+     * parallelotope, and feeds each of them to the provided {@link Consumer}.
+     * Differently from {@link #query(double[]...)}, no result collection gets
+     * built, so callers that only need to iterate the results once can avoid
+     * any allocation by passing a reusable action. The default
+     * implementation iterates the result of {@link #query(double[]...)}:
+     * indexes override it to actually skip the collection.
+     * 
+     * @param action
+     *            the {@link Consumer} that will receive each element in this
+     *            area of the {@link SpatialIndex}
+     * @param parallelotope
+     *            the space where to search for elements
+     */
+    default void query(final Consumer<? super E> action, final double[]... parallelotope) {
+        for (final E element : query(parallelotope)) {
+            action.accept(element);
+        }
+    }
+
+    /**
+     * Queries the {@link SpatialIndex}, searching for elements whose distance
+     * from a point is not greater than the provided radius. The interface
+     * does not expose the positions of the elements, hence the default
+     * implementation can not filter by distance: it returns a superset, made
+     * of the elements in the parallelotope bounding the hypersphere, borders
+     * included. Indexes override it with an exact search.
+     * 
+     * @param center
+     *            the coordinates of the center of the hypersphere
+     * @param radius
+     *            the maximum distance from the center
+     * @return the list of elements within radius from center, plus, for the
+     *         default implementation, some of the elements close to the
+     *         corners of the bounding parallelotope
+     */
+    default List<E> queryRadius(final double[] center, final double radius) {
+        if (!(radius >= 0)) {
+            throw new IllegalArgumentException("Invalid radius: " + radius);
+        }
+        final double[] min = new double[center.length];
+        final double[] max = new double[center.length];
+        for (int i = 0; i < center.length; i++) {
+            /*
+             * Queries exclude the upper bound: widened by an ulp on both
+             * sides, also to withstand the rounding of the sums
+             */
+            min[i] = Math.nextAfter(center[i] - radius, Double.NEGATIVE_INFINITY);
+            max[i] = Math.nextUp(center[i] + radius);
+        }
+        return query(min, max);
+    }
+
     /**
      * @return the number of dimension of space for this {@link SpatialIndex}.
      */
@@ -0,0 +1,66 @@
+package org.danilopianini.lang.tests;
+
+import java.util.Random;
+
+import org.danilopianini.lang.FlexibleQuadTree;
+
+/**
+ * Measures how the parallel threshold of {@link FlexibleQuadTree} affects
+ * the List query, to find where splitting starts paying off on the machine
+ * at hand. Not a test: run its main method, optionally passing the number of
+ * points.
+ */
+public final class ParallelQueryBenchmark {
+
+    private static final int DEFAULT_POINTS = 1_000_000;
+    private static final int CAPACITY = 10;
+    private static final int ROUNDS = 5;
+    private static final int QUERIES_PER_POINT = 2_000_000;
+    private static final int[] THRESHOLDS = { 1_000, 10_000, 50_000, 200_000, Integer.MAX_VALUE };
+
+    private ParallelQueryBenchmark() {
+    }
+
+    /**
+     * @param args
+     *            optionally, the number of uniformly distributed points
+     */
+    public static void main(final String... args) {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_POINTS;
+        System.out.println(n + " points, capacity " + CAPACITY + ", "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+        System.out.println("threshold     80% area query (us)   1% area query (us)");
+        for (final int threshold : THRESHOLDS) {
+            final Random rnd = new Random(1);
+            final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(CAPACITY, threshold);
+            for (int i = 0; i < n; i++) {
+                tree.insert(i, rnd.nextDouble(), rnd.nextDouble());
+            }
+            double large = 0;
+            double small = 0;
+            /*
+             * Only the last round counts, the previous ones warm up
+             */
+            for (int r = 0; r < ROUNDS; r++) {
+                large = time(tree, n, 0.1, 0.9);
+                small = time(tree, n, 0.45, 0.55);
+            }
+            System.out.printf("%-13s %20.1f %20.1f%n",
+                    threshold == Integer.MAX_VALUE ? "never" : Integer.toString(threshold), large, small);
+        }
+    }
+
+    private static double time(final FlexibleQuadTree<Integer> tree, final int n, final double from, final double to) {
+        final int repetitions = Math.max(ROUNDS, QUERIES_PER_POINT / n);
+        long found = 0;
+        final long start = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            found += tree.query(from, from, to, to).size();
+        }
+        if (found < 0) {
+            throw new IllegalStateException();
+        }
+        return (System.nanoTime() - start) / 1e3 / repetitions;
+    }
+
+}
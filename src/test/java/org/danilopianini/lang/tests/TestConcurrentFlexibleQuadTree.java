@@ -0,0 +1,139 @@
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.danilopianini.lang.ConcurrentFlexibleQuadTree;
+import org.danilopianini.lang.FlexibleQuadTree;
+import org.junit.Test;
+
+/**
+ */
+public class TestConcurrentFlexibleQuadTree {
+
+    private static final int WRITERS = 4;
+    private static final int READERS = 2;
+    private static final int ELEMENTS_PER_WRITER = 2000;
+    private static final int ROUNDS = 5;
+    private static final double SIZE = 100;
+
+    /**
+     * Checks that the concurrent index answers as a {@link FlexibleQuadTree}
+     * when used by a single thread.
+     */
+    @Test
+    public void testSequential() {
+        final Random rnd = new Random(0);
+        final ConcurrentFlexibleQuadTree<Integer> concurrent = new ConcurrentFlexibleQuadTree<>(1);
+        final FlexibleQuadTree<Integer> reference = new FlexibleQuadTree<>();
+        final double[][] positions = new double[ELEMENTS_PER_WRITER][];
+        for (int i = 0; i < ELEMENTS_PER_WRITER; i++) {
+            positions[i] = new double[] { rnd.nextGaussian() * SIZE, rnd.nextGaussian() * SIZE };
+            concurrent.insert(i, positions[i]);
+            reference.insert(i, positions[i]);
+        }
+        for (int i = 0; i < ELEMENTS_PER_WRITER; i++) {
+            final double[] next = new double[] { positions[i][0] + rnd.nextGaussian(), positions[i][1] + rnd.nextGaussian() };
+            assertTrue(concurrent.move(i, positions[i], next));
+            assertTrue(reference.move(i, positions[i], next));
+            positions[i] = next;
+        }
+        for (int q = 0; q < 100; q++) {
+            final double[] from = new double[] { rnd.nextGaussian() * SIZE, rnd.nextGaussian() * SIZE };
+            final double[] to = new double[] { rnd.nextGaussian() * SIZE, rnd.nextGaussian() * SIZE };
+            assertEquals(new HashSet<>(reference.query(from, to)), new HashSet<>(concurrent.query(from, to)));
+            final double radius = rnd.nextDouble() * SIZE;
+            assertEquals(new HashSet<>(reference.queryRadius(from, radius)),
+                    new HashSet<>(concurrent.queryRadius(from, radius)));
+        }
+        assertEquals(ELEMENTS_PER_WRITER, concurrent.query(
+                -Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE).size());
+        for (int i = 0; i < ELEMENTS_PER_WRITER; i++) {
+            assertTrue(concurrent.remove(i, positions[i]));
+            assertFalse(concurrent.remove(i, positions[i]));
+        }
+    }
+
+    /**
+     * Writers concurrently insert, move and remove their own elements while
+     * readers query the whole space. At the end, the index must contain
+     * exactly what each writer expects.
+     *
+     * @throws InterruptedException
+     *             if interrupted
+     * @throws ExecutionException
+     *             if some thread failed
+     */
+    @Test
+    public void testStress() throws InterruptedException, ExecutionException {
+        final ConcurrentFlexibleQuadTree<Integer> index = new ConcurrentFlexibleQuadTree<>(SIZE / 8);
+        final ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final List<Future<?>> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(executor.submit(() -> {
+                while (running.get()) {
+                    final int found = index.query(-SIZE, -SIZE, 2 * SIZE, 2 * SIZE).size();
+                    assertTrue(found <= WRITERS * ELEMENTS_PER_WRITER);
+                }
+            }));
+        }
+        final List<Future<double[][]>> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            writers.add(executor.submit(() -> {
+                final Random rnd = new Random(writer);
+                final int base = writer * ELEMENTS_PER_WRITER;
+                final double[][] positions = new double[ELEMENTS_PER_WRITER][];
+                for (int i = 0; i < ELEMENTS_PER_WRITER; i++) {
+                    positions[i] = new double[] { rnd.nextDouble() * SIZE, rnd.nextDouble() * SIZE };
+                    index.insert(base + i, positions[i]);
+                }
+                for (int round = 0; round < ROUNDS; round++) {
+                    for (int i = 0; i < ELEMENTS_PER_WRITER; i++) {
+                        final double[] next = new double[] { rnd.nextDouble() * SIZE, rnd.nextDouble() * SIZE };
+                        assertTrue(index.move(base + i, positions[i], next));
+                        positions[i] = next;
+                    }
+                }
+                for (int i = 0; i < ELEMENTS_PER_WRITER; i += 2) {
+                    assertTrue(index.remove(base + i, positions[i]));
+                    positions[i] = null;
+                }
+                return positions;
+            }));
+        }
+        final List<Integer> expected = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final double[][] positions = writers.get(w).get();
+            for (int i = 0; i < ELEMENTS_PER_WRITER; i++) {
+                if (positions[i] != null) {
+                    expected.add(w * ELEMENTS_PER_WRITER + i);
+                    final double x = positions[i][0];
+                    final double y = positions[i][1];
+                    assertEquals(1, index.query(x, y, Math.nextUp(x), Math.nextUp(y)).size());
+                }
+            }
+        }
+        running.set(false);
+        for (final Future<?> reader : readers) {
+            reader.get();
+        }
+        executor.shutdown();
+        final List<Integer> actual = index.query(-SIZE, -SIZE, 2 * SIZE, 2 * SIZE);
+        assertEquals(expected.size(), actual.size());
+        assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+    }
+
+}
@@ -0,0 +1,139 @@
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.danilopianini.lang.FlexibleOctree;
+import org.junit.Test;
+
+/**
+ */
+public class TestFlexibleOctree {
+
+    private static final int INSERTIONS = 5000;
+    private static final double SPREAD = 100;
+
+    /**
+     * Compares box and radius queries with a linear scan, while elements get
+     * inserted far from the initial bounds, moved and removed.
+     */
+    @Test
+    public void testRandom() {
+        final Random rnd = new Random(0);
+        final FlexibleOctree<Integer> tree = new FlexibleOctree<>(4);
+        final double[][] positions = new double[INSERTIONS][];
+        for (int i = 0; i < INSERTIONS; i++) {
+            positions[i] = randomPoint(rnd);
+            tree.insert(i, positions[i]);
+        }
+        check(tree, positions, rnd);
+        for (int i = 0; i < INSERTIONS; i++) {
+            final double[] next = i % 2 == 0 ? randomPoint(rnd) : new double[] {
+                positions[i][0] + rnd.nextGaussian(), positions[i][1] + rnd.nextGaussian(), positions[i][2] + rnd.nextGaussian()
+            };
+            assertTrue(tree.move(i, positions[i], next));
+            positions[i] = next;
+        }
+        check(tree, positions, rnd);
+        for (int i = 0; i < INSERTIONS; i += 3) {
+            assertTrue(tree.remove(i, positions[i]));
+            assertFalse(tree.remove(i, positions[i]));
+            positions[i] = null;
+        }
+        check(tree, positions, rnd);
+    }
+
+    /**
+     * Many elements in the same place, or too close to be told apart by
+     * subdividing, must be kept in buckets rather than in an ever deeper
+     * chain of nodes.
+     */
+    @Test
+    public void testColocated() {
+        final int n = 20000;
+        final FlexibleOctree<Integer> tree = new FlexibleOctree<>(4);
+        final double[][] positions = new double[n + INSERTIONS][];
+        for (int i = 0; i < n; i++) {
+            final double c = i % 100 == 0 ? Math.nextUp(0.3) : 0.3;
+            positions[i] = new double[] { c, 0.3, c };
+            tree.insert(i, positions[i]);
+        }
+        final Random rnd = new Random(0);
+        for (int i = n; i < positions.length; i++) {
+            positions[i] = randomPoint(rnd);
+            tree.insert(i, positions[i]);
+        }
+        assertEquals(n, tree.query(0.29, 0.29, 0.29, 0.31, 0.31, 0.31).size());
+        assertEquals(n, tree.queryRadius(0.3, 0.3, 0.3, 1e-9).size());
+        check(tree, positions, rnd);
+        for (int i = 0; i < n; i += 2) {
+            final double[] next = randomPoint(rnd);
+            assertTrue(tree.move(i, positions[i], next));
+            positions[i] = next;
+        }
+        check(tree, positions, rnd);
+        for (int i = 1; i < n; i += 2) {
+            assertTrue(tree.remove(i, positions[i]));
+            positions[i] = null;
+        }
+        assertEquals(0, tree.query(0.29, 0.29, 0.29, 0.31, 0.31, 0.31).size());
+        check(tree, positions, rnd);
+    }
+
+    /**
+     * Elements can be found only if the Z coordinate matches.
+     */
+    @Test
+    public void testThirdDimension() {
+        final FlexibleOctree<String> tree = new FlexibleOctree<>(1);
+        tree.insert("ground", 0.5, 0.5, 0);
+        tree.insert("first floor", 0.5, 0.5, 3);
+        tree.insert("second floor", 0.5, 0.5, 6);
+        assertEquals(3, tree.getDimensions());
+        assertEquals(1, tree.query(0, 0, 2, 1, 1, 4).size());
+        assertEquals("first floor", tree.query(0, 0, 2, 1, 1, 4).get(0));
+        assertEquals(2, tree.queryRadius(0.5, 0.5, 1, 3).size());
+        assertFalse(tree.move("first floor", 0.5, 0.5, 0, 0.5, 0.5, 9));
+        assertTrue(tree.move("first floor", 0.5, 0.5, 3, 0.5, 0.5, 9));
+        assertEquals("first floor", tree.query(0, 0, 8, 1, 1, 10).get(0));
+    }
+
+    private static void check(final FlexibleOctree<Integer> tree, final double[][] positions, final Random rnd) {
+        for (int q = 0; q < 100; q++) {
+            final double[] a = randomPoint(rnd);
+            final double[] b = randomPoint(rnd);
+            final double radius = rnd.nextDouble() * SPREAD;
+            final Set<Integer> inBox = new HashSet<>();
+            final Set<Integer> inSphere = new HashSet<>();
+            for (int i = 0; i < positions.length; i++) {
+                final double[] p = positions[i];
+                if (p != null) {
+                    boolean inside = true;
+                    double distance = 0;
+                    for (int d = 0; d < 3; d++) {
+                        inside &= p[d] >= Math.min(a[d], b[d]) && p[d] < Math.max(a[d], b[d]);
+                        distance += (p[d] - a[d]) * (p[d] - a[d]);
+                    }
+                    if (inside) {
+                        inBox.add(i);
+                    }
+                    if (distance <= radius * radius) {
+                        inSphere.add(i);
+                    }
+                }
+            }
+            assertEquals(inBox, new HashSet<>(tree.query(a, b)));
+            assertEquals(inSphere, new HashSet<>(tree.queryRadius(a, radius)));
+        }
+    }
+
+    private static double[] randomPoint(final Random rnd) {
+        return new double[] { rnd.nextGaussian() * SPREAD, rnd.nextGaussian() * SPREAD, rnd.nextGaussian() * SPREAD };
+    }
+
+}
@@ -2,13 +2,32 @@ package org.danilopianini.lang.tests;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.math3.util.FastMath;
+import org.danilopianini.lang.ElementCodec;
 import org.danilopianini.lang.FlexibleQuadTree;
+import org.danilopianini.lang.MappedQuadTree;
+import org.danilopianini.lang.QueryCache;
+import org.danilopianini.lang.RegionListener;
 import org.danilopianini.lang.SpatialIndex;
 import org.junit.Test;
 
@@ -25,6 +44,19 @@ public class TestFlexibleQuadTree {
     private static final int INSERTIONS = 10000;
     private static final int SUB_INS = INSERTIONS / 4;
     private static final Object TOKEN = "";
+    private static final ElementCodec<Integer> INT_CODEC = new ElementCodec<Integer>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public byte[] encode(final Integer element) {
+            return ByteBuffer.allocate(4).putInt(element).array();
+        }
+
+        @Override
+        public Integer decode(final ByteBuffer data) {
+            return data.getInt();
+        }
+    };
 
     /**
      * 
@@ -134,6 +166,1051 @@ public class TestFlexibleQuadTree {
         assertEquals(0, qt.query(minmin, maxmax).size());
     }
 
+    /**
+     * Checks that the {@link java8.util.function.Consumer} based query visits
+     * exactly the elements returned by the {@link List} based one.
+     */
+    @Test
+    public void testConsumerQuery() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> qt = new FlexibleQuadTree<>();
+        range().forEach(i -> qt.insert(i, rnd.nextDouble(), rnd.nextDouble()));
+        final List<Integer> visited = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            final double[] from = pos(rnd.nextDouble(), rnd.nextDouble());
+            final double[] to = pos(rnd.nextDouble(), rnd.nextDouble());
+            visited.clear();
+            qt.query(visited::add, from, to);
+            final List<Integer> expected = qt.query(from, to);
+            assertEquals(expected.size(), visited.size());
+            assertEquals(new HashSet<>(expected), new HashSet<>(visited));
+        }
+    }
+
+    /**
+     * Checks that parallel and sequential queries return the same elements,
+     * also after the subtree sizes got updated by moves and removals.
+     */
+    @Test
+    public void testParallelQuery() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> parallel = new FlexibleQuadTree<>(FlexibleQuadTree.DEFAULT_CAPACITY, 0);
+        final FlexibleQuadTree<Integer> sequential = new FlexibleQuadTree<>(
+                FlexibleQuadTree.DEFAULT_CAPACITY, Integer.MAX_VALUE);
+        final List<double[]> positions = new ArrayList<>();
+        range().forEach(i -> {
+            final double[] p = pos(rnd.nextDouble(), rnd.nextDouble());
+            positions.add(p);
+            parallel.insert(i, p);
+            sequential.insert(i, p);
+        });
+        range().filter(i -> i % 2 == 0).forEach(i -> {
+            final double[] p = pos(rnd.nextDouble() * 2, rnd.nextDouble() * 2);
+            assertTrue(parallel.move(i, positions.get(i), p));
+            assertTrue(sequential.move(i, positions.get(i), p));
+            positions.set(i, p);
+        });
+        range().filter(i -> i % 3 == 0).forEach(i -> {
+            assertTrue(parallel.remove(i, positions.get(i)));
+            assertTrue(sequential.remove(i, positions.get(i)));
+        });
+        for (int i = 0; i < 100; i++) {
+            final double[] from = pos(rnd.nextDouble() * 2, rnd.nextDouble() * 2);
+            final double[] to = pos(rnd.nextDouble() * 2, rnd.nextDouble() * 2);
+            final List<Integer> expected = sequential.query(from, to);
+            final List<Integer> actual = parallel.query(from, to);
+            assertEquals(expected.size(), actual.size());
+            assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+        }
+    }
+
+    /**
+     * Checks k-nearest neighbor searches against a brute force scan.
+     */
+    @Test
+    public void testNearest() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> qt = new FlexibleQuadTree<>();
+        assertFalse(qt.nearest(0, 0).isPresent());
+        final List<double[]> positions = range()
+                .mapToObj(i -> pos(rnd.nextDouble(), rnd.nextDouble()))
+                .collect(Collectors.toList());
+        range().forEach(i -> qt.insert(i, positions.get(i)));
+        for (int q = 0; q < 100; q++) {
+            final double x = rnd.nextDouble() * 2 - 0.5;
+            final double y = rnd.nextDouble() * 2 - 0.5;
+            final List<Integer> expected = range().boxed()
+                    .sorted((a, b) -> Double.compare(distance(positions.get(a), x, y), distance(positions.get(b), x, y)))
+                    .collect(Collectors.toList());
+            final int k = rnd.nextInt(20) + 1;
+            assertEquals(expected.subList(0, k), qt.nearest(k, x, y));
+            assertEquals(expected.get(0), qt.nearest(x, y).get());
+            final double radius = (distance(positions.get(expected.get(k)), x, y)
+                    + distance(positions.get(expected.get(k + 1)), x, y)) / 2;
+            final List<Integer> inRadius = qt.nearest(INSERTIONS, x, y, radius);
+            assertEquals(expected.subList(0, k + 1), inRadius);
+        }
+        assertEquals(INSERTIONS, qt.nearest(Integer.MAX_VALUE, 0, 0).size());
+        assertTrue(qt.nearest(0, 0, 0, 0).isEmpty());
+        for (final double radius : new double[] { -1, Double.NaN }) {
+            try {
+                qt.nearest(1, 0, 0, radius);
+                fail("Accepted radius " + radius);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage().contains(Double.toString(radius)));
+            }
+        }
+    }
+
+    /**
+     * 
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNearestNegativeK() {
+        new FlexibleQuadTree<>().nearest(-1, 0, 0);
+    }
+
+    private static double distance(final double[] p, final double x, final double y) {
+        return FastMath.hypot(p[0] - x, p[1] - y);
+    }
+
+    /**
+     * Checks radius queries against rectangular queries filtered by distance.
+     */
+    @Test
+    public void testQueryRadius() {
+        final Random rnd = new Random(0);
+        final SpatialIndex<Integer> qt = new FlexibleQuadTree<>();
+        final List<double[]> positions = range()
+                .mapToObj(i -> pos(rnd.nextDouble(), rnd.nextDouble()))
+                .collect(Collectors.toList());
+        range().forEach(i -> qt.insert(i, positions.get(i)));
+        for (int q = 0; q < 100; q++) {
+            final double x = rnd.nextDouble() * 2 - 0.5;
+            final double y = rnd.nextDouble() * 2 - 0.5;
+            final double r = rnd.nextDouble();
+            final List<Integer> expected = stream(qt.query(pos(x - r, y - r), pos(x + r, y + r)))
+                    .filter(i -> distance(positions.get(i), x, y) <= r)
+                    .collect(Collectors.toList());
+            final List<Integer> actual = qt.queryRadius(pos(x, y), r);
+            assertEquals(expected.size(), actual.size());
+            assertEquals(new HashSet<>(expected), new HashSet<>(actual));
+        }
+        assertEquals(INSERTIONS, qt.queryRadius(pos(0.5, 0.5), 1).size());
+    }
+
+    /**
+     * The default radius query of {@link SpatialIndex} must return every
+     * element within radius, including the ones exactly at radius, and may
+     * return the ones in the corners of the bounding square.
+     */
+    @Test
+    public void testDefaultQueryRadius() {
+        final FlexibleQuadTree<String> tree = new FlexibleQuadTree<>();
+        final SpatialIndex<String> index = new SpatialIndex<String>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public void insert(final String element, final double... position) {
+                tree.insert(element, position);
+            }
+
+            @Override
+            public boolean remove(final String element, final double... position) {
+                return tree.remove(element, position);
+            }
+
+            @Override
+            public boolean move(final String element, final double[] start, final double[] end) {
+                return tree.move(element, start, end);
+            }
+
+            @Override
+            public List<String> query(final double[]... parallelotope) {
+                return tree.query(parallelotope);
+            }
+
+            @Override
+            public int getDimensions() {
+                return tree.getDimensions();
+            }
+        };
+        index.insert("right", 1.1, 0.1);
+        index.insert("bottom", 0.1, -0.9);
+        index.insert("corner", 0.9, 0.9);
+        index.insert("outside", 1.2, 0.1);
+        assertEquals(new HashSet<>(Arrays.asList("right", "bottom", "corner")),
+                new HashSet<>(index.queryRadius(pos(0.1, 0.1), 1)));
+        try {
+            index.queryRadius(pos(0, 0), Double.NaN);
+            fail("NaN is not a valid radius");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("NaN"));
+        }
+    }
+
+    /**
+     * 
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testQueryRadiusNaN() {
+        new FlexibleQuadTree<>().queryRadius(0, 0, Double.NaN);
+    }
+
+    /**
+     * Checks moves and removals without the previous position of elements.
+     */
+    @Test
+    public void testTrackedElements() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Object> qt = new FlexibleQuadTree<>(
+                FlexibleQuadTree.DEFAULT_CAPACITY, FlexibleQuadTree.DEFAULT_PARALLEL_THRESHOLD, true);
+        assertTrue(qt.isTrackingElements());
+        final List<Object> tokens = range().mapToObj(i -> new Object()).collect(Collectors.toList());
+        final List<double[]> start = makeRandomTest(rnd);
+        range().forEach(i -> qt.insert(tokens.get(i), start.get(i)));
+        final List<double[]> end = makeRandomTest(rnd);
+        range().forEach(i -> {
+            final double[] p = end.get(i);
+            final double[] near = pos(p[0] + rnd.nextDouble(), p[1] + rnd.nextDouble());
+            assertTrue(qt.move(tokens.get(i), p[0], p[1]));
+            assertTrue(qt.move(tokens.get(i), near[0], near[1]));
+            end.set(i, near);
+        });
+        assertEquals(INSERTIONS, qt.query(-Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE).size());
+        range().filter(i -> i % 2 == 0).forEach(i -> assertTrue(qt.remove(tokens.get(i))));
+        range().filter(i -> i % 2 == 1).forEach(i -> assertTrue(qt.remove(tokens.get(i), end.get(i))));
+        range().forEach(i -> {
+            assertFalse(qt.remove(tokens.get(i)));
+            assertFalse(qt.move(tokens.get(i), 0, 0));
+        });
+        assertEquals(0, qt.query(-Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE).size());
+    }
+
+    /**
+     * Checks that untracked trees refuse moves without the previous position.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testUntrackedMove() {
+        final FlexibleQuadTree<Object> qt = new FlexibleQuadTree<>();
+        qt.insert(TOKEN, 0, 0);
+        qt.move(TOKEN, 1, 1);
+    }
+
+    /**
+     * Checks that tracked trees ignore equal instances other than the stored
+     * one, even when its previous position is given.
+     */
+    @Test
+    public void testTrackedIdentity() {
+        final FlexibleQuadTree<String> qt = new FlexibleQuadTree<>(
+                FlexibleQuadTree.DEFAULT_CAPACITY, FlexibleQuadTree.DEFAULT_PARALLEL_THRESHOLD, true);
+        final String stored = "a";
+        final String other = new String(stored);
+        qt.insert(stored, 0, 0);
+        assertFalse(qt.move(other, 0, 0, 1, 1));
+        assertFalse(qt.remove(other, 0, 0));
+        assertFalse(qt.remove(other));
+        assertTrue(qt.move(stored, 1, 1));
+        assertSame(stored, qt.query(1, 1, 2, 2).get(0));
+        assertTrue(qt.remove(stored, 1, 1));
+        assertTrue(qt.query(0, 0, 2, 2).isEmpty());
+    }
+
+    /**
+     * Checks that a bulk loaded tree behaves as an incrementally built one.
+     */
+    @Test
+    public void testInsertAll() {
+        final Random rnd = new Random(0);
+        final List<double[]> positions = makeRandomTest(rnd);
+        final Integer[] ids = range().boxed().toArray(Integer[]::new);
+        final double[] xs = stream(positions).mapToDouble(p -> p[0]).toArray();
+        final double[] ys = stream(positions).mapToDouble(p -> p[1]).toArray();
+        final FlexibleQuadTree<Integer> bulk = new FlexibleQuadTree<>();
+        bulk.insert(-1, 0, 0);
+        bulk.insertAll(ids, xs, ys);
+        final FlexibleQuadTree<Integer> incremental = new FlexibleQuadTree<>();
+        incremental.insert(-1, 0, 0);
+        range().forEach(i -> incremental.insert(i, xs[i], ys[i]));
+        for (int i = 0; i < 100; i++) {
+            final double[] from = pos(rnd.nextLong(), rnd.nextLong());
+            final double[] to = pos(rnd.nextLong(), rnd.nextLong());
+            assertEquals(new HashSet<>(incremental.query(from, to)), new HashSet<>(bulk.query(from, to)));
+        }
+        assertEquals(incremental.nearest(20, 0, 0), bulk.nearest(20, 0, 0));
+        final List<double[]> moveTo = makeRandomTest(rnd);
+        range().forEach(i -> assertTrue(bulk.move(i, positions.get(i), moveTo.get(i))));
+        range().forEach(i -> assertTrue(bulk.remove(i, moveTo.get(i))));
+        assertTrue(bulk.remove(-1, 0, 0));
+        assertEquals(0, bulk.query(-Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE).size());
+    }
+
+    /**
+     * Checks that batch moves within a node keep its entries sorted from the
+     * oldest to the newest movement, as one by one moves do.
+     */
+    @Test
+    public void testMoveAllOrder() {
+        final FlexibleQuadTree<Integer> batch = new FlexibleQuadTree<>();
+        final FlexibleQuadTree<Integer> single = new FlexibleQuadTree<>();
+        final Integer[] ids = { 0, 1, 2 };
+        for (final Integer id: ids) {
+            batch.insert(id, id, id);
+            single.insert(id, id, id);
+        }
+        final Integer[] moving = { ids[1] };
+        final double[] start = { 1 };
+        final double[] end = { 1.5 };
+        assertEquals(1, batch.moveAll(moving, start, start, end, end));
+        assertTrue(single.move(ids[1], 1, 1, 1.5, 1.5));
+        assertEquals(single.toString(), batch.toString());
+    }
+
+    /**
+     * Checks batch moves, both in place and across nodes, sequential and
+     * parallel, against one by one moves.
+     */
+    @Test
+    public void testMoveAll() {
+        for (final int threshold: new int[] { 0, Integer.MAX_VALUE }) {
+            final Random rnd = new Random(0);
+            final FlexibleQuadTree<Integer> batch = new FlexibleQuadTree<>(FlexibleQuadTree.DEFAULT_CAPACITY, threshold);
+            final FlexibleQuadTree<Integer> single = new FlexibleQuadTree<>();
+            final Integer[] ids = range().boxed().toArray(Integer[]::new);
+            final double[] sx = range().mapToDouble(i -> rnd.nextDouble()).toArray();
+            final double[] sy = range().mapToDouble(i -> rnd.nextDouble()).toArray();
+            range().forEach(i -> {
+                batch.insert(i, sx[i], sy[i]);
+                single.insert(i, sx[i], sy[i]);
+            });
+            for (final double jitter: new double[] { 0.001, 0.1, 2 }) {
+                final double[] fx = range().mapToDouble(i -> sx[i] + (rnd.nextDouble() - 0.5) * jitter).toArray();
+                final double[] fy = range().mapToDouble(i -> sy[i] + (rnd.nextDouble() - 0.5) * jitter).toArray();
+                assertEquals(INSERTIONS, batch.moveAll(ids, sx, sy, fx, fy));
+                range().forEach(i -> assertTrue(single.move(i, sx[i], sy[i], fx[i], fy[i])));
+                for (int q = 0; q < 100; q++) {
+                    final double[] from = pos(rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2);
+                    final double[] to = pos(rnd.nextDouble() * 4 - 2, rnd.nextDouble() * 4 - 2);
+                    assertEquals(new HashSet<>(single.query(from, to)), new HashSet<>(batch.query(from, to)));
+                }
+                assertEquals(0, batch.moveAll(ids, sx, sy, fx, fy));
+                System.arraycopy(fx, 0, sx, 0, INSERTIONS);
+                System.arraycopy(fy, 0, sy, 0, INSERTIONS);
+            }
+            range().forEach(i -> assertTrue(batch.remove(i, sx[i], sy[i])));
+            assertEquals(0, batch.query(-Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE).size());
+        }
+    }
+
+    /**
+     * Snapshots must not see the changes made to the tree after they have
+     * been taken.
+     */
+    @Test
+    public void testSnapshot() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(FlexibleQuadTree.DEFAULT_CAPACITY, 0, true);
+        final double[] x = range().mapToDouble(i -> rnd.nextDouble()).toArray();
+        final double[] y = range().mapToDouble(i -> rnd.nextDouble()).toArray();
+        final Integer[] ids = range().boxed().toArray(Integer[]::new);
+        range().forEach(i -> tree.insert(ids[i], x[i], y[i]));
+        final List<double[][]> queries = new ArrayList<>();
+        for (int q = 0; q < 100; q++) {
+            queries.add(new double[][] { pos(rnd.nextDouble() * 3 - 1, rnd.nextDouble() * 3 - 1),
+                    pos(rnd.nextDouble() * 3 - 1, rnd.nextDouble() * 3 - 1) });
+        }
+        final List<HashSet<Integer>> before = new ArrayList<>();
+        for (final double[][] query : queries) {
+            before.add(new HashSet<>(tree.query(query)));
+        }
+        final SpatialIndex<Integer> snapshot = tree.snapshot();
+        for (int i = 0; i < INSERTIONS; i++) {
+            if (i % 4 == 0) {
+                assertTrue(tree.remove(ids[i]));
+                x[i] = Double.NaN;
+            } else {
+                x[i] += rnd.nextDouble() * 2 - 1;
+                y[i] += rnd.nextDouble() * 2 - 1;
+                if (i % 4 == 1) {
+                    assertTrue(tree.move(ids[i], x[i], y[i]));
+                } else {
+                    assertTrue(tree.move(ids[i], x[i] - 1, y[i] - 1));
+                    assertTrue(tree.move(ids[i], pos(x[i] - 1, y[i] - 1), pos(x[i], y[i])));
+                }
+            }
+            if (i % 100 == 0) {
+                tree.snapshot();
+            }
+        }
+        final SpatialIndex<Integer> moved = tree.snapshot();
+        final double[] extra = pos(0.5, 0.5);
+        tree.insertAll(new Integer[] { INSERTIONS }, new double[] { extra[0] }, new double[] { extra[1] });
+        for (int q = 0; q < queries.size(); q++) {
+            final double[][] query = queries.get(q);
+            assertEquals(before.get(q), new HashSet<>(snapshot.query(query)));
+            final HashSet<Integer> expected = new HashSet<>();
+            for (int i = 0; i < INSERTIONS; i++) {
+                if (inside(query, x[i], y[i])) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected, new HashSet<>(moved.query(query)));
+            if (inside(query, extra[0], extra[1])) {
+                expected.add(INSERTIONS);
+            }
+            final List<Integer> current = new ArrayList<>();
+            tree.query(current::add, query);
+            assertEquals(expected, new HashSet<>(current));
+        }
+    }
+
+    private static boolean inside(final double[][] query, final double x, final double y) {
+        return x >= Math.min(query[0][0], query[1][0]) && x < Math.max(query[0][0], query[1][0])
+                && y >= Math.min(query[0][1], query[1][1]) && y < Math.max(query[0][1], query[1][1]);
+    }
+
+    /**
+     * Snapshots can not be modified.
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testSnapshotIsImmutable() {
+        final FlexibleQuadTree<Object> tree = new FlexibleQuadTree<>();
+        tree.insert(TOKEN, 0, 0);
+        tree.snapshot().remove(TOKEN, 0, 0);
+    }
+
+    /**
+     * Removals collapse sparse subtrees and compaction shrinks the root back
+     * once an outlier is gone, while snapshots keep seeing the old content.
+     */
+    @Test
+    public void testCompact() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(FlexibleQuadTree.DEFAULT_CAPACITY, 0, true);
+        final double[] x = range().mapToDouble(i -> rnd.nextDouble()).toArray();
+        final double[] y = range().mapToDouble(i -> rnd.nextDouble()).toArray();
+        final Integer[] ids = range().boxed().toArray(Integer[]::new);
+        range().forEach(i -> tree.insert(ids[i], x[i], y[i]));
+        final Integer outlier = INSERTIONS;
+        tree.insert(outlier, 1e6, 1e6);
+        final SpatialIndex<Integer> snapshot = tree.snapshot();
+        assertTrue(tree.remove(outlier));
+        tree.compact();
+        final String description = tree.toString();
+        final double maxX = Double.parseDouble(description.substring(description.indexOf(" - ") + 3, description.indexOf(',',
+                description.indexOf(" - "))));
+        assertTrue(description, maxX <= 1);
+        for (int i = 0; i < INSERTIONS; i++) {
+            if (i % 4 != 0) {
+                assertTrue(tree.remove(ids[i]));
+                x[i] = Double.NaN;
+            }
+        }
+        tree.compact();
+        for (int i = 0; i < INSERTIONS; i += 4) {
+            x[i] = rnd.nextDouble();
+            y[i] = rnd.nextDouble();
+            assertTrue(tree.move(ids[i], x[i], y[i]));
+        }
+        for (int q = 0; q < 100; q++) {
+            final double[][] query = new double[][] { pos(rnd.nextDouble(), rnd.nextDouble()),
+                    pos(rnd.nextDouble(), rnd.nextDouble()) };
+            final HashSet<Integer> expected = new HashSet<>();
+            for (int i = 0; i < INSERTIONS; i++) {
+                if (inside(query, x[i], y[i])) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected, new HashSet<>(tree.query(query)));
+        }
+        assertEquals(INSERTIONS + 1, snapshot.query(pos(-1, -1), pos(2e6, 2e6)).size());
+    }
+
+    /**
+     * Elements sharing the same coordinates, or closer than the tree can
+     * tell apart, must not make the tree subdivide indefinitely.
+     */
+    @Test
+    public void testColocated() {
+        final double spawn = 0.3;
+        final double neighbor = FastMath.nextUp(spawn);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(FlexibleQuadTree.DEFAULT_CAPACITY, 0, true);
+        final Integer[] ids = range().boxed().toArray(Integer[]::new);
+        for (int i = 0; i < INSERTIONS / 2; i++) {
+            tree.insert(ids[i], i % 2 == 0 ? spawn : neighbor, spawn);
+        }
+        final Integer[] batch = IntStreams.range(INSERTIONS / 2, INSERTIONS).boxed().toArray(Integer[]::new);
+        final double[] x = new double[batch.length];
+        final double[] y = new double[batch.length];
+        Arrays.fill(x, spawn);
+        Arrays.fill(y, spawn);
+        tree.insertAll(batch, x, y);
+        assertEquals(INSERTIONS, tree.query(spawn, spawn, 1, 1).size());
+        assertEquals(INSERTIONS / 4, tree.query(neighbor, spawn, 1, 1).size());
+        assertEquals(INSERTIONS * 3 / 4, tree.queryRadius(spawn, spawn, 0).size());
+        for (int i = 0; i < INSERTIONS / 2; i += 2) {
+            assertTrue(tree.move(ids[i], -spawn, -spawn));
+        }
+        for (int i = INSERTIONS / 2; i < INSERTIONS; i++) {
+            assertTrue(tree.remove(batch[i - INSERTIONS / 2], spawn, spawn));
+        }
+        assertEquals(INSERTIONS / 4, tree.query(-1, -1, 0, 0).size());
+        assertEquals(INSERTIONS / 4, tree.query(0, 0, 1, 1).size());
+        assertEquals(INSERTIONS / 2, tree.nearest(INSERTIONS, 0, 0).size());
+    }
+
+    /**
+     * Buckets of co-located elements must get split once their elements
+     * move apart, whatever the kind of movement.
+     */
+    @Test
+    public void testColocatedDisperse() {
+        final Random rnd = new Random(0);
+        final int n = INSERTIONS / 4;
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(FlexibleQuadTree.DEFAULT_CAPACITY, 0, true);
+        final Integer[] ids = IntStreams.range(0, n).boxed().toArray(Integer[]::new);
+        final double[] x = new double[n];
+        final double[] y = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = 0.5;
+            y[i] = 0.5;
+            tree.insert(ids[i], x[i], y[i]);
+        }
+        assertEquals(n, rootEntries(tree));
+        final double[] fx = new double[n];
+        final double[] fy = new double[n];
+        for (int i = 0; i < n; i++) {
+            fx[i] = rnd.nextDouble();
+            fy[i] = rnd.nextDouble();
+            if (i % 3 == 0) {
+                assertTrue(tree.move(ids[i], pos(x[i], y[i]), pos(fx[i], fy[i])));
+            } else if (i % 3 == 1) {
+                assertTrue(tree.move(ids[i], fx[i], fy[i]));
+            }
+        }
+        final Integer[] batch = IntStreams.range(0, n).filter(i -> i % 3 == 2).boxed().map(i -> ids[i])
+                .toArray(Integer[]::new);
+        final double[][] batchPositions = new double[4][batch.length];
+        for (int j = 0; j < batch.length; j++) {
+            final int i = batch[j];
+            batchPositions[0][j] = x[i];
+            batchPositions[1][j] = y[i];
+            batchPositions[2][j] = fx[i];
+            batchPositions[3][j] = fy[i];
+        }
+        assertEquals(batch.length,
+                tree.moveAll(batch, batchPositions[0], batchPositions[1], batchPositions[2], batchPositions[3]));
+        assertTrue(rootEntries(tree) <= FlexibleQuadTree.DEFAULT_CAPACITY);
+        for (int q = 0; q < 100; q++) {
+            final double[][] query = new double[][] { pos(rnd.nextDouble(), rnd.nextDouble()),
+                    pos(rnd.nextDouble(), rnd.nextDouble()) };
+            final HashSet<Integer> expected = new HashSet<>();
+            for (int i = 0; i < n; i++) {
+                if (inside(query, fx[i], fy[i])) {
+                    expected.add(i);
+                }
+            }
+            assertEquals(expected, new HashSet<>(tree.query(query)));
+        }
+    }
+
+    private static int rootEntries(final FlexibleQuadTree<?> tree) {
+        return tree.toString().split("@\\[", -1).length - 1;
+    }
+
+    /**
+     * Checks the self join against a brute force scan, both sequential and
+     * parallel, with moved and coincident elements: each pair must be found
+     * exactly once.
+     */
+    @Test
+    public void testPairsWithin() {
+        final int n = INSERTIONS / 4;
+        final double radius = 0.03;
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(4, 0);
+        final double[][] positions = new double[n][];
+        for (int i = 0; i < n; i++) {
+            positions[i] = i % 10 == 0 ? pos(0.5, 0.5) : pos(rnd.nextDouble(), rnd.nextDouble());
+            tree.insert(i, positions[i]);
+        }
+        for (int i = 0; i < n; i += 7) {
+            final double[] p = pos(rnd.nextDouble() * 2, rnd.nextDouble());
+            assertTrue(tree.move(i, positions[i], p));
+            positions[i] = p;
+        }
+        final Set<Long> expected = new HashSet<>();
+        for (int i = 0; i < n; i++) {
+            for (int j = i + 1; j < n; j++) {
+                if (FastMath.hypot(positions[i][0] - positions[j][0], positions[i][1] - positions[j][1]) <= radius) {
+                    expected.add((long) i * n + j);
+                }
+            }
+        }
+        for (final boolean parallel : new boolean[] { false, true }) {
+            final Set<Long> actual = Collections.synchronizedSet(new HashSet<Long>());
+            final AtomicInteger count = new AtomicInteger();
+            tree.forEachPairWithin(radius, (a, b) -> {
+                actual.add((long) Math.min(a, b) * n + Math.max(a, b));
+                count.incrementAndGet();
+            }, parallel);
+            assertEquals(expected, actual);
+            assertEquals(expected.size(), count.get());
+        }
+    }
+
+    /**
+     * Counts and histograms must match the elements returned by the queries.
+     */
+    @Test
+    public void testCount() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>();
+        final double[][] positions = new double[INSERTIONS][];
+        for (int i = 0; i < INSERTIONS; i++) {
+            positions[i] = i % 10 == 0 ? pos(0.25, 0.5) : pos(rnd.nextDouble(), rnd.nextDouble());
+            tree.insert(i, positions[i]);
+        }
+        for (int i = 0; i < INSERTIONS; i += 3) {
+            assertTrue(tree.remove(i, positions[i]));
+            positions[i] = null;
+        }
+        assertEquals(tree.size(), tree.count(-1, -1, 2, 2));
+        for (int q = 0; q < 100; q++) {
+            final double sx = rnd.nextDouble() - 0.1;
+            final double sy = rnd.nextDouble() - 0.1;
+            final double fx = sx + rnd.nextDouble() / 2;
+            final double fy = sy + rnd.nextDouble() / 2;
+            final int columns = 1 + rnd.nextInt(20);
+            final int rows = 1 + rnd.nextInt(20);
+            assertEquals(tree.query(sx, sy, fx, fy).size(), tree.count(fx, fy, sx, sy));
+            final int[][] expected = new int[columns][rows];
+            for (final double[] p : positions) {
+                if (p != null && p[0] >= sx && p[0] < fx && p[1] >= sy && p[1] < fy) {
+                    expected[Math.min(columns - 1, (int) ((p[0] - sx) * (columns / (fx - sx))))]
+                            [Math.min(rows - 1, (int) ((p[1] - sy) * (rows / (fy - sy))))]++;
+                }
+            }
+            assertTrue(Arrays.deepEquals(expected, tree.histogram(sx, sy, fx, fy, columns, rows)));
+        }
+    }
+
+    /**
+     * Streams must return the same elements of the queries, both sequential
+     * and parallel, and must support short circuiting.
+     */
+    @Test
+    public void testStream() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>();
+        range().forEach(i -> tree.insert(i, rnd.nextDouble(), rnd.nextDouble()));
+        for (int q = 0; q < 100; q++) {
+            final double sx = rnd.nextDouble();
+            final double sy = rnd.nextDouble();
+            final double fx = sx + rnd.nextDouble() / 2;
+            final double fy = sy + rnd.nextDouble() / 2;
+            final List<Integer> expected = tree.query(sx, sy, fx, fy);
+            final List<Integer> sequential = tree.stream(fx, fy, sx, sy).collect(Collectors.toList());
+            final List<Integer> parallel = tree.stream(sx, sy, fx, fy).parallel().collect(Collectors.toList());
+            assertEquals(expected.size(), sequential.size());
+            assertEquals(new HashSet<>(expected), new HashSet<>(sequential));
+            assertEquals(expected.size(), parallel.size());
+            assertEquals(new HashSet<>(expected), new HashSet<>(parallel));
+            assertEquals(Math.min(3, expected.size()), tree.stream(sx, sy, fx, fy).limit(3).count());
+            assertEquals(!expected.isEmpty(), tree.stream(sx, sy, fx, fy).findAny().isPresent());
+        }
+        assertTrue(tree.stream(0, 0, 1, 1).spliterator().trySplit() != null);
+        assertEquals(0, new FlexibleQuadTree<>().stream(0, 0, 1, 1).count());
+    }
+
+    /**
+     * The elements notified by the watches must be the ones inside the
+     * watched regions, whatever the mutations.
+     */
+    @Test
+    public void testWatch() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(4, Integer.MAX_VALUE, true);
+        final List<Set<Integer>> inside = new ArrayList<>();
+        final List<RegionListener<Integer>> listeners = new ArrayList<>();
+        for (int w = 0; w < 20; w++) {
+            final Set<Integer> members = new HashSet<>();
+            inside.add(members);
+            listeners.add(new RegionListener<Integer>() {
+                @Override
+                public void entered(final Integer element) {
+                    assertTrue(members.add(element));
+                }
+
+                @Override
+                public void left(final Integer element) {
+                    assertTrue(members.remove(element));
+                }
+            });
+        }
+        final double[][] zones = new double[listeners.size()][];
+        for (int w = 0; w < zones.length; w++) {
+            zones[w] = new double[] { rnd.nextDouble(), rnd.nextDouble(), rnd.nextDouble() / 4 };
+            if (w % 2 == 0) {
+                tree.watch(zones[w][0], zones[w][1], zones[w][0] + zones[w][2], zones[w][1] + zones[w][2],
+                        listeners.get(w));
+            } else {
+                tree.watchRadius(zones[w][0], zones[w][1], zones[w][2], listeners.get(w));
+            }
+        }
+        final int n = INSERTIONS / 4;
+        final Integer[] ids = IntStreams.range(0, n).boxed().toArray(Integer[]::new);
+        final double[][] positions = new double[n][];
+        final Integer[] batch = new Integer[n / 2];
+        final double[] bx = new double[n / 2];
+        final double[] by = new double[n / 2];
+        for (int i = 0; i < n; i++) {
+            positions[i] = pos(rnd.nextDouble(), rnd.nextDouble());
+            if (i < n / 2) {
+                tree.insert(ids[i], positions[i]);
+            } else {
+                batch[i - n / 2] = ids[i];
+                bx[i - n / 2] = positions[i][0];
+                by[i - n / 2] = positions[i][1];
+            }
+        }
+        tree.insertAll(batch, bx, by);
+        checkWatches(tree, zones, inside);
+        for (int i = 0; i < n; i++) {
+            final double[] p = pos(positions[i][0] + rnd.nextGaussian() / 20, positions[i][1] + rnd.nextGaussian() / 20);
+            if (i % 3 == 0) {
+                assertTrue(tree.move(ids[i], positions[i], p));
+            } else if (i % 3 == 1) {
+                assertTrue(tree.move(ids[i], p[0], p[1]));
+            } else {
+                assertEquals(1, tree.moveAll(new Integer[] { ids[i] }, new double[] { positions[i][0] },
+                        new double[] { positions[i][1] }, new double[] { p[0] }, new double[] { p[1] }));
+            }
+            positions[i] = p;
+        }
+        checkWatches(tree, zones, inside);
+        for (int i = 0; i < n; i += 2) {
+            assertTrue(i % 4 == 0 ? tree.remove(ids[i]) : tree.remove(ids[i], positions[i]));
+        }
+        checkWatches(tree, zones, inside);
+        assertTrue(tree.unwatch(listeners.get(0)));
+        assertFalse(tree.unwatch(listeners.get(0)));
+        final Set<Integer> frozen = new HashSet<>(inside.get(0));
+        tree.remove(ids[1]);
+        tree.insert(-1, zones[0][0], zones[0][1]);
+        assertEquals(frozen, inside.get(0));
+    }
+
+    /**
+     * Watches notified during a batch movement must find the elements moved
+     * into their region, including the ones reinserted after leaving their
+     * nodes.
+     */
+    @Test
+    public void testWatchAfterMoveAll() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(4, Integer.MAX_VALUE, true);
+        final Set<Integer> entered = new HashSet<>();
+        tree.watch(0.5, 0.5, 1, 1, new RegionListener<Integer>() {
+            @Override
+            public void entered(final Integer element) {
+                assertTrue(tree.query(0.5, 0.5, 1, 1).contains(element));
+                assertTrue(entered.add(element));
+            }
+
+            @Override
+            public void left(final Integer element) {
+                assertTrue(entered.remove(element));
+            }
+        });
+        final int n = INSERTIONS / 10;
+        final Integer[] ids = IntStreams.range(0, n).boxed().toArray(Integer[]::new);
+        final double[] sx = new double[n];
+        final double[] sy = new double[n];
+        final double[] fx = new double[n];
+        final double[] fy = new double[n];
+        for (int i = 0; i < n; i++) {
+            sx[i] = rnd.nextDouble() / 2;
+            sy[i] = rnd.nextDouble() / 2;
+            fx[i] = 0.5 + rnd.nextDouble() / 2;
+            fy[i] = 0.5 + rnd.nextDouble() / 2;
+            tree.insert(ids[i], sx[i], sy[i]);
+        }
+        assertEquals(n, tree.moveAll(ids, sx, sy, fx, fy));
+        assertEquals(n, entered.size());
+    }
+
+    private static void checkWatches(
+            final FlexibleQuadTree<Integer> tree, final double[][] zones, final List<Set<Integer>> inside) {
+        for (int w = 0; w < zones.length; w++) {
+            final double[] z = zones[w];
+            final List<Integer> expected = w % 2 == 0
+                    ? tree.query(z[0], z[1], z[0] + z[2], z[1] + z[2])
+                    : tree.queryRadius(z[0], z[1], z[2]);
+            assertEquals(new HashSet<>(expected), inside.get(w));
+        }
+    }
+
+    /**
+     * A saved tree plus the journal recorded afterwards must give back the
+     * current content, even if the last record got truncated.
+     * 
+     * @throws IOException
+     *             if the temporary files can not be used
+     */
+    @Test
+    public void testJournal() throws IOException {
+        final Random rnd = new Random(0);
+        final ElementCodec<Integer> codec = INT_CODEC;
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(FlexibleQuadTree.DEFAULT_CAPACITY, 0, true);
+        final double[] x = range().mapToDouble(i -> rnd.nextDouble()).toArray();
+        final double[] y = range().mapToDouble(i -> rnd.nextDouble()).toArray();
+        final Integer[] ids = range().boxed().toArray(Integer[]::new);
+        for (int i = 0; i < INSERTIONS / 2; i++) {
+            tree.insert(ids[i], x[i], y[i]);
+        }
+        final Path snapshot = Files.createTempFile("quadtree", ".bin");
+        final Path journal = Files.createTempFile("quadtree", ".log");
+        try {
+            tree.save(snapshot, codec);
+            tree.startJournal(journal, codec);
+            tree.insertAll(Arrays.copyOfRange(ids, INSERTIONS / 2, INSERTIONS),
+                    Arrays.copyOfRange(x, INSERTIONS / 2, INSERTIONS), Arrays.copyOfRange(y, INSERTIONS / 2, INSERTIONS));
+            final double[] fx = range().mapToDouble(i -> rnd.nextDouble() * 2).toArray();
+            final double[] fy = range().mapToDouble(i -> rnd.nextDouble() * 2).toArray();
+            assertEquals(INSERTIONS / 2, tree.moveAll(Arrays.copyOf(ids, INSERTIONS / 2),
+                    Arrays.copyOf(x, INSERTIONS / 2), Arrays.copyOf(y, INSERTIONS / 2),
+                    Arrays.copyOf(fx, INSERTIONS / 2), Arrays.copyOf(fy, INSERTIONS / 2)));
+            for (int i = INSERTIONS / 2; i < INSERTIONS; i++) {
+                assertTrue(i % 2 == 0 ? tree.move(ids[i], fx[i], fy[i]) : tree.move(ids[i], x[i], y[i], fx[i], fy[i]));
+            }
+            for (int i = 0; i < INSERTIONS; i += 3) {
+                assertTrue(i % 2 == 0 ? tree.remove(ids[i]) : tree.remove(ids[i], fx[i], fy[i]));
+            }
+            tree.stopJournal();
+            Files.write(journal, new byte[] { 1, 0, 0 }, StandardOpenOption.APPEND);
+            final FlexibleQuadTree<Integer> restored = FlexibleQuadTree.load(snapshot, journal, codec);
+            for (int q = 0; q < 100; q++) {
+                final double[][] query = new double[][] { pos(rnd.nextDouble() * 2, rnd.nextDouble() * 2),
+                    pos(rnd.nextDouble() * 2, rnd.nextDouble() * 2) };
+                assertEquals(new HashSet<>(tree.query(query)), new HashSet<>(restored.query(query)));
+            }
+            assertEquals(tree.query(0, 0, 2, 2).size(), restored.query(0, 0, 2, 2).size());
+        } finally {
+            Files.delete(snapshot);
+            Files.delete(journal);
+        }
+    }
+
+    /**
+     * A failure in writing the journal must be reported once the mutation is
+     * done, and must stop the journal, so that nothing gets appended after an
+     * incomplete record. Relies on a device failing all the writes.
+     * 
+     * @throws IOException
+     *             if the journal can not be stopped
+     */
+    @Test
+    public void testJournalFailure() throws IOException {
+        final Path full = Paths.get("/dev/full");
+        assumeTrue(Files.isWritable(full));
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(FlexibleQuadTree.DEFAULT_CAPACITY, 0, true);
+        tree.startJournal(full, new ElementCodec<Integer>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public byte[] encode(final Integer element) {
+                /*
+                 * Larger than the journal buffer, hence written immediately
+                 */
+                return ByteBuffer.allocate(1 << 20).putInt(element).array();
+            }
+
+            @Override
+            public Integer decode(final ByteBuffer data) {
+                return data.getInt();
+            }
+        });
+        final Integer first = 1;
+        try {
+            tree.insert(first, 0.5, 0.5);
+            fail("The journal can not be written");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(Collections.singletonList(first), tree.query(0, 0, 1, 1));
+        final Integer second = 2;
+        tree.insert(second, 0.25, 0.25);
+        assertTrue(tree.move(first, 0.75, 0.75));
+        assertTrue(tree.remove(second));
+        tree.flushJournal();
+        tree.stopJournal();
+        assertEquals(Collections.singletonList(first), tree.query(0, 0, 1, 1));
+    }
+
+    /**
+     * Loose trees must answer as regular trees while elements jitter around
+     * node boundaries, jump far away, get removed, and after compaction and
+     * saving.
+     * 
+     * @throws IOException
+     *             if the temporary file can not be used
+     */
+    @Test
+    public void testLoose() throws IOException {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(4, 0, true, 2);
+        assertEquals(2, tree.getLooseness(), 0);
+        final Integer[] ids = range().boxed().toArray(Integer[]::new);
+        final double[][] positions = new double[INSERTIONS][];
+        for (int i = 0; i < INSERTIONS; i++) {
+            positions[i] = i % 10 == 0 ? pos(0.5, 0.5) : pos(rnd.nextDouble(), rnd.nextDouble());
+            tree.insert(ids[i], positions[i]);
+        }
+        checkLoose(tree, positions, rnd);
+        for (int round = 0; round < 12; round++) {
+            final double[][] next = new double[INSERTIONS][];
+            for (int i = 0; i < INSERTIONS; i++) {
+                next[i] = i % 50 == round
+                        ? pos(rnd.nextDouble() * 4 - 1, rnd.nextDouble() * 4 - 1)
+                        : pos(positions[i][0] + rnd.nextGaussian() / 100, positions[i][1] + rnd.nextGaussian() / 100);
+            }
+            if (round % 3 == 0) {
+                final double[] sx = new double[INSERTIONS];
+                final double[] sy = new double[INSERTIONS];
+                final double[] fx = new double[INSERTIONS];
+                final double[] fy = new double[INSERTIONS];
+                for (int i = 0; i < INSERTIONS; i++) {
+                    sx[i] = positions[i][0];
+                    sy[i] = positions[i][1];
+                    fx[i] = next[i][0];
+                    fy[i] = next[i][1];
+                }
+                assertEquals(INSERTIONS, tree.moveAll(ids, sx, sy, fx, fy));
+            } else {
+                for (int i = 0; i < INSERTIONS; i++) {
+                    assertTrue(round % 3 == 1
+                            ? tree.move(ids[i], positions[i], next[i])
+                            : tree.move(ids[i], next[i][0], next[i][1]));
+                }
+            }
+            System.arraycopy(next, 0, positions, 0, INSERTIONS);
+            checkLoose(tree, positions, rnd);
+        }
+        final double radius = 0.01;
+        final Set<Long> pairs = new HashSet<>();
+        for (int i = 0; i < INSERTIONS; i++) {
+            for (int j = i + 1; j < INSERTIONS; j++) {
+                if (distance(positions[i], positions[j][0], positions[j][1]) <= radius) {
+                    pairs.add((long) i * INSERTIONS + j);
+                }
+            }
+        }
+        final Set<Long> found = new HashSet<>();
+        tree.forEachPairWithin(radius, (a, b) -> assertTrue(found.add((long) Math.min(a, b) * INSERTIONS + Math.max(a, b))));
+        assertEquals(pairs, found);
+        for (int i = 0; i < INSERTIONS; i += 3) {
+            assertTrue(i % 2 == 0 ? tree.remove(ids[i]) : tree.remove(ids[i], positions[i]));
+            positions[i] = null;
+        }
+        checkLoose(tree, positions, rnd);
+        tree.compact();
+        checkLoose(tree, positions, rnd);
+        final Path file = Files.createTempFile("quadtree", ".bin");
+        try {
+            tree.save(file, INT_CODEC);
+            final FlexibleQuadTree<Integer> loaded = FlexibleQuadTree.load(file, INT_CODEC);
+            assertEquals(2, loaded.getLooseness(), 0);
+            checkLoose(loaded, positions, rnd);
+            final MappedQuadTree<Integer> mapped = MappedQuadTree.open(file, INT_CODEC);
+            for (int q = 0; q < 100; q++) {
+                final double x = rnd.nextDouble() * 1.2 - 0.1;
+                final double y = rnd.nextDouble() * 1.2 - 0.1;
+                final double r = rnd.nextDouble() / 4;
+                assertEquals(new HashSet<>(tree.query(x, y, x + r, y + r)), new HashSet<>(mapped.query(x, y, x + r, y + r)));
+                assertEquals(new HashSet<>(tree.queryRadius(x, y, r)), new HashSet<>(mapped.queryRadius(x, y, r)));
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidLooseness() {
+        new FlexibleQuadTree<>(4, 0, false, 0.5);
+    }
+
+    private static void checkLoose(final FlexibleQuadTree<Integer> tree, final double[][] positions, final Random rnd) {
+        int size = 0;
+        for (final double[] p : positions) {
+            if (p != null) {
+                size++;
+            }
+        }
+        assertEquals(size, tree.size());
+        for (int q = 0; q < 20; q++) {
+            final double sx = rnd.nextDouble() * 1.2 - 0.1;
+            final double sy = rnd.nextDouble() * 1.2 - 0.1;
+            final double fx = sx + rnd.nextDouble() / 4;
+            final double fy = sy + rnd.nextDouble() / 4;
+            final double radius = rnd.nextDouble() / 4;
+            final Set<Integer> inside = new HashSet<>();
+            final Set<Integer> inRadius = new HashSet<>();
+            double closest = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < positions.length; i++) {
+                final double[] p = positions[i];
+                if (p != null) {
+                    if (p[0] >= sx && p[0] < fx && p[1] >= sy && p[1] < fy) {
+                        inside.add(i);
+                    }
+                    final double d = distance(p, sx, sy);
+                    if (d <= radius) {
+                        inRadius.add(i);
+                    }
+                    closest = Math.min(closest, d);
+                }
+            }
+            final List<Integer> result = tree.query(sx, sy, fx, fy);
+            assertEquals(inside.size(), result.size());
+            assertEquals(inside, new HashSet<>(result));
+            assertEquals(inside.size(), tree.count(sx, sy, fx, fy));
+            assertEquals(inside.size(), tree.stream(sx, sy, fx, fy).parallel().count());
+            int histogram = 0;
+            for (final int[] column : tree.histogram(sx, sy, fx, fy, 3, 2)) {
+                histogram += column[0] + column[1];
+            }
+            assertEquals(inside.size(), histogram);
+            assertEquals(inRadius, new HashSet<>(tree.queryRadius(sx, sy, radius)));
+            assertEquals(closest, distance(positions[tree.nearest(sx, sy).get()], sx, sy), 0);
+        }
+    }
+
+    /**
+     * After a snapshot, searching an element must not copy the nodes where
+     * it is not found: cached results of queries on other areas stay valid.
+     */
+    @Test
+    public void testSnapshotCopiesChangedPathsOnly() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(4, Integer.MAX_VALUE, false, 2);
+        for (int i = 0; i < SUB_INS; i++) {
+            tree.insert(i, rnd.nextDouble() * 2 - 1, rnd.nextDouble() * 2 - 1);
+        }
+        final Integer moving = SUB_INS;
+        tree.insert(moving, 0.75, 0.75);
+        tree.snapshot();
+        final QueryCache<Integer> cache = new QueryCache<>(tree);
+        final List<Integer> expected = cache.query(-0.9, -0.9, -0.6, -0.6);
+        final Integer missing = -1;
+        assertFalse(tree.remove(missing, -0.75, -0.75));
+        assertFalse(tree.move(missing, -0.75, -0.75, 0, 0));
+        assertTrue(tree.move(moving, 0.75, 0.75, 0.7, 0.7));
+        assertTrue(tree.remove(moving, 0.7, 0.7));
+        assertEquals(expected, cache.query(-0.9, -0.9, -0.6, -0.6));
+        assertEquals(1, cache.getHits());
+    }
+
     /**
      * This bug emerged during the experiments of Coordination 2016.
      */
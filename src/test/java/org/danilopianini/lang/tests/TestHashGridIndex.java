@@ -0,0 +1,98 @@
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import org.danilopianini.lang.FlexibleQuadTree;
+import org.danilopianini.lang.HashGridIndex;
+import org.junit.Test;
+
+/**
+ */
+public class TestHashGridIndex {
+
+    private static final int INSERTIONS = 10000;
+    private static final double SIZE = 100;
+
+    /**
+     * Uniformly spread elements.
+     */
+    @Test
+    public void testUniform() {
+        compareWithQuadTree(false);
+    }
+
+    /**
+     * Elements gathered in a few far away clusters.
+     */
+    @Test
+    public void testClustered() {
+        compareWithQuadTree(true);
+    }
+
+    /**
+     * Coordinates beyond the int range of cells still work.
+     */
+    @Test
+    public void testHugeCoordinates() {
+        final HashGridIndex<String> grid = new HashGridIndex<>(1);
+        grid.insert("far", 1e300, -1e300);
+        grid.insert("near", 0.5, 0.5);
+        assertEquals(1, grid.query(1e299, -Double.MAX_VALUE, Double.MAX_VALUE, -1e299).size());
+        assertEquals(2, grid.query(-Double.MAX_VALUE, -Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE).size());
+        assertTrue(grid.move("far", 1e300, -1e300, 1e301, 1e301));
+        assertEquals("far", grid.queryRadius(1e301, 1e301, 1).get(0));
+    }
+
+    private static void compareWithQuadTree(final boolean clustered) {
+        final Random rnd = new Random(0);
+        final HashGridIndex<Integer> grid = new HashGridIndex<>(SIZE / 20);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>();
+        final double[][] positions = new double[INSERTIONS][];
+        for (int i = 0; i < INSERTIONS; i++) {
+            positions[i] = randomPoint(rnd, clustered);
+            grid.insert(i, positions[i]);
+            tree.insert(i, positions[i]);
+        }
+        check(grid, tree, rnd, clustered);
+        for (int i = 0; i < INSERTIONS; i++) {
+            final double[] next = new double[] { positions[i][0] + rnd.nextGaussian(), positions[i][1] + rnd.nextGaussian() };
+            assertTrue(grid.move(i, positions[i], next));
+            assertFalse(grid.move(i, positions[i], next));
+            assertTrue(tree.move(i, positions[i], next));
+            positions[i] = next;
+        }
+        check(grid, tree, rnd, clustered);
+        for (int i = 0; i < INSERTIONS; i += 2) {
+            assertTrue(grid.remove(i, positions[i]));
+            assertFalse(grid.remove(i, positions[i]));
+            assertTrue(tree.remove(i, positions[i]));
+        }
+        check(grid, tree, rnd, clustered);
+    }
+
+    private static void check(
+            final HashGridIndex<Integer> grid, final FlexibleQuadTree<Integer> tree,
+            final Random rnd, final boolean clustered) {
+        for (int q = 0; q < 200; q++) {
+            final double[] from = randomPoint(rnd, clustered);
+            final double[] to = new double[] { from[0] + rnd.nextDouble() * SIZE / 2, from[1] + rnd.nextDouble() * SIZE / 2 };
+            assertEquals(new HashSet<>(tree.query(from, to)), new HashSet<>(grid.query(from, to)));
+            final double radius = rnd.nextDouble() * SIZE / 2;
+            assertEquals(new HashSet<>(tree.queryRadius(from, radius)), new HashSet<>(grid.queryRadius(from, radius)));
+        }
+    }
+
+    private static double[] randomPoint(final Random rnd, final boolean clustered) {
+        if (clustered) {
+            final double center = (rnd.nextInt(4) - 2) * SIZE * 10;
+            return new double[] { center + rnd.nextGaussian() * SIZE / 10, center + rnd.nextGaussian() * SIZE / 10 };
+        }
+        return new double[] { rnd.nextDouble() * SIZE, rnd.nextDouble() * SIZE };
+    }
+
+}
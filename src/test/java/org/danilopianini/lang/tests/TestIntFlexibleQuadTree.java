@@ -0,0 +1,93 @@
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.danilopianini.lang.FlexibleQuadTree;
+import org.danilopianini.lang.IntFlexibleQuadTree;
+import org.junit.Test;
+
+/**
+ */
+public class TestIntFlexibleQuadTree {
+
+    private static final int INSERTIONS = 10000;
+
+    /**
+     * Compares the queries with the ones of a {@link FlexibleQuadTree}, while
+     * elements get inserted far apart and on the same spot, moved and
+     * removed.
+     */
+    @Test
+    public void testRandom() {
+        final Random rnd = new Random(0);
+        final IntFlexibleQuadTree tree = new IntFlexibleQuadTree(4);
+        final FlexibleQuadTree<Integer> reference = new FlexibleQuadTree<>(4);
+        final double[][] positions = new double[INSERTIONS][];
+        for (int i = 0; i < INSERTIONS; i++) {
+            positions[i] = i % 5 == 0
+                    ? new double[] { 0.5, 0.5 }
+                    : new double[] { rnd.nextGaussian() * 100, rnd.nextGaussian() * 100 };
+            tree.insert(i, positions[i][0], positions[i][1]);
+            reference.insert(i, positions[i]);
+        }
+        assertEquals(INSERTIONS, tree.size());
+        check(tree, reference, rnd);
+        for (int i = 0; i < INSERTIONS; i++) {
+            final double[] p = positions[i];
+            final double[] next = i % 2 == 0
+                    ? new double[] { p[0] + rnd.nextGaussian(), p[1] + rnd.nextGaussian() }
+                    : new double[] { rnd.nextGaussian() * 1000, rnd.nextGaussian() * 1000 };
+            assertFalse(tree.move(-1, p[0], p[1], next[0], next[1]));
+            assertTrue(tree.move(i, p[0], p[1], next[0], next[1]));
+            reference.move(i, p, next);
+            positions[i] = next;
+        }
+        check(tree, reference, rnd);
+        for (int i = 0; i < INSERTIONS; i += 3) {
+            assertTrue(tree.remove(i, positions[i][0], positions[i][1]));
+            assertFalse(tree.remove(i, positions[i][0], positions[i][1]));
+            reference.remove(i, positions[i]);
+        }
+        assertEquals(INSERTIONS - (INSERTIONS + 2) / 3, tree.size());
+        check(tree, reference, rnd);
+    }
+
+    private static void check(final IntFlexibleQuadTree tree, final FlexibleQuadTree<Integer> reference, final Random rnd) {
+        final int[] buffer = new int[INSERTIONS];
+        final int[] small = new int[2];
+        for (int q = 0; q < 100; q++) {
+            final double x1 = rnd.nextGaussian() * 100;
+            final double y1 = rnd.nextGaussian() * 100;
+            final double x2 = x1 + rnd.nextGaussian() * 200;
+            final double y2 = y1 + rnd.nextGaussian() * 200;
+            final double radius = rnd.nextDouble() * 100;
+            final Set<Integer> expected = new HashSet<>(reference.query(x1, y1, x2, y2));
+            final int found = tree.query(x1, y1, x2, y2, buffer);
+            assertEquals(expected.size(), found);
+            assertEquals(expected, toSet(buffer, found));
+            final Set<Integer> consumed = new HashSet<>();
+            tree.query(x2, y2, x1, y1, consumed::add);
+            assertEquals(expected, consumed);
+            assertEquals(found, tree.query(x1, y1, x2, y2, small));
+            final Set<Integer> inRadius = new HashSet<>(reference.queryRadius(x1, y1, radius));
+            final int foundInRadius = tree.queryRadius(x1, y1, radius, buffer);
+            assertEquals(inRadius, toSet(buffer, foundInRadius));
+        }
+    }
+
+    private static Set<Integer> toSet(final int[] buffer, final int size) {
+        final Set<Integer> result = new HashSet<>();
+        for (final int id : Arrays.copyOf(buffer, size)) {
+            assertTrue(result.add(id));
+        }
+        return result;
+    }
+
+}
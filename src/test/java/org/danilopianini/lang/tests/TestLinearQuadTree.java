@@ -0,0 +1,159 @@
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.danilopianini.lang.FlexibleQuadTree;
+import org.danilopianini.lang.LinearQuadTree;
+import org.junit.Test;
+
+/**
+ */
+public class TestLinearQuadTree {
+
+    private static final int INSERTIONS = 20000;
+    private static final double SPREAD = 100;
+
+    /**
+     * Compares the queries with a linear scan, while elements get inserted
+     * through the write buffer, moved and removed.
+     */
+    @Test
+    public void testRandom() {
+        final Random rnd = new Random(0);
+        final LinearQuadTree<Integer> tree = new LinearQuadTree<>(64);
+        final double[][] points = new double[INSERTIONS][];
+        for (int i = 0; i < INSERTIONS; i++) {
+            points[i] = new double[] { rnd.nextGaussian() * SPREAD, rnd.nextGaussian() * SPREAD };
+            tree.insert(i, points[i]);
+        }
+        assertEquals(INSERTIONS, tree.size());
+        check(tree, points, rnd);
+        mutate(tree, points, rnd);
+        check(tree, points, rnd);
+        tree.flush();
+        check(tree, points, rnd);
+    }
+
+    /**
+     * Builds the index from a {@link FlexibleQuadTree}, then inserts points
+     * far out of the original frame.
+     */
+    @Test
+    public void testFromFlexibleQuadTree() {
+        final Random rnd = new Random(1);
+        final FlexibleQuadTree<Integer> source = new FlexibleQuadTree<>();
+        final double[][] points = new double[INSERTIONS][];
+        for (int i = 0; i < INSERTIONS; i++) {
+            points[i] = new double[] { rnd.nextDouble() * SPREAD, rnd.nextDouble() * SPREAD };
+            source.insert(i, points[i]);
+        }
+        final LinearQuadTree<Integer> tree = new LinearQuadTree<>(source);
+        assertEquals(INSERTIONS, tree.size());
+        check(tree, points, rnd);
+        /*
+         * Outliers are mapped on the border until the frame gets recomputed
+         */
+        for (int i = 0; i < INSERTIONS; i += 100) {
+            final double[] next = { points[i][0] * 1e6, -points[i][1] * 1e3 };
+            assertTrue(tree.move(i, points[i], next));
+            points[i] = next;
+            if (i % 1000 == 0) {
+                check(tree, points, rnd);
+            }
+        }
+        tree.flush();
+        check(tree, points, rnd);
+        assertEquals(INSERTIONS, tree.size());
+    }
+
+    /**
+     * Coincident points, and serialization with pending changes.
+     *
+     * @throws IOException
+     *             if serialization fails
+     * @throws ClassNotFoundException
+     *             if serialization fails
+     */
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testColocatedAndSerialization() throws IOException, ClassNotFoundException {
+        final LinearQuadTree<String> tree = new LinearQuadTree<>(4);
+        tree.insertAll(new String[] { "a", "b", "c" }, new double[] { 1, 1, 1 }, new double[] { 2, 2, 2 });
+        tree.insert("d", 1, 2);
+        tree.insert("e", 5, 5);
+        assertEquals(4, tree.query(1, 2, 1.5, 2.5).size());
+        assertEquals(4, tree.queryRadius(new double[] { 1, 2 }, 0).size());
+        assertTrue(tree.remove("b", 1, 2));
+        assertFalse(tree.remove("b", 1, 2));
+        assertTrue(tree.remove("d", 1, 2));
+        assertFalse(tree.move("e", new double[] { 4, 4 }, new double[] { 1, 2 }));
+        final String state = tree.toString();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(tree);
+        }
+        assertEquals(state, tree.toString());
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+            final LinearQuadTree<String> copy = (LinearQuadTree<String>) in.readObject();
+            assertEquals(3, copy.size());
+            assertEquals(new HashSet<>(tree.query(0, 0, 10, 10)), new HashSet<>(copy.query(0, 0, 10, 10)));
+            assertEquals(2, copy.query(1, 2, 1.5, 2.5).size());
+        }
+    }
+
+    private static void mutate(final LinearQuadTree<Integer> tree, final double[][] points, final Random rnd) {
+        for (int i = 0; i < INSERTIONS; i++) {
+            final double[] p = points[i];
+            final double[] next = i % 2 == 0
+                    ? new double[] { rnd.nextGaussian() * SPREAD, rnd.nextGaussian() * SPREAD }
+                    : new double[] { p[0] + rnd.nextGaussian() * 1e-6, p[1] + rnd.nextGaussian() * 1e-6 };
+            assertTrue(tree.move(i, p, next));
+            points[i] = next;
+        }
+        for (int i = 0; i < INSERTIONS; i += 3) {
+            assertTrue(tree.remove(i, points[i]));
+            assertFalse(tree.remove(i, points[i]));
+            points[i] = null;
+        }
+    }
+
+    private static void check(final LinearQuadTree<Integer> tree, final double[][] points, final Random rnd) {
+        for (int q = 0; q < 100; q++) {
+            final double x1 = rnd.nextGaussian() * SPREAD;
+            final double y1 = rnd.nextGaussian() * SPREAD;
+            final double x2 = x1 + (rnd.nextDouble() - 0.5) * SPREAD;
+            final double y2 = y1 + (rnd.nextDouble() - 0.5) * SPREAD;
+            final double radius = rnd.nextDouble() * SPREAD / 2;
+            final Set<Integer> inRectangle = new HashSet<>();
+            final Set<Integer> inRadius = new HashSet<>();
+            for (int i = 0; i < points.length; i++) {
+                final double[] p = points[i];
+                if (p != null) {
+                    if (p[0] >= Math.min(x1, x2) && p[0] < Math.max(x1, x2)
+                            && p[1] >= Math.min(y1, y2) && p[1] < Math.max(y1, y2)) {
+                        inRectangle.add(i);
+                    }
+                    final double dx = p[0] - x1;
+                    final double dy = p[1] - y1;
+                    if (dx * dx + dy * dy <= radius * radius) {
+                        inRadius.add(i);
+                    }
+                }
+            }
+            assertEquals(inRectangle, new HashSet<>(tree.query(x1, y1, x2, y2)));
+            assertEquals(inRadius, new HashSet<>(tree.queryRadius(x1, y1, radius)));
+        }
+    }
+
+}
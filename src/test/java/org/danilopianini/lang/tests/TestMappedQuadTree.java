@@ -0,0 +1,162 @@
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+import org.danilopianini.lang.ElementCodec;
+import org.danilopianini.lang.FlexibleQuadTree;
+import org.danilopianini.lang.MappedQuadTree;
+import org.danilopianini.lang.SpatialIndex;
+import org.junit.Test;
+
+/**
+ */
+public class TestMappedQuadTree {
+
+    private static final int INSERTIONS = 10000;
+    private static final ElementCodec<String> CODEC = new ElementCodec<String>() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public byte[] encode(final String element) {
+            return element.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String decode(final ByteBuffer data) {
+            final byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    /**
+     * Saved trees must answer queries as the original, both when mapped and
+     * when loaded back.
+     * 
+     * @throws IOException
+     *             if the temporary file can not be used
+     * @throws ClassNotFoundException
+     *             never
+     */
+    @Test
+    public void testSaveAndLoad() throws IOException, ClassNotFoundException {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<String> tree = new FlexibleQuadTree<>(4, FlexibleQuadTree.DEFAULT_PARALLEL_THRESHOLD, true);
+        for (int i = 0; i < INSERTIONS; i++) {
+            /*
+             * Some elements share their position, and one is far away
+             */
+            final double x = i % 10 == 0 ? 0.5 : i == 1 ? 1e6 : rnd.nextGaussian();
+            tree.insert("element " + i, x, i % 10 == 0 ? 0.5 : rnd.nextGaussian());
+        }
+        final Path file = Files.createTempFile("quadtree", ".bin");
+        try {
+            tree.save(file, CODEC);
+            final MappedQuadTree<String> mapped = MappedQuadTree.open(file, CODEC);
+            assertEquals(INSERTIONS, mapped.size());
+            final FlexibleQuadTree<String> loaded = FlexibleQuadTree.load(file, CODEC);
+            assertTrue(loaded.isTrackingElements());
+            assertEquals(tree.toString(), loaded.toString());
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+                out.writeObject(mapped);
+            }
+            @SuppressWarnings("unchecked")
+            final SpatialIndex<String> deserialized = (SpatialIndex<String>) new ObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray())).readObject();
+            for (int q = 0; q < 100; q++) {
+                final double[] a = { rnd.nextGaussian(), rnd.nextGaussian() };
+                final double[] b = { rnd.nextGaussian(), rnd.nextGaussian() };
+                final double radius = rnd.nextDouble();
+                final HashSet<String> expected = new HashSet<>(tree.query(a, b));
+                assertEquals(expected, new HashSet<>(mapped.query(a, b)));
+                assertEquals(expected, new HashSet<>(loaded.query(a, b)));
+                assertEquals(expected, new HashSet<>(deserialized.query(a, b)));
+                assertEquals(new HashSet<>(tree.queryRadius(a, radius)), new HashSet<>(mapped.queryRadius(a, radius)));
+            }
+            for (final String e : loaded.query(-1e7, -1e7, 1e7, 1e7)) {
+                assertTrue(loaded.move(e, 2e6, 2e6));
+            }
+            assertEquals(INSERTIONS, loaded.query(2e6, 2e6, 3e6, 3e6).size());
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Truncated files, and files whose header refers to a root outside of
+     * them, must be refused.
+     * 
+     * @throws IOException
+     *             if the temporary file can not be used
+     */
+    @Test
+    public void testTruncated() throws IOException {
+        final Path file = Files.createTempFile("quadtree", ".bin");
+        try {
+            final FlexibleQuadTree<String> tree = new FlexibleQuadTree<>();
+            tree.insert("element", 0, 0);
+            tree.save(file, CODEC);
+            final byte[] saved = Files.readAllBytes(file);
+            /*
+             * The header of version 2 is 48 bytes long, the root offset is at
+             * byte 32
+             */
+            for (final int length: new int[] { 4, 40, 47, 48 }) {
+                Files.write(file, Arrays.copyOf(saved, length));
+                assertRefused(file);
+            }
+            final ByteBuffer corrupted = ByteBuffer.wrap(saved.clone());
+            for (final long root: new long[] { 0, saved.length, Long.MAX_VALUE }) {
+                corrupted.putLong(32, root);
+                Files.write(file, corrupted.array());
+                assertRefused(file);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void assertRefused(final Path file) {
+        try {
+            MappedQuadTree.open(file, CODEC);
+            fail("Opened an invalid file.");
+        } catch (IOException e) {
+            assertNotNull(e.getMessage());
+        }
+    }
+
+    /**
+     * Mapped trees can not be modified.
+     * 
+     * @throws IOException
+     *             if the temporary file can not be used
+     */
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadOnly() throws IOException {
+        final Path file = Files.createTempFile("quadtree", ".bin");
+        try {
+            new FlexibleQuadTree<String>().save(file, CODEC);
+            MappedQuadTree.open(file, CODEC).insert("element", 0, 0);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.danilopianini.lang.FlexibleQuadTree;
+import org.danilopianini.lang.QueryCache;
+import org.junit.Test;
+
+/**
+ */
+public class TestQueryCache {
+
+    private static final int INSERTIONS = 10000;
+    private static final int REGIONS = 50;
+
+    /**
+     * Cached results must always match the ones of the tree, whether the tree
+     * gets modified through the cache or directly, and also after a snapshot.
+     */
+    @Test
+    public void testRandom() {
+        final Random rnd = new Random(0);
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(4);
+        final QueryCache<Integer> cache = new QueryCache<>(tree, REGIONS / 2);
+        final double[][] positions = new double[INSERTIONS][];
+        for (int i = 0; i < INSERTIONS; i++) {
+            positions[i] = new double[] { rnd.nextDouble(), rnd.nextDouble() };
+            cache.insert(i, positions[i]);
+        }
+        final double[][] regions = new double[REGIONS][];
+        for (int r = 0; r < REGIONS; r++) {
+            regions[r] = new double[] { rnd.nextDouble(), rnd.nextDouble(), rnd.nextDouble() / 5 };
+        }
+        for (int round = 0; round < 200; round++) {
+            for (int k = 0; k < 20; k++) {
+                final int i = rnd.nextInt(INSERTIONS);
+                final double[] next = { positions[i][0] + rnd.nextGaussian() / 50, positions[i][1] + rnd.nextGaussian() / 50 };
+                assertTrue(k % 2 == 0 ? cache.move(i, positions[i], next) : tree.move(i, positions[i], next));
+                positions[i] = next;
+            }
+            if (round % 50 == 0) {
+                tree.snapshot();
+            }
+            for (int q = 0; q < 10; q++) {
+                final double[] r = regions[rnd.nextInt(REGIONS)];
+                assertEquals(
+                        new HashSet<>(tree.query(r[0], r[1], r[0] + r[2], r[1] + r[2])),
+                        new HashSet<>(cache.query(r[0], r[1], r[0] + r[2], r[1] + r[2])));
+                assertEquals(
+                        new HashSet<>(tree.queryRadius(r[0], r[1], r[2])),
+                        new HashSet<>(cache.queryRadius(r[0], r[1], r[2])));
+            }
+        }
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.getMisses() > 0);
+    }
+
+    /**
+     * Modifications far from a cached region must not invalidate it, while
+     * modifications inside it must.
+     */
+    @Test
+    public void testPrecision() {
+        final FlexibleQuadTree<Integer> tree = new FlexibleQuadTree<>(4);
+        final QueryCache<Integer> cache = new QueryCache<>(tree);
+        for (int i = 0; i < INSERTIONS; i++) {
+            tree.insert(i, i % 100 / 100d, i / 100 / 100d);
+        }
+        final List<Integer> cached = cache.query(0, 0, 0.1, 0.1);
+        assertEquals(100, cached.size());
+        tree.move(INSERTIONS - 1, 0.99, 0.99, 0.98, 0.98);
+        tree.insert(-1, 0.9, 0.9);
+        assertSame(cached, cache.query(0.1, 0.1, 0, 0));
+        assertEquals(1, cache.getMisses());
+        tree.move(0, 0, 0, 0.05, 0.05);
+        assertEquals(new HashSet<>(cached), new HashSet<>(cache.query(0, 0, 0.1, 0.1)));
+        assertEquals(2, cache.getMisses());
+        tree.move(0, 0.05, 0.05, 0.5, 0.5);
+        final List<Integer> updated = cache.query(0, 0, 0.1, 0.1);
+        assertEquals(99, updated.size());
+        assertEquals(3, cache.getMisses());
+    }
+
+}
@@ -0,0 +1,154 @@
+package org.danilopianini.lang.tests;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.danilopianini.lang.RTree;
+import org.junit.Test;
+
+/**
+ */
+public class TestRTree {
+
+    private static final int INSERTIONS = 5000;
+    private static final double SPREAD = 100;
+    private static final double SIZE = 5;
+
+    /**
+     * Compares all the queries with a linear scan, while boxes get inserted
+     * one by one, moved and removed.
+     */
+    @Test
+    public void testRandom() {
+        final Random rnd = new Random(0);
+        final RTree<Integer> tree = new RTree<>(4);
+        final double[][] boxes = new double[INSERTIONS][];
+        for (int i = 0; i < INSERTIONS; i++) {
+            boxes[i] = randomBox(rnd);
+            tree.insert(i, boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3]);
+        }
+        check(tree, boxes, rnd);
+        mutate(tree, boxes, rnd);
+        check(tree, boxes, rnd);
+    }
+
+    /**
+     * Same of {@link #testRandom()}, but the tree gets bulk loaded.
+     */
+    @Test
+    public void testBulkLoad() {
+        final Random rnd = new Random(1);
+        final RTree<Integer> tree = new RTree<>();
+        final double[][] boxes = new double[INSERTIONS][];
+        final Integer[] ids = new Integer[INSERTIONS / 2];
+        final double[][] coords = new double[4][INSERTIONS / 2];
+        for (int i = 0; i < INSERTIONS; i++) {
+            boxes[i] = randomBox(rnd);
+            if (i < INSERTIONS / 2) {
+                tree.insert(i, boxes[i][0], boxes[i][1], boxes[i][2], boxes[i][3]);
+            } else {
+                final int j = i - INSERTIONS / 2;
+                ids[j] = i;
+                for (int d = 0; d < 4; d++) {
+                    coords[d][j] = boxes[i][d];
+                }
+            }
+        }
+        tree.insertAll(ids, coords[0], coords[1], coords[2], coords[3]);
+        assertEquals(INSERTIONS, tree.size());
+        check(tree, boxes, rnd);
+        mutate(tree, boxes, rnd);
+        check(tree, boxes, rnd);
+    }
+
+    /**
+     * Points are stored as degenerate boxes.
+     */
+    @Test
+    public void testPoints() {
+        final RTree<String> tree = new RTree<>();
+        tree.insert("a", 1, 1);
+        tree.insert("b", 3, 3);
+        tree.insert("room", 0, 0, 2, 2);
+        assertEquals(1, tree.query(new double[] { 0, 0 }, new double[] { 1, 1 }).size());
+        assertEquals(2, tree.query(new double[] { 1, 1 }, new double[] { 3, 3 }).size());
+        assertEquals(2, tree.query(0, 0, 1, 1).size());
+        assertEquals(2, tree.queryContaining(1, 1, 1, 1).size());
+        assertEquals(1, tree.queryRadius(new double[] { 3, 4 }, 1).size());
+        assertFalse(tree.move("b", new double[] { 3, 4 }, new double[] { 5, 5 }));
+        assertTrue(tree.move("b", new double[] { 3, 3 }, new double[] { 5, 5 }));
+        assertTrue(tree.remove("a", 1, 1));
+        assertEquals("room", tree.queryContaining(1, 1, 1, 1).get(0));
+    }
+
+    private static void mutate(final RTree<Integer> tree, final double[][] boxes, final Random rnd) {
+        for (int i = 0; i < INSERTIONS; i++) {
+            final double[] b = boxes[i];
+            final double[] next = i % 2 == 0 ? randomBox(rnd) : new double[] {
+                b[0] + rnd.nextGaussian(), b[1] + rnd.nextGaussian(), b[2] + rnd.nextGaussian(), b[3] + rnd.nextGaussian()
+            };
+            assertTrue(tree.move(i, b[0], b[1], b[2], b[3], next[0], next[1], next[2], next[3]));
+            boxes[i] = next;
+        }
+        for (int i = 0; i < INSERTIONS; i += 3) {
+            final double[] b = boxes[i];
+            assertTrue(tree.remove(i, b[2], b[3], b[0], b[1]));
+            assertFalse(tree.remove(i, b[0], b[1], b[2], b[3]));
+            boxes[i] = null;
+        }
+    }
+
+    private static void check(final RTree<Integer> tree, final double[][] boxes, final Random rnd) {
+        for (int q = 0; q < 100; q++) {
+            final double[] w = randomBox(rnd);
+            final double sx = Math.min(w[0], w[2]) - SPREAD * rnd.nextDouble();
+            final double sy = Math.min(w[1], w[3]) - SPREAD * rnd.nextDouble();
+            final double fx = Math.max(w[0], w[2]) + SPREAD * rnd.nextDouble();
+            final double fy = Math.max(w[1], w[3]) + SPREAD * rnd.nextDouble();
+            final double radius = rnd.nextDouble() * SPREAD;
+            final Set<Integer> intersecting = new HashSet<>();
+            final Set<Integer> within = new HashSet<>();
+            final Set<Integer> containing = new HashSet<>();
+            final Set<Integer> inRadius = new HashSet<>();
+            for (int i = 0; i < boxes.length; i++) {
+                final double[] b = boxes[i];
+                if (b != null) {
+                    final double bsx = Math.min(b[0], b[2]);
+                    final double bsy = Math.min(b[1], b[3]);
+                    final double bfx = Math.max(b[0], b[2]);
+                    final double bfy = Math.max(b[1], b[3]);
+                    if (bsx <= fx && bfx >= sx && bsy <= fy && bfy >= sy) {
+                        intersecting.add(i);
+                    }
+                    if (bsx >= sx && bfx <= fx && bsy >= sy && bfy <= fy) {
+                        within.add(i);
+                    }
+                    if (bsx <= w[0] && bfx >= w[0] && bsy <= w[1] && bfy >= w[1]) {
+                        containing.add(i);
+                    }
+                    final double dx = Math.max(0, Math.max(bsx - sx, sx - bfx));
+                    final double dy = Math.max(0, Math.max(bsy - sy, sy - bfy));
+                    if (dx * dx + dy * dy <= radius * radius) {
+                        inRadius.add(i);
+                    }
+                }
+            }
+            assertEquals(intersecting, new HashSet<>(tree.query(fx, fy, sx, sy)));
+            assertEquals(within, new HashSet<>(tree.queryWithin(sx, sy, fx, fy)));
+            assertEquals(containing, new HashSet<>(tree.queryContaining(w[0], w[1], w[0], w[1])));
+            assertEquals(inRadius, new HashSet<>(tree.queryRadius(new double[] { sx, sy }, radius)));
+        }
+    }
+
+    private static double[] randomBox(final Random rnd) {
+        final double x = rnd.nextGaussian() * SPREAD;
+        final double y = rnd.nextGaussian() * SPREAD;
+        return new double[] { x, y, x + (rnd.nextDouble() - 0.5) * SIZE, y + (rnd.nextDouble() - 0.5) * SIZE };
+    }
+
+}